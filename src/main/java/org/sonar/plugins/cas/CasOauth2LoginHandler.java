@@ -76,7 +76,7 @@ public class CasOauth2LoginHandler {
         SimpleJwt jwt = JwtProcessor.mustGetJwtTokenFromResponseHeaders(headers);
 
         LOG.debug("Storing granting ticket {} with JWT {}", grantingTicket, jwt.getJwtId());
-        sessionStore.store(grantingTicket, jwt);
+        sessionStore.store(grantingTicket, jwt, userIdentity.getProviderLogin());
 
         String redirectTo = getOriginalUrlFromCookieOrDefault(context.getRequest());
         removeRedirectCookie(context.getResponse(), context.getRequest().getContextPath());
@@ -28,7 +28,9 @@ import org.sonar.api.server.ServerSide;
 import org.sonar.plugins.cas.logout.CasSonarSignOutInjectorFilter;
 import org.sonar.plugins.cas.logout.LogoutHandler;
 import org.sonar.plugins.cas.session.CasSessionStoreFactory;
+import org.sonar.plugins.cas.session.SessionStoreAdminWs;
 import org.sonar.plugins.cas.session.SessionStoreCleaner;
+import org.sonar.plugins.cas.session.SessionStoreMetricsWs;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -73,7 +75,9 @@ public final class CasPlugin implements Plugin {
         extensions.add(CasTicketValidatorFactory.class);
         extensions.add(CasRestClientFactory.class);
         extensions.add(CasSessionStoreFactory.class);
-        //extensions.add(SessionStoreCleaner.class);
+        extensions.add(SessionStoreMetricsWs.class);
+        extensions.add(SessionStoreAdminWs.class);
+        extensions.add(SessionStoreCleaner.class);
 
         extensions.add(LoginHandler.class);
         extensions.add(LogoutHandler.class);
@@ -90,7 +90,8 @@ public class ForceCasLoginFilter extends ServletFilter {
 
             if (logoutHandler.isUserLoggedOutAndLogsInAgain(request)) {
                 HttpStreams.saveRequestedURLInCookie(request, response, maxRedirectCookieAge);
-                logoutHandler.handleInvalidJwtCookie(request, response);
+                // the JWT was already checked, so don't look it up a second time
+                logoutHandler.removeInvalidJwtCookie(request, response);
                 redirectToLogin(request, response);
             } else {
                 chain.doFilter(request, servletResponse);
@@ -7,6 +7,7 @@ import org.sonar.api.config.Configuration;
 import org.sonar.api.server.ServerSide;
 import org.sonar.plugins.cas.session.CasSessionStore;
 import org.sonar.plugins.cas.session.CasSessionStoreFactory;
+import org.sonar.plugins.cas.session.StoredJwtState;
 import org.sonar.plugins.cas.util.*;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
@@ -66,13 +67,13 @@ public class LogoutHandler {
      * @return true if the user contains a blacklisted JWT cookie AND requests a page other than the login-page
      */
     public boolean isUserLoggedOutAndLogsInAgain(HttpServletRequest request) {
-        boolean shouldUserBeLoggedOut = shouldUserBeLoggedOut(request.getCookies());
         boolean requestToLoginPage = isRequestToLoginPage(request);
         if (requestToLoginPage) {
             LOG.debug("User is already being redirected to the log-in page. Will do nothing.");
+            return false;
         }
 
-        return shouldUserBeLoggedOut && !requestToLoginPage;
+        return shouldUserBeLoggedOut(request.getCookies());
     }
 
     /**
@@ -93,14 +94,25 @@ public class LogoutHandler {
         }
 
         if (isUserLoggedOutAndLogsInAgain(request)) {
-            LOG.debug("User authentication cookies will be removed because an invalid JWT token was found");
-            // Security advice:
-            // Do NOT remove the user's token from the session store. It must stay blacklisted until it is removed
-            // during the expiration date check.
-            removeAuthCookies(response, StringUtils.isBlank(request.getContextPath()) ? "/": request.getContextPath());
+            removeInvalidJwtCookie(request, response);
         }
     }
 
+    /**
+     * Removes the user's authentication cookies without checking the JWT again. This must be called only after
+     * {@link #isUserLoggedOutAndLogsInAgain(HttpServletRequest)} returned <code>true</code> for the same request.
+     *
+     * @param request  the HTTP request is inspected for the context path of the cookies.
+     * @param response the HTTP response that is going to be modified with delete-cookies.
+     */
+    public void removeInvalidJwtCookie(HttpServletRequest request, HttpServletResponse response) {
+        LOG.debug("User authentication cookies will be removed because an invalid JWT token was found");
+        // Security advice:
+        // Do NOT remove the user's token from the session store. It must stay blacklisted until it is removed
+        // during the expiration date check.
+        removeAuthCookies(response, StringUtils.isBlank(request.getContextPath()) ? "/": request.getContextPath());
+    }
+
     private boolean isRequestToLoginPage(HttpServletRequest request) {
         return request.getRequestURL().toString().contains("/sessions/new");
     }
@@ -117,16 +129,14 @@ public class LogoutHandler {
         }
 
         SimpleJwt jwt = JwtProcessor.getJwtTokenFromCookies(cookies);
-
-        boolean isStored = casSessionStore.isJwtStored(jwt);
-        if (!isStored) {
+        if (jwt.isNullObject()) {
             return false;
         }
 
-        SimpleJwt storedJwt = casSessionStore.fetchStoredJwt(jwt);
-        LOG.debug("Is the found JWT token {} invalid? {}", jwt.getJwtId(), storedJwt.isInvalid());
+        StoredJwtState state = casSessionStore.lookupJwt(jwt);
+        LOG.debug("Is the found JWT token {} invalid? {}", jwt.getJwtId(), state);
 
-        return storedJwt.isInvalid();
+        return state == StoredJwtState.INVALIDATED;
     }
 
     private void removeAuthCookies(HttpServletResponse response, String contextPath) {
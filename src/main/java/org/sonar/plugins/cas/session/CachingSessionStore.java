@@ -0,0 +1,183 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class puts a size-bounded, write-through cache in front of another {@link CasSessionStore}.
+ *
+ * <p>The blacklist check in {@link #lookupJwt(SimpleJwt)} is done on every
+ * user request. Once a JWT was read from the underlying store it is answered from memory until it is either evicted
+ * (least recently used entries go first) or until it expires. Expired JWTs are never answered from the cache so the
+ * underlying store stays the single source of truth for JWTs that are subject to removal.
+ * </p>
+ *
+ * <p>All writing operations are passed to the underlying store first. The cache is updated only after the store
+ * successfully persisted the change so both stay coherent. Invalidations and refreshes update a cached entry
+ * atomically, and a refresh keeps the invalid flag of the cached entry. A JWT which was read from the underlying store
+ * while another request logged out is not kept in the cache, because the log-out may have missed the entry.</p>
+ *
+ * <p>The cache only sees changes of this server. Servers which share their session store must not use it.</p>
+ */
+final class CachingSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingSessionStore.class);
+
+    private final CasSessionStore delegate;
+    private final Cache<String, SimpleJwt> cache;
+    private final SessionStoreMetrics metrics;
+    /**
+     * counts the invalidations, so a read from the underlying store can tell whether a log-out raced it
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    CachingSessionStore(CasSessionStore delegate, int maximumSize, SessionStoreMetrics metrics) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be strictly positive");
+        }
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+        this.metrics = metrics;
+        metrics.registerGauge("cache_entries", "JWTs in the CAS session store cache", cache::size);
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        delegate.prepareForWork();
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        Collection<String> evictedJwtIds = delegate.store(ticket, jwt, login);
+        cache.put(jwt.getJwtId(), jwt);
+        markInvalidated(evictedJwtIds);
+
+        return evictedJwtIds;
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        if (getUnexpiredFromCache(jwt.getJwtId()) != null) {
+            return true;
+        }
+
+        return delegate.isJwtStored(jwt);
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        SimpleJwt cached = getUnexpiredFromCache(jwt.getJwtId());
+        if (cached != null) {
+            return cached;
+        }
+
+        long invalidationsBefore = invalidations.get();
+        SimpleJwt stored = delegate.fetchStoredJwt(jwt);
+        if (!stored.isNullObject()) {
+            cache.put(stored.getJwtId(), stored);
+            // an invalidation since the read found no entry to update, so the read JWT might be stale
+            if (invalidations.get() != invalidationsBefore) {
+                cache.asMap().remove(stored.getJwtId(), stored);
+            }
+        }
+
+        return stored;
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        // a miss fills the cache like any other read, so the next blacklist check of this JWT is answered from memory
+        return StoredJwtState.of(fetchStoredJwt(jwt));
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        delegate.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        String jwtId = delegate.invalidateJwt(serviceTicketId);
+        markInvalidated(Collections.singleton(jwtId));
+
+        return jwtId;
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        Collection<String> jwtIds = delegate.invalidateJwtsOfUser(login);
+        markInvalidated(jwtIds);
+
+        return jwtIds;
+    }
+
+    private void markInvalidated(Collection<String> jwtIds) {
+        if (jwtIds.isEmpty()) {
+            return;
+        }
+
+        invalidations.incrementAndGet();
+        for (String jwtId : jwtIds) {
+            cache.asMap().computeIfPresent(jwtId, (id, cached) -> cached.cloneAsInvalidated());
+        }
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        int removed = delegate.removeExpiredEntries();
+
+        for (SimpleJwt cached : cache.asMap().values()) {
+            if (cached.isExpired()) {
+                cache.invalidate(cached.getJwtId());
+            }
+        }
+        cache.cleanUp();
+
+        return removed;
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        delegate.refreshJwt(jwtWithLongerExpirationDate);
+        cache.asMap().computeIfPresent(jwtWithLongerExpirationDate.getJwtId(),
+                (id, cached) -> cached.cloneWithExpirationOf(jwtWithLongerExpirationDate));
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+
+    private SimpleJwt getUnexpiredFromCache(String jwtId) {
+        SimpleJwt cached = cache.getIfPresent(jwtId);
+        if (cached == null) {
+            metrics.recordCacheMiss();
+            return null;
+        }
+
+        if (cached.isExpired()) {
+            LOG.debug("evict expired token {} from session store cache", jwtId);
+            cache.invalidate(jwtId);
+            metrics.recordCacheMiss();
+            return null;
+        }
+
+        metrics.recordCacheHit();
+        return cached;
+    }
+}
@@ -3,6 +3,9 @@ package org.sonar.plugins.cas.session;
 import org.sonar.plugins.cas.util.SimpleJwt;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Consumer;
 
 /**
  * This interface provides methods for storing JWT tokens and CAS tickets for a sustained authentication safety.
@@ -19,8 +22,9 @@ import java.io.IOException;
  * <h2>Speed of authentication check for requested resources</h2>
  *
  * <p>
- * In terms of {@link #fetchStoredJwt(SimpleJwt)}, implementations should go great lengths to return as fast as possible
- * because this method is going to be called at each user request.
+ * In terms of {@link #lookupJwt(SimpleJwt)}, implementations should go great lengths to return as fast as possible
+ * because this method is going to be called at each user request. It must answer with a single access to the
+ * underlying storage.
  * </p>
  *
  * <h2>JWT invalidation versus removal</h2>
@@ -69,6 +73,24 @@ public interface CasSessionStore {
      */
     void store(String ticket, SimpleJwt jwt);
 
+    /**
+     * Stores a CAS granting ticket and the associated JWT token like {@link #store(String, SimpleJwt)} and records the
+     * login of the user who owns the session, so {@link #invalidateJwtsOfUser(String)} finds the session.
+     *
+     * <p>Implementations may limit the number of sessions in total or per user. Once a limit is exceeded they must
+     * invalidate the oldest sessions instead of removing them, so the evicted JWTs stay blacklisted until they expire.
+     * The default implementation ignores the login and never evicts a session.</p>
+     *
+     * @param ticket the CAS granting ticket ID
+     * @param jwt    the JWT token ID
+     * @param login  the login of the authenticated user
+     * @return the IDs of the JWTs which were invalidated to make room for the new session
+     */
+    default Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        store(ticket, jwt);
+        return Collections.emptyList();
+    }
+
     /**
      * Returns <code>true</code> when the JWT is maintained by the session writeJwtFile.
      *
@@ -83,10 +105,43 @@ public interface CasSessionStore {
      * <p>This method is used for quick check if the user is authenticated for any requested resource. </p>
      *
      * @param jwt the JWT as created from the user's cookie
-     * @return the currently stored JWT.
+     * @return the currently stored JWT, or the {@link SimpleJwt#getNullObject() null object} if the JWT is not stored.
      */
     SimpleJwt fetchStoredJwt(SimpleJwt jwt);
 
+    /**
+     * Returns whether the JWT is stored and whether it is still valid or was invalidated during log-out.
+     *
+     * <p>This method replaces calling {@link #isJwtStored(SimpleJwt)} and {@link #fetchStoredJwt(SimpleJwt)} one
+     * after another and answers the blacklisting check with a single store access. Stores which only keep track of
+     * invalidated JWTs may answer an unknown JWT as {@link StoredJwtState#VALID}.</p>
+     *
+     * @param jwt the JWT as created from the user's cookie
+     * @return the state of the stored JWT.
+     */
+    StoredJwtState lookupJwt(SimpleJwt jwt);
+
+    /**
+     * Returns <code>true</code> if the JWT is stored and was invalidated during log-out. This is the blacklist check
+     * which is done on every user request. It is answered by {@link #lookupJwt(SimpleJwt)} so implementations only
+     * speed up that method.
+     *
+     * @param jwt the JWT as created from the user's cookie
+     * @return <code>true</code> if the JWT was invalidated, otherwise <code>false</code>.
+     */
+    default boolean isJwtInvalidated(SimpleJwt jwt) {
+        return lookupJwt(jwt) == StoredJwtState.INVALIDATED;
+    }
+
+    /**
+     * Passes every stored JWT to the consumer. This method reads the whole store and is meant for rare tasks like
+     * building in-memory structures during start-up, not for the handling of user requests. Implementations may read
+     * the store in parallel and call the consumer from several threads at once.
+     *
+     * @param consumer receives each stored JWT exactly once. Must be thread-safe.
+     */
+    void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException;
+
     /**
      * Render an existing JWT invalid which is identified by the granting ticket and writeJwtFile it back in the session writeJwtFile.
      *
@@ -95,6 +150,20 @@ public interface CasSessionStore {
      */
     String invalidateJwt(String serviceTicketId);
 
+    /**
+     * Renders all stored JWTs of a user invalid, f. i. after the user's account was deactivated or compromised. Like
+     * {@link #invalidateJwt(String)} the invalidated JWTs stay stored until they expire. Implementations should find
+     * the user's sessions with an index, so the effort grows with the number of the user's sessions only, and write
+     * all invalidated JWTs at once.
+     *
+     * @param login the login of the user as given to {@link #store(String, SimpleJwt, String)}
+     * @return the IDs of the JWTs which were invalidated by this call
+     * @throws UnsupportedOperationException if the implementation does not record the logins of its sessions
+     */
+    default Collection<String> invalidateJwtsOfUser(String login) {
+        throw new UnsupportedOperationException("This CAS session store does not record the users of its sessions");
+    }
+
     /**
      * Removes all expires JWT tokens and service tickets in order to release allocated resources.
      *
@@ -103,9 +172,38 @@ public interface CasSessionStore {
     int removeExpiredEntries();
 
     /**
-     * Updates the writeJwtFile with an update JWT which contains a newer expiration date.
+     * Updates the writeJwtFile with an update JWT which contains a newer expiration date. Implementations must keep a
+     * stored JWT invalid, even if the refreshed JWT is valid, see {@link SimpleJwt#cloneWithExpirationOf(SimpleJwt)}.
      *
      * @param jwtWithLongerExpirationDate the new JWT object
      */
     void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException;
+
+    /**
+     * Releases resources like open files or background threads during server shut down. Implementations should make
+     * sure that all accepted changes are persisted once this method returns.
+     */
+    void shutdown() throws IOException;
+
+    /**
+     * Returns the statistics of the stored sessions. Implementations keep them up to date with each change so reading
+     * them does not access the underlying storage. Session stores which wrap another store do not need to implement
+     * this method, the statistics are taken from the innermost store.
+     *
+     * @return the statistics, or <code>null</code> if the implementation does not keep statistics.
+     */
+    default SessionStatistics getStatistics() {
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if the last {@link #removeExpiredEntries()} stopped before all expired entries were
+     * removed, f. i. because its time budget was used up. Like {@link #getStatistics()} this is taken from the innermost
+     * store, so session stores which wrap another store do not need to implement this method.
+     *
+     * @return <code>true</code> if expired entries are left for the next clean up
+     */
+    default boolean isCleanUpPending() {
+        return false;
+    }
 }
@@ -5,28 +5,278 @@ import org.slf4j.LoggerFactory;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.platform.Server;
 import org.sonar.api.platform.ServerStartHandler;
+import org.sonar.api.platform.ServerStopHandler;
 import org.sonar.api.server.ServerSide;
 import org.sonar.plugins.cas.util.SonarCasProperties;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 @ServerSide
-public class CasSessionStoreFactory implements ServerStartHandler {
+public class CasSessionStoreFactory implements ServerStartHandler, ServerStopHandler {
     private static final Logger LOG = LoggerFactory.getLogger(CasSessionStoreFactory.class);
+    private static final int SESSION_STORE_CACHE_SIZE_DEFAULT = 10_000;
+    private static final int SESSION_STORE_CACHE_DISABLED = 0;
+    private static final int SESSION_STORE_WRITE_BEHIND_QUEUE_SIZE_DEFAULT = 10_000;
+    private static final int SESSION_STORE_WRITE_BEHIND_DISABLED = 0;
+    private static final int SESSION_STORE_WRITE_BEHIND_FLUSH_INTERVAL_IN_MILLIS_DEFAULT = 1000;
+    private static final int SESSION_STORE_REFRESH_MIN_EXTENSION_IN_SECS_DEFAULT = (int) TimeUnit.HOURS.toSeconds(1);
+    private static final int SESSION_STORE_REFRESH_SUPPRESSION_DISABLED = 0;
+    private static final int SESSION_STORE_REFRESH_SAFETY_MARGIN_IN_SECS_DEFAULT = (int) TimeUnit.MINUTES.toSeconds(5);
+    private static final int SESSION_STORE_MIGRATION_BATCH_SIZE_DEFAULT = 200;
+    private final SessionStoreMetrics metrics = new SessionStoreMetrics();
     private final CasSessionStore impl;
+    private final SessionStatistics statistics;
+    /**
+     * the store below the in-memory wrappers like the cache, it knows whether its last clean up was complete
+     */
+    private final CasSessionStore persistentStore;
 
     /** called with injection by SonarQube during server initialization */
     public CasSessionStoreFactory(Configuration configuration) {
-        String sessionStorePath = SonarCasProperties.SESSION_STORE_PATH.mustGetString(configuration);
+        this(configuration, loadProviders());
+    }
+
+    CasSessionStoreFactory(Configuration configuration, Map<String, CasSessionStoreProvider> providers) {
+        String type = SonarCasProperties.SESSION_STORE_TYPE.getString(configuration, FileSessionStoreProvider.TYPE);
+        CasSessionStoreProvider provider = providers.get(type);
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown CAS session store type '" + type + "'. Please configure "
+                    + SonarCasProperties.SESSION_STORE_TYPE + " with one of: " + String.join(", ", providers.keySet()));
+        }
+
+        CasSessionStoreProvider shadowProvider = getShadowProvider(configuration, type, providers);
+
+        LOG.debug("creating instance of CAS {} session store implementation with {}", type, provider.getClass().getName());
+        warnAboutPropertiesOfOtherTypes(configuration, provider, shadowProvider, providers.values());
+        CasSessionStore store = provider.create(configuration);
+        store = withMigration(store, type, configuration, metrics);
+        store = withShadow(store, shadowProvider, configuration, metrics);
+        statistics = store.getStatistics();
+        persistentStore = store;
+        registerStatisticsGauges(statistics, metrics);
+
+        int writeBehindQueueSize = SonarCasProperties.SESSION_STORE_WRITE_BEHIND_QUEUE_SIZE.getInteger(configuration,
+                SESSION_STORE_WRITE_BEHIND_QUEUE_SIZE_DEFAULT);
+        int flushIntervalInMillis = SonarCasProperties.SESSION_STORE_WRITE_BEHIND_FLUSH_INTERVAL_IN_MILLIS.getInteger(
+                configuration, SESSION_STORE_WRITE_BEHIND_FLUSH_INTERVAL_IN_MILLIS_DEFAULT);
+        store = withWriteBehind(store, writeBehindQueueSize, flushIntervalInMillis, metrics);
+
+        int minExtensionInSecs = SonarCasProperties.SESSION_STORE_REFRESH_MIN_EXTENSION_IN_SECS.getInteger(configuration,
+                SESSION_STORE_REFRESH_MIN_EXTENSION_IN_SECS_DEFAULT);
+        int safetyMarginInSecs = SonarCasProperties.SESSION_STORE_REFRESH_SAFETY_MARGIN_IN_SECS.getInteger(configuration,
+                SESSION_STORE_REFRESH_SAFETY_MARGIN_IN_SECS_DEFAULT);
+        store = withRefreshSuppression(store, minExtensionInSecs, safetyMarginInSecs);
+
+        // other servers may invalidate JWTs in a shared database which a local revocation set would never see
+        boolean revocationSetEnabled = SonarCasProperties.SESSION_STORE_REVOCATION_SET.getBoolean(configuration,
+                !JdbcSessionStoreProvider.TYPE.equals(type));
+        boolean asyncWarmUp = SonarCasProperties.SESSION_STORE_ASYNC_WARM_UP.getBoolean(configuration, true);
+        store = withRevocationSet(store, revocationSetEnabled, asyncWarmUp, metrics);
+
+        // like the revocation set, the cache would keep answering JWTs as valid which another server invalidated
+        int cacheSizeDefault = JdbcSessionStoreProvider.TYPE.equals(type)
+                ? SESSION_STORE_CACHE_DISABLED
+                : SESSION_STORE_CACHE_SIZE_DEFAULT;
+        int cacheSize = SonarCasProperties.SESSION_STORE_CACHE_SIZE.getInteger(configuration, cacheSizeDefault);
+        store = withCache(store, cacheSize, metrics);
+
+        impl = new InstrumentedSessionStore(store, metrics);
+    }
+
+    /**
+     * Discovers all session store providers on the plugin class path, keyed and sorted by their type.
+     */
+    static Map<String, CasSessionStoreProvider> loadProviders() {
+        Map<String, CasSessionStoreProvider> providers = new TreeMap<>();
+        ClassLoader classLoader = CasSessionStoreFactory.class.getClassLoader();
+        for (CasSessionStoreProvider provider : ServiceLoader.load(CasSessionStoreProvider.class, classLoader)) {
+            CasSessionStoreProvider previous = providers.put(provider.getType(), provider);
+            if (previous != null) {
+                LOG.warn("CAS session store type '{}' is provided by both {} and {}. Using the latter.",
+                        provider.getType(), previous.getClass().getName(), provider.getClass().getName());
+            }
+        }
+
+        return providers;
+    }
+
+    /**
+     * Returns the provider of the shadow session store, or <code>null</code> if no shadow session store is configured.
+     */
+    private static CasSessionStoreProvider getShadowProvider(Configuration configuration, String type,
+                                                             Map<String, CasSessionStoreProvider> providers) {
+        String shadowType = SonarCasProperties.SESSION_STORE_SHADOW_TYPE.getString(configuration, null);
+        if (shadowType == null) {
+            return null;
+        }
+
+        CasSessionStoreProvider shadowProvider = providers.get(shadowType);
+        if (shadowProvider == null) {
+            throw new IllegalArgumentException("Unknown CAS session store type '" + shadowType + "'. Please configure "
+                    + SonarCasProperties.SESSION_STORE_SHADOW_TYPE + " with one of: "
+                    + String.join(", ", providers.keySet()));
+        }
+        // both stores would read the same properties and thus share their storage
+        if (shadowType.equals(type)) {
+            throw new IllegalArgumentException("The CAS session store cannot shadow itself. Please configure "
+                    + SonarCasProperties.SESSION_STORE_SHADOW_TYPE + " with another type than " + type + ".");
+        }
+
+        return shadowProvider;
+    }
+
+    /**
+     * Warns about configured properties which only other session store types read, because the administrator most
+     * likely expects them to have an effect.
+     *
+     * @param shadow the provider of the shadow session store, or <code>null</code>
+     */
+    private static void warnAboutPropertiesOfOtherTypes(Configuration configuration, CasSessionStoreProvider selected,
+                                                        CasSessionStoreProvider shadow,
+                                                        Collection<CasSessionStoreProvider> providers) {
+        Set<String> ignoredKeys = new TreeSet<>();
+        for (CasSessionStoreProvider provider : providers) {
+            ignoredKeys.addAll(provider.getPropertyKeys());
+        }
+        ignoredKeys.removeAll(selected.getPropertyKeys());
+        if (shadow != null) {
+            ignoredKeys.removeAll(shadow.getPropertyKeys());
+        }
+
+        for (String key : ignoredKeys) {
+            if (configuration.hasKey(key)) {
+                LOG.warn("Property {} is ignored by the CAS {} session store", key, selected.getType());
+            }
+        }
+    }
+
+    private static void registerStatisticsGauges(SessionStatistics statistics, SessionStoreMetrics metrics) {
+        if (statistics == null) {
+            LOG.debug("CAS session store does not keep session statistics");
+            return;
+        }
+
+        metrics.registerGauge("active_sessions", "Sessions which are neither invalidated nor expired",
+                () -> statistics.snapshot().getActiveSessions());
+        metrics.registerGauge("invalidated_sessions", "Sessions which were logged out but are not expired yet",
+                () -> statistics.snapshot().getInvalidatedSessions());
+        metrics.registerGauge("expired_sessions", "Expired sessions which were not removed yet",
+                () -> statistics.snapshot().getExpiredSessions());
+        metrics.registerGauge("bytes_on_disk", "Size of all session files in bytes",
+                () -> statistics.snapshot().getBytesOnDisk());
+    }
+
+    private static CasSessionStore withMigration(CasSessionStore store, String type, Configuration configuration,
+                                                 SessionStoreMetrics metrics) {
+        String sourcePath = SonarCasProperties.SESSION_STORE_MIGRATION_SOURCE_PATH.getString(configuration, null);
+        if (sourcePath == null) {
+            return store;
+        }
+        if (FileSessionStoreProvider.TYPE.equals(type) && Paths.get(sourcePath).equals(
+                Paths.get(SonarCasProperties.SESSION_STORE_PATH.mustGetString(configuration)))) {
+            throw new IllegalArgumentException("The CAS session store cannot be migrated into itself. Please configure "
+                    + SonarCasProperties.SESSION_STORE_MIGRATION_SOURCE_PATH + " with the directory of the old "
+                    + "session store.");
+        }
 
-        LOG.debug("creating instance of CAS file session writeJwtFile implementation");
-        impl = new FileSessionStore(sessionStorePath);
+        int batchSize = SonarCasProperties.SESSION_STORE_MIGRATION_BATCH_SIZE.getInteger(configuration,
+                SESSION_STORE_MIGRATION_BATCH_SIZE_DEFAULT);
+        LOG.debug("creating CAS session store migration from {} in batches of {} sessions", sourcePath, batchSize);
+        FileSessionStore source = new FileSessionStoreProvider().create(configuration, sourcePath);
+        return new MigratingSessionStore(store, source, batchSize, metrics);
+    }
+
+    private static CasSessionStore withShadow(CasSessionStore store, CasSessionStoreProvider shadowProvider,
+                                              Configuration configuration, SessionStoreMetrics metrics) {
+        if (shadowProvider == null) {
+            return store;
+        }
+
+        LOG.debug("creating shadow CAS {} session store with {}", shadowProvider.getType(),
+                shadowProvider.getClass().getName());
+        CasSessionStore shadow = shadowProvider.create(configuration);
+        return new ShadowSessionStore(store, shadow, shadowProvider.getType(), metrics);
+    }
+
+    private static CasSessionStore withWriteBehind(CasSessionStore store, int queueSize, int flushIntervalInMillis,
+                                                   SessionStoreMetrics metrics) {
+        if (queueSize <= SESSION_STORE_WRITE_BEHIND_DISABLED) {
+            LOG.debug("CAS session store write-behind of JWT refreshes is disabled");
+            return store;
+        }
+
+        LOG.debug("creating CAS session store write-behind queue for up to {} JWT refreshes", queueSize);
+        return new WriteBehindSessionStore(store, queueSize, flushIntervalInMillis, metrics);
+    }
+
+    private static CasSessionStore withRefreshSuppression(CasSessionStore store, int minExtensionInSecs,
+                                                          int safetyMarginInSecs) {
+        if (minExtensionInSecs <= SESSION_STORE_REFRESH_SUPPRESSION_DISABLED) {
+            LOG.debug("CAS session store writes every JWT refresh");
+            return store;
+        }
+
+        LOG.debug("CAS session store extends refreshed JWTs by {} seconds and writes them again {} seconds before",
+                minExtensionInSecs, safetyMarginInSecs);
+        return new RefreshSuppressingSessionStore(store, minExtensionInSecs, safetyMarginInSecs);
+    }
+
+    private static CasSessionStore withRevocationSet(CasSessionStore store, boolean enabled, boolean asyncWarmUp,
+                                                     SessionStoreMetrics metrics) {
+        if (!enabled) {
+            LOG.debug("CAS session store revocation set is disabled");
+            return store;
+        }
+
+        LOG.debug("creating CAS session store revocation set");
+        return new RevocationSetSessionStore(store, asyncWarmUp, metrics);
+    }
+
+    private static CasSessionStore withCache(CasSessionStore store, int cacheSize, SessionStoreMetrics metrics) {
+        if (cacheSize <= SESSION_STORE_CACHE_DISABLED) {
+            LOG.debug("CAS session store cache is disabled");
+            return store;
+        }
+
+        LOG.debug("creating CAS session store cache for up to {} entries", cacheSize);
+        return new CachingSessionStore(store, cacheSize, metrics);
     }
 
     public CasSessionStore getInstance() {
         return impl;
     }
 
+    /**
+     * Returns the statistics of the stored sessions, or <code>null</code> if the configured session store does not
+     * keep statistics.
+     */
+    public SessionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns <code>true</code> if the last clean up of the session store left expired entries behind, f. i. because
+     * it used up its time budget.
+     */
+    public boolean isCleanUpPending() {
+        return persistentStore.isCleanUpPending();
+    }
+
+    /**
+     * Returns the metrics of all session store operations.
+     */
+    public SessionStoreMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void onServerStart(Server server) {
         try {
@@ -36,6 +286,15 @@ public class CasSessionStoreFactory implements ServerStartHandler {
         }
     }
 
+    @Override
+    public void onServerStop(Server server) {
+        try {
+            impl.shutdown();
+        } catch (Exception e) {
+            LOG.error("Could not shut down CAS session store", e);
+        }
+    }
+
     private class CasSessionStoreInitializationException extends RuntimeException {
         private CasSessionStoreInitializationException(IOException e) {
             super("Could not prepare CAS session writeJwtFile for work.", e);
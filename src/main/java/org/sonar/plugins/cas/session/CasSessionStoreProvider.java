@@ -0,0 +1,39 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+
+import java.util.List;
+
+/**
+ * This interface is the service provider interface for CAS session store implementations.
+ *
+ * <p>{@link CasSessionStoreFactory} discovers all providers with {@link java.util.ServiceLoader}, so a new backend only
+ * needs to implement this interface and list its provider class in
+ * <code>META-INF/services/org.sonar.plugins.cas.session.CasSessionStoreProvider</code>. The provider whose
+ * {@link #getType() type} matches <code>sonar.cas.sessionStore.type</code> creates the session store. The created store
+ * is prepared with {@link CasSessionStore#prepareForWork()} during server start-up and must not touch its storage
+ * earlier.</p>
+ *
+ * <p>Implementations must be public and have a public no-argument constructor.</p>
+ */
+public interface CasSessionStoreProvider {
+    /**
+     * Returns the value of <code>sonar.cas.sessionStore.type</code> which selects this session store, f. i.
+     * <code>file</code>.
+     */
+    String getType();
+
+    /**
+     * Returns the keys of all properties which configure this session store. Properties which are shared by all session
+     * stores (like the cache size) must not be listed.
+     */
+    List<String> getPropertyKeys();
+
+    /**
+     * Creates a new session store from the given configuration.
+     *
+     * @param configuration the SonarQube configuration object holds all configured properties
+     * @return a new session store which is not yet prepared for work
+     */
+    CasSessionStore create(Configuration configuration);
+}
@@ -0,0 +1,50 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the time and the delete rate of a single clean up run of the {@link FileSessionStore}.
+ *
+ * <p>A clean up run after a long downtime may find hundreds of thousands of expired files. Deleting them in one burst
+ * saturates the disk which SonarQube shares with other services. With a budget the run deletes at most the given number
+ * of files per second and stops once its time is up. The expiry bucket index keeps the remaining expired sessions, so
+ * the next run continues with the oldest remaining bucket.</p>
+ *
+ * <p>Instances are thread-safe and shared by all clean up threads of a run.</p>
+ */
+final class CleanUpBudget {
+    static final int UNLIMITED = 0;
+
+    private final long deadlineInNanos;
+    private final RateLimiter deleteRateLimiter;
+
+    /**
+     * @param timeBudgetInSecs  the maximum run time of the clean up run, or {@link #UNLIMITED}
+     * @param deletesPerSecond  the maximum number of file deletions per second, or {@link #UNLIMITED}
+     */
+    CleanUpBudget(int timeBudgetInSecs, int deletesPerSecond) {
+        this.deadlineInNanos = timeBudgetInSecs <= UNLIMITED
+                ? Long.MAX_VALUE
+                : System.nanoTime() + TimeUnit.SECONDS.toNanos(timeBudgetInSecs);
+        this.deleteRateLimiter = deletesPerSecond <= UNLIMITED ? null : RateLimiter.create(deletesPerSecond);
+    }
+
+    /**
+     * Returns <code>true</code> once the time budget of the run is used up. Clean up threads must not start new work
+     * afterwards.
+     */
+    boolean isExhausted() {
+        return deadlineInNanos != Long.MAX_VALUE && System.nanoTime() - deadlineInNanos >= 0;
+    }
+
+    /**
+     * Waits until the delete rate allows the next file deletion.
+     */
+    void acquireDelete() {
+        if (deleteRateLimiter != null) {
+            deleteRateLimiter.acquire();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * This class maintains a side index of the {@link FileSessionStore} which groups sessions by the time window in which
+ * their JWT expires.
+ *
+ * <p>Each time window (a bucket) is a directory below <code>expiry</code> which is named after the epoch second the
+ * window starts. A session is represented by an empty marker file in the bucket of its JWT expiration. The marker file
+ * is named after the JWT ID. If the user of the session is known, the JWT ID is followed by the user's hash in the
+ * {@link UserSessionIndex} (<code>&lt;JWT ID&gt;.&lt;user hash&gt;</code>). The service ticket is only kept in the JWT
+ * file: service tickets may be long, and a marker name with the ticket could exceed the file name limit of the file
+ * system.</p>
+ *
+ * <p>Markers of earlier plugin versions carry the service ticket as well
+ * (<code>&lt;JWT ID&gt;.&lt;user hash&gt;_&lt;service ticket&gt;</code>) and are still understood.</p>
+ */
+class ExpiryBucketIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiryBucketIndex.class);
+    static final long BUCKET_WIDTH_IN_SECS = TimeUnit.HOURS.toSeconds(1);
+    private static final String INDEX_DIR = "expiry";
+    /**
+     * marks that all JWT files which were written before the index existed were added to the index
+     */
+    private static final String BACKFILLED_MARKER = ".backfilled";
+    private static final char TICKET_SEPARATOR = '_';
+    private static final char USER_SEPARATOR = '.';
+
+    private final Path indexDir;
+
+    ExpiryBucketIndex(String sessionStorePath) {
+        this.indexDir = Paths.get(sessionStorePath, INDEX_DIR);
+    }
+
+    void prepareForWork() throws IOException {
+        Files.createDirectories(indexDir);
+    }
+
+    /**
+     * Adds the session to the bucket of the JWT's expiration. Adding an already indexed session does nothing.
+     *
+     * @param userHash the hash of the session's user. May be <code>null</code> if unknown.
+     */
+    void add(SimpleJwt jwt, String userHash) throws IOException {
+        Path bucket = getBucketDir(jwt.getExpiration());
+        Files.createDirectories(bucket);
+
+        try {
+            Files.createFile(bucket.resolve(toMarkerName(jwt.getJwtId(), userHash)));
+        } catch (FileAlreadyExistsException e) {
+            LOG.debug("JWT {} is already indexed in expiry bucket {}", jwt.getJwtId(), bucket.getFileName());
+        }
+    }
+
+    /**
+     * Moves the session to another bucket if the new expiration falls into a different time window. A marker of an
+     * earlier plugin version stays in the old bucket and is dropped by the clean-up as the marker of a refreshed JWT.
+     */
+    void move(String jwtId, String userHash, Instant oldExpiration, Instant newExpiration) throws IOException {
+        Path oldBucket = getBucketDir(oldExpiration);
+        Path newBucket = getBucketDir(newExpiration);
+        if (oldBucket.equals(newBucket)) {
+            return;
+        }
+
+        add(SimpleJwt.fromIdAndExpiration(jwtId, newExpiration.getEpochSecond()), userHash);
+        Files.deleteIfExists(oldBucket.resolve(toMarkerName(jwtId, userHash)));
+    }
+
+    boolean isBackfilled() {
+        return Files.exists(indexDir.resolve(BACKFILLED_MARKER));
+    }
+
+    void markBackfilled() throws IOException {
+        try {
+            Files.createFile(indexDir.resolve(BACKFILLED_MARKER));
+        } catch (FileAlreadyExistsException e) {
+            LOG.debug("Expiry bucket index was already marked as backfilled");
+        }
+    }
+
+    /**
+     * Returns all buckets whose time window ended before <code>now</code>, the oldest bucket first. Every JWT in these
+     * buckets is expired.
+     */
+    List<Path> findPassedBuckets(Instant now) throws IOException {
+        return findBuckets(bucketStart -> bucketStart + BUCKET_WIDTH_IN_SECS <= now.getEpochSecond());
+    }
+
+    /**
+     * Returns all buckets whose time window did not end before <code>now</code>, the oldest bucket first. These
+     * buckets contain the sessions which may still be in use, ordered by the time they expire.
+     */
+    List<Path> findPendingBuckets(Instant now) throws IOException {
+        return findBuckets(bucketStart -> bucketStart + BUCKET_WIDTH_IN_SECS > now.getEpochSecond());
+    }
+
+    private List<Path> findBuckets(LongPredicate bucketStartFilter) throws IOException {
+        List<Path> found = new ArrayList<>();
+        if (!Files.isDirectory(indexDir)) {
+            return found;
+        }
+
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(indexDir, Files::isDirectory)) {
+            for (Path bucket : buckets) {
+                long bucketStart = parseBucketStart(bucket);
+                if (bucketStart >= 0 && bucketStartFilter.test(bucketStart)) {
+                    found.add(bucket);
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(ExpiryBucketIndex::parseBucketStart));
+
+        return found;
+    }
+
+    /**
+     * Returns the markers of all sessions in the bucket. The list may contain sessions which were moved to another
+     * bucket or removed during the listing.
+     */
+    List<Path> findMarkers(Path bucket) throws IOException {
+        List<Path> markers = new ArrayList<>();
+        try (DirectoryStream<Path> bucketMarkers = Files.newDirectoryStream(bucket)) {
+            for (Path marker : bucketMarkers) {
+                markers.add(marker);
+            }
+        } catch (NoSuchFileException e) {
+            LOG.debug("Expiry bucket {} was removed in the meantime", bucket.getFileName());
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return markers;
+    }
+
+    /**
+     * Returns the JWT ID which is encoded in the given marker file name.
+     */
+    static String getJwtId(Path marker) {
+        String session = getSessionPart(marker);
+        int separator = session.indexOf(USER_SEPARATOR);
+
+        return separator < 0 ? session : session.substring(0, separator);
+    }
+
+    /**
+     * Returns the user hash which is encoded in the given marker file name, or <code>null</code> if the user is
+     * unknown.
+     */
+    static String getUserHash(Path marker) {
+        String session = getSessionPart(marker);
+        int separator = session.indexOf(USER_SEPARATOR);
+
+        return separator < 0 ? null : session.substring(separator + 1);
+    }
+
+    /**
+     * Returns the part of the marker file name before the service ticket of an earlier plugin version.
+     */
+    private static String getSessionPart(Path marker) {
+        String name = marker.getFileName().toString();
+        int separator = name.indexOf(TICKET_SEPARATOR);
+
+        return separator < 0 ? name : name.substring(0, separator);
+    }
+
+    /**
+     * Returns the service ticket which is encoded in the marker file name of an earlier plugin version, or
+     * <code>null</code> if the marker does not carry a service ticket.
+     */
+    static String getServiceTicket(Path marker) {
+        String name = marker.getFileName().toString();
+        int separator = name.indexOf(TICKET_SEPARATOR);
+
+        return separator < 0 ? null : name.substring(separator + 1);
+    }
+
+    private Path getBucketDir(Instant expiration) {
+        long epochSecond = expiration.getEpochSecond();
+        long bucketStart = epochSecond - Math.floorMod(epochSecond, BUCKET_WIDTH_IN_SECS);
+
+        return indexDir.resolve(Long.toString(bucketStart));
+    }
+
+    private static String toMarkerName(String jwtId, String userHash) {
+        return userHash == null ? jwtId : jwtId + USER_SEPARATOR + userHash;
+    }
+
+    private static long parseBucketStart(Path bucket) {
+        try {
+            return Long.parseLong(bucket.getFileName().toString());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring unexpected directory {} in expiry bucket index", bucket);
+            return -1;
+        }
+    }
+}
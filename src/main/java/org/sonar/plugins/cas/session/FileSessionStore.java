@@ -1,38 +1,126 @@
 package org.sonar.plugins.cas.session;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.JwtFile;
+import org.sonar.plugins.cas.util.JwtFiles;
 import org.sonar.plugins.cas.util.SimpleJwt;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public final class FileSessionStore implements CasSessionStore {
     private static final Logger LOG = LoggerFactory.getLogger(FileSessionStore.class);
+    private static final String STATISTICS_CHECKPOINT = ".statistics";
+    private static final int JWT_LOCK_STRIPES = 64;
+    private static final int USER_LOCK_STRIPES = 64;
+    static final int UNLIMITED = 0;
+    /**
+     * a full session store evicts this share of its capacity in addition, so not every following login has to search
+     * for the oldest sessions again
+     */
+    private static final int EVICTION_HEADROOM_DIVISOR = 100;
     private final String sessionStorePath;
+    private final int cleanUpBatchSize;
+    private final int cleanUpParallelism;
+    private final int cleanUpTimeBudgetInSecs;
+    private final int cleanUpDeletesPerSecond;
+    private final int maxSessions;
+    private final int maxSessionsPerUser;
+    private ExecutorService cleanUpExecutor;
 
     /**
      * This map provides the CAS plugin with information about a JWT's validity. This collection is hit on every Sonar
      * request and must be super-fast.
      */
     private SessionFileHandler fileHandler;
+    private final SessionFileWriter fileWriter;
+    private final ExpiryBucketIndex expiryIndex;
+    private final UserSessionIndex userIndex;
+    /**
+     * serializes the read-modify-write cycles of invalidations and refreshes of the same JWT, so a refresh never
+     * overwrites a concurrent invalidation with a valid JWT. The clean-up takes the same lock before it removes a JWT.
+     */
+    private final Striped<Lock> jwtLocks = Striped.lock(JWT_LOCK_STRIPES);
+    /**
+     * serializes the evictions of the same user, so concurrent logins do not evict more sessions than necessary
+     */
+    private final Striped<Lock> userLocks = Striped.lock(USER_LOCK_STRIPES);
+    /**
+     * serializes the evictions which keep the session store within its capacity
+     */
+    private final Object evictionLock = new Object();
+    private volatile boolean cleanUpPending;
+    private final SessionStatistics statistics = new SessionStatistics();
+    private final Path statisticsCheckpoint;
 
     /**
      * default visibility constructor for testing
+     *
+     * @param maxSessions        the maximum number of active sessions, or {@link #UNLIMITED}
+     * @param maxSessionsPerUser the maximum number of active sessions of a single user, or {@link #UNLIMITED}
      */
-    FileSessionStore(String sessionStorePath) {
+    FileSessionStore(String sessionStorePath, int cleanUpBatchSize, int cleanUpParallelism, int cleanUpTimeBudgetInSecs,
+                     int cleanUpDeletesPerSecond, SessionFileWriter.Durability durability, long groupCommitIntervalInMillis,
+                     int maxSessions, int maxSessionsPerUser) {
         this.sessionStorePath = sessionStorePath;
-        this.fileHandler = new SessionFileHandler(sessionStorePath);
+        this.cleanUpBatchSize = cleanUpBatchSize;
+        this.cleanUpParallelism = cleanUpParallelism;
+        this.cleanUpTimeBudgetInSecs = cleanUpTimeBudgetInSecs;
+        this.cleanUpDeletesPerSecond = cleanUpDeletesPerSecond;
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.fileWriter = new SessionFileWriter(sessionStorePath, durability, groupCommitIntervalInMillis);
+        this.fileHandler = new SessionFileHandler(sessionStorePath, fileWriter);
+        this.expiryIndex = new ExpiryBucketIndex(sessionStorePath);
+        this.userIndex = new UserSessionIndex(sessionStorePath);
+        this.statisticsCheckpoint = Paths.get(sessionStorePath, STATISTICS_CHECKPOINT);
     }
 
     public void prepareForWork() {
         try {
             createSessionDirectory();
+            fileWriter.prepareForWork();
+            restoreStatistics();
         } catch (IOException e) {
             throw new CasInitializationException(e);
         }
+
+        cleanUpExecutor = createCleanUpExecutor();
+    }
+
+    private ExecutorService createCleanUpExecutor() {
+        if (cleanUpParallelism <= 1) {
+            return MoreExecutors.sameThreadExecutor();
+        }
+
+        LOG.debug("CAS session store clean up runs with {} threads", cleanUpParallelism);
+        return Executors.newFixedThreadPool(cleanUpParallelism, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-store-cleanup-%d")
+                .build());
     }
 
     private void createSessionDirectory() throws IOException {
@@ -40,17 +128,150 @@ public final class FileSessionStore implements CasSessionStore {
         LOG.info("Creating CAS session writeJwtFile with path {}", sessionStoreDir.toString());
 
         Files.createDirectories(sessionStoreDir);
+        expiryIndex.prepareForWork();
+        userIndex.prepareForWork();
     }
 
     public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
         LOG.debug("writeJwtFile ticket {} to token {}", ticket, jwt.getJwtId());
+        String userHash = UserSessionIndex.toUserHash(login);
         try {
-            fileHandler.createServiceTicketFile(ticket, jwt);
-            fileHandler.writeJwtFile(jwt.getJwtId(), jwt);
+            // the indexes go first, then the JWT file which references the service ticket: this way the clean-up finds
+            // all files of this session even if the server stops in between
+            if (userHash != null) {
+                userIndex.add(userHash, jwt.getJwtId());
+            }
+            expiryIndex.add(jwt, userHash);
+            long bytes = fileHandler.writeJwtFile(jwt.getJwtId(), jwt, ticket, login);
+            bytes += fileHandler.createServiceTicketFile(ticket, jwt);
+            statistics.sessionStored(jwt, bytes);
         } catch (IOException e) {
             LOG.error("Could not writeJwtFile JWT " + jwt.getJwtId() + "to storage path.", e);
             throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
         }
+
+        return evictSessions(jwt.getJwtId(), login, userHash);
+    }
+
+    /**
+     * Invalidates the oldest sessions once the new session exceeds the capacity of its user or of the session store.
+     * The evicted JWTs stay stored until they expire, so they remain blacklisted. A failed eviction does not fail the
+     * login, the next login tries again.
+     */
+    private Collection<String> evictSessions(String newJwtId, String login, String userHash) {
+        List<String> evicted = new ArrayList<>();
+        try {
+            if (maxSessionsPerUser > UNLIMITED && userHash != null) {
+                evicted.addAll(evictSessionsOfUser(newJwtId, login, userHash));
+            }
+            if (maxSessions > UNLIMITED) {
+                evicted.addAll(evictOldestSessions(newJwtId));
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Could not evict sessions to keep the CAS session store within its capacity", e);
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Invalidates the user's sessions which expire first until the user has no more than the allowed number of active
+     * sessions, the new session included.
+     */
+    private Collection<String> evictSessionsOfUser(String newJwtId, String login, String userHash) {
+        Lock lock = userLocks.get(userHash);
+        lock.lock();
+        try {
+            List<SimpleJwt> activeJwts = new ArrayList<>();
+            for (String jwtId : userIndex.findJwtIds(userHash)) {
+                SimpleJwt jwt = fileHandler.readJwtFileIfExists(jwtId).getJwt();
+                if (!jwtId.equals(newJwtId) && isActive(jwt)) {
+                    activeJwts.add(jwt);
+                }
+            }
+
+            int excess = activeJwts.size() + 1 - maxSessionsPerUser;
+            if (excess <= 0) {
+                return Collections.emptyList();
+            }
+
+            activeJwts.sort(Comparator.comparing(SimpleJwt::getExpiration));
+            List<String> oldestJwtIds = new ArrayList<>();
+            for (SimpleJwt jwt : activeJwts.subList(0, excess)) {
+                oldestJwtIds.add(jwt.getJwtId());
+            }
+            Collection<String> evicted = invalidateJwts(oldestJwtIds, login);
+            LOG.info("Evicted {} sessions of user {} who exceeded the limit of {} sessions", evicted.size(), login,
+                    maxSessionsPerUser);
+
+            return evicted;
+        } catch (IOException e) {
+            LOG.error("Could not find the JWTs of user " + login, e);
+            throw new CasIOAuthenticationException("Could not evict the sessions of user " + login);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates the sessions which expire first once the session store holds more active sessions than its capacity.
+     * The {@link ExpiryBucketIndex} yields the sessions bucket by bucket, so the sessions of the oldest bucket are
+     * evicted first but in no particular order within the bucket. While the statistics are not exact, f. i. after a
+     * crash, the approximate count may exceed the capacity although the store does not, so no session is evicted until
+     * the clean-up counted the sessions again. The count reads every JWT file and must not delay a login.
+     */
+    private Collection<String> evictOldestSessions(String newJwtId) {
+        synchronized (evictionLock) {
+            SessionStatistics.Snapshot snapshot = statistics.snapshot();
+            if (snapshot.getActiveSessions() <= maxSessions) {
+                return Collections.emptyList();
+            }
+            if (!snapshot.isExact()) {
+                LOG.debug("Not evicting sessions until the clean-up counted the sessions of the CAS session store");
+                return Collections.emptyList();
+            }
+
+            long excess = snapshot.getActiveSessions() - maxSessions + maxSessions / EVICTION_HEADROOM_DIVISOR;
+            try {
+                Collection<String> evicted = invalidateJwts(findOldestActiveJwtIds(excess, newJwtId), null);
+                LOG.warn("Evicted {} sessions because the CAS session store exceeded its capacity of {} sessions",
+                        evicted.size(), maxSessions);
+
+                return evicted;
+            } catch (IOException e) {
+                LOG.error("Could not find the oldest JWTs of the CAS session store", e);
+                throw new CasIOAuthenticationException("Could not evict the oldest sessions");
+            }
+        }
+    }
+
+    private Collection<String> findOldestActiveJwtIds(long count, String excludedJwtId) throws IOException {
+        // a refresh may index a session in two buckets for a moment
+        Set<String> jwtIds = new LinkedHashSet<>();
+        for (Path bucket : expiryIndex.findPendingBuckets(Instant.now())) {
+            for (Path marker : expiryIndex.findMarkers(bucket)) {
+                String jwtId = ExpiryBucketIndex.getJwtId(marker);
+                if (jwtId.equals(excludedJwtId) || !isActive(fileHandler.readJwtFileIfExists(jwtId).getJwt())) {
+                    continue;
+                }
+
+                jwtIds.add(jwtId);
+                if (jwtIds.size() >= count) {
+                    return jwtIds;
+                }
+            }
+        }
+
+        return jwtIds;
+    }
+
+    private static boolean isActive(SimpleJwt jwt) {
+        return !jwt.isNullObject() && !jwt.isInvalid() && !jwt.isExpired();
     }
 
     public boolean isJwtStored(SimpleJwt jwt) {
@@ -65,7 +286,7 @@ public final class FileSessionStore implements CasSessionStore {
 
         SimpleJwt result;
         try {
-            result = fileHandler.readJwtFile(jwt.getJwtId());
+            result = fileHandler.readJwtFileIfExists(jwt.getJwtId()).getJwt();
         } catch (Exception e) {
             LOG.error("Could not return JWT file " + jwt.getJwtId(), e);
             throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
@@ -77,25 +298,54 @@ public final class FileSessionStore implements CasSessionStore {
         return result;
     }
 
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        return StoredJwtState.of(fetchStoredJwt(jwt));
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        fileHandler.forEachJwtFile(consumer, cleanUpExecutor, Math.max(1, cleanUpParallelism), cleanUpBatchSize);
+    }
+
     public String invalidateJwt(String serviceTicketId) {
         LOG.debug("invalidate token by ticket {}", serviceTicketId);
 
-        SimpleJwt jwt;
+        String jwtId;
         try {
-            String jwtId = fileHandler.readServiceTicketFile(serviceTicketId);
-            jwt = fileHandler.readJwtFile(jwtId);
+            jwtId = fileHandler.readServiceTicketFile(serviceTicketId);
         } catch (IOException e) {
             LOG.error("Could not invalidate JWT with granting ticket " + serviceTicketId, e);
             throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
         }
-        if (jwt == null) {
+
+        Lock lock = jwtLocks.get(jwtId);
+        lock.lock();
+        try {
+            return invalidateJwtLocked(jwtId, serviceTicketId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String invalidateJwtLocked(String jwtId, String serviceTicketId) {
+        JwtFile stored;
+        try {
+            stored = fileHandler.readJwtFileIfExists(jwtId);
+        } catch (RuntimeException e) {
+            LOG.error("Could not invalidate JWT with granting ticket " + serviceTicketId, e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+        if (stored.isMissing()) {
             return "no ticket found";
         }
 
+        SimpleJwt jwt = stored.getJwt();
         SimpleJwt invalidated = jwt.cloneAsInvalidated();
 
         try {
-            fileHandler.replaceJwtFile(jwt.getJwtId(), invalidated);
+            long newBytes = fileHandler.replaceJwtFile(jwt.getJwtId(), invalidated, serviceTicketId, stored.getLogin());
+            statistics.sessionReplaced(jwt, invalidated, newBytes - stored.getSize());
         } catch (IOException e) {
             LOG.error("Could not invalidate JWT file " + jwt.getJwtId(), e);
             throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
@@ -106,23 +356,258 @@ public final class FileSessionStore implements CasSessionStore {
         return invalidated.getJwtId();
     }
 
+    /**
+     * Finds the user's sessions in the {@link UserSessionIndex} and writes all invalidated JWT files at once.
+     */
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        LOG.debug("invalidate all tokens of user {}", login);
+        String userHash = UserSessionIndex.toUserHash(login);
+        if (userHash == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> jwtIds;
+        try {
+            jwtIds = userIndex.findJwtIds(userHash);
+        } catch (IOException e) {
+            LOG.error("Could not find the JWTs of user " + login, e);
+            throw new CasIOAuthenticationException("Could not find the sessions of user " + login);
+        }
+
+        Collection<String> invalidated = invalidateJwts(jwtIds, login);
+        LOG.info("Invalidated {} JWTs of user {}", invalidated.size(), login);
+
+        return invalidated;
+    }
+
+    /**
+     * Invalidates the given JWTs and writes all invalidated JWT files at once. JWTs which are already invalid or expired
+     * are skipped: they are rejected anyway and may be removed by the clean-up at any time.
+     *
+     * @param login the user whose JWTs are invalidated. JWTs of other users are skipped, and JWTs which were removed
+     *              in the meantime are dropped from the user's index. May be <code>null</code> to invalidate the JWTs
+     *              regardless of their user.
+     * @return the IDs of the JWTs which were invalidated by this call
+     */
+    private Collection<String> invalidateJwts(Collection<String> jwtIds, String login) {
+        List<Lock> locks = new ArrayList<>();
+        for (Lock lock : jwtLocks.bulkGet(jwtIds)) {
+            // bulkGet returns the locks in a fixed order, so concurrent calls cannot deadlock
+            lock.lock();
+            locks.add(lock);
+        }
+        try {
+            return invalidateJwtsLocked(jwtIds, login);
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Collection<String> invalidateJwtsLocked(Collection<String> jwtIds, String login) {
+        String userHash = UserSessionIndex.toUserHash(login);
+        Map<String, byte[]> invalidatedFiles = new LinkedHashMap<>();
+        Map<String, JwtFile> storedFiles = new LinkedHashMap<>();
+        for (String jwtId : jwtIds) {
+            try {
+                JwtFile stored = fileHandler.readJwtFileIfExists(jwtId);
+                if (stored.isMissing() && userHash != null) {
+                    userIndex.remove(userHash, jwtId);
+                }
+                if (!isActive(stored.getJwt())) {
+                    continue;
+                }
+                // the hash of another login may collide, the login in the JWT file decides
+                if (login != null && !login.equals(stored.getLogin())) {
+                    continue;
+                }
+
+                invalidatedFiles.put(jwtId, JwtFiles.marshal(stored.getJwt().cloneAsInvalidated(),
+                        stored.getServiceTicket(), stored.getLogin()));
+                storedFiles.put(jwtId, stored);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Could not read JWT file " + jwtId, e);
+                throw new CasIOAuthenticationException("Could not invalidate " + jwtIds.size() + " sessions");
+            }
+        }
+
+        try {
+            fileHandler.replaceJwtFiles(invalidatedFiles);
+        } catch (IOException e) {
+            LOG.error("Could not invalidate " + invalidatedFiles.size() + " JWT files", e);
+            throw new CasIOAuthenticationException("Could not invalidate " + jwtIds.size() + " sessions");
+        }
+
+        for (Map.Entry<String, JwtFile> stored : storedFiles.entrySet()) {
+            SimpleJwt jwt = stored.getValue().getJwt();
+            long bytesDelta = invalidatedFiles.get(stored.getKey()).length - stored.getValue().getSize();
+            statistics.sessionReplaced(jwt, jwt.cloneAsInvalidated(), bytesDelta);
+        }
+
+        return new ArrayList<>(invalidatedFiles.keySet());
+    }
+
     @Override
     public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) {
         String jwtId = jwtWithLongerExpirationDate.getJwtId();
         LOG.debug("refresh token {}", jwtId);
 
+        Lock lock = jwtLocks.get(jwtId);
+        lock.lock();
         try {
-            fileHandler.replaceJwtFile(jwtId, jwtWithLongerExpirationDate);
-        } catch (IOException e) {
+            JwtFile stored = fileHandler.readJwtFile(jwtId);
+            SimpleJwt storedJwt = stored.getJwt();
+            SimpleJwt refreshed = storedJwt.cloneWithExpirationOf(jwtWithLongerExpirationDate);
+            String serviceTicket = stored.getServiceTicket();
+            String login = stored.getLogin();
+            // move the index entry first so a crash can delay the removal but never remove a refreshed JWT too early
+            expiryIndex.move(jwtId, UserSessionIndex.toUserHash(login), storedJwt.getExpiration(),
+                    refreshed.getExpiration());
+            long newBytes = fileHandler.replaceJwtFile(jwtId, refreshed, serviceTicket, login);
+            statistics.sessionReplaced(storedJwt, refreshed, newBytes - stored.getSize());
+        } catch (Exception e) {
             LOG.error("Could not invalidate JWT file " + jwtId, e);
             throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        } finally {
+            lock.unlock();
         }
 
         LOG.debug("successfully refreshed token {}", jwtId);
     }
 
     public int removeExpiredEntries() {
-        return new SessionFileRemover(sessionStorePath).cleanUp();
+        if (!statistics.isExact()) {
+            recountStatistics();
+        }
+
+        CleanUpBudget budget = new CleanUpBudget(cleanUpTimeBudgetInSecs, cleanUpDeletesPerSecond);
+        int removed = new SessionFileRemover(sessionStorePath, expiryIndex, userIndex, cleanUpBatchSize,
+                cleanUpExecutor, Math.max(1, cleanUpParallelism), budget, statistics, jwtLocks).cleanUp();
+        cleanUpPending = budget.isExhausted();
+        writeStatisticsCheckpoint(false);
+
+        return removed;
+    }
+
+    @Override
+    public SessionStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public boolean isCleanUpPending() {
+        return cleanUpPending;
+    }
+
+    /**
+     * Returns all stored service tickets which are accepted by the filter in ascending order.
+     */
+    List<String> findServiceTickets(Predicate<String> filter) throws IOException {
+        return fileHandler.findServiceTickets(filter);
+    }
+
+    /**
+     * Returns the ID of the JWT which belongs to the service ticket, or <code>null</code> if the service ticket is not
+     * stored.
+     */
+    String findJwtIdOfTicket(String serviceTicketId) throws IOException {
+        try {
+            // earlier plugin versions may have written surrounding whitespace
+            return fileHandler.readServiceTicketFile(serviceTicketId).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the stored JWT together with its service ticket and login, or returns {@link JwtFile#getMissing()} if it
+     * is not stored.
+     */
+    JwtFile readJwtFile(String jwtId) {
+        return fileHandler.readJwtFileIfExists(jwtId);
+    }
+
+    /**
+     * Returns the content of a metadata file in the session store directory, or <code>null</code> if it does not
+     * exist.
+     *
+     * @param fileName the name of the metadata file. Must start with a dot so it is never taken for a session file.
+     */
+    byte[] readMetadataFile(String fileName) throws IOException {
+        try {
+            return Files.readAllBytes(Paths.get(sessionStorePath, fileName));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically writes a metadata file into the session store directory with the configured durability.
+     *
+     * @param fileName the name of the metadata file. Must start with a dot so it is never taken for a session file.
+     */
+    void writeMetadataFile(String fileName, byte[] content) throws IOException {
+        fileWriter.write(Paths.get(sessionStorePath, fileName), content);
+    }
+
+    /**
+     * Restores the statistics from the checkpoint of the last shut down. Without a clean checkpoint the statistics are
+     * counted again during the next clean-up, until then they are approximated by the last checkpoint. The checkpoint
+     * is marked as unclean right away, so a crash leads to a new count after the next start.
+     */
+    private void restoreStatistics() throws IOException {
+        if (Files.exists(statisticsCheckpoint)) {
+            try (InputStream checkpoint = Files.newInputStream(statisticsCheckpoint)) {
+                statistics.replaceWith(SessionStatistics.fromCheckpoint(checkpoint));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring corrupt CAS session store statistics checkpoint {}", statisticsCheckpoint, e);
+                statistics.markInexact();
+            }
+        } else {
+            statistics.markInexact();
+        }
+
+        if (!statistics.isExact()) {
+            LOG.info("CAS session store statistics are approximate until the sessions were counted during the next clean-up");
+        }
+        writeStatisticsCheckpoint(false);
+    }
+
+    /**
+     * Counts all sessions by reading every JWT file once. Changes which happen during the count may be missed.
+     */
+    private void recountStatistics() {
+        LOG.info("Counting the sessions of the CAS session store for its statistics");
+        SessionStatistics recount = new SessionStatistics();
+        try {
+            forEachStoredJwt(jwt -> recount.sessionStored(jwt, 0));
+            recount.bytesAdded(fileHandler.sumSessionFileSizes());
+        } catch (IOException e) {
+            LOG.error("Could not count the sessions of the CAS session store", e);
+            return;
+        }
+        statistics.replaceWith(recount);
+    }
+
+    private void writeStatisticsCheckpoint(boolean clean) {
+        try {
+            fileWriter.write(statisticsCheckpoint, statistics.toCheckpoint(clean));
+        } catch (IOException e) {
+            LOG.error("Could not write CAS session store statistics checkpoint " + statisticsCheckpoint, e);
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        // every change is written to its own file right away, only the clean-up threads need to be released and
+        // files which wait for the next group commit must be forced to disk
+        if (cleanUpExecutor != null) {
+            cleanUpExecutor.shutdownNow();
+        }
+        writeStatisticsCheckpoint(true);
+        fileWriter.shutdown();
     }
 
     private static class CasIOAuthenticationException extends RuntimeException {
@@ -0,0 +1,72 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.plugins.cas.util.SonarCasProperties;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the {@link FileSessionStore} as session store type <code>file</code>.
+ */
+public final class FileSessionStoreProvider implements CasSessionStoreProvider {
+    static final String TYPE = "file";
+    private static final int CLEANUP_BATCH_SIZE_DEFAULT = 1000;
+    private static final int CLEANUP_PARALLELISM_DEFAULT = 1;
+    private static final int CLEANUP_TIME_BUDGET_IN_SECS_DEFAULT = (int) TimeUnit.MINUTES.toSeconds(5);
+    private static final int CLEANUP_DELETE_RATE_DEFAULT = 1000;
+    static final String DURABILITY_DEFAULT = "none";
+    static final int GROUP_COMMIT_INTERVAL_IN_MILLIS_DEFAULT = 100;
+    private static final int MAX_SESSIONS_DEFAULT = FileSessionStore.UNLIMITED;
+    private static final int MAX_SESSIONS_PER_USER_DEFAULT = FileSessionStore.UNLIMITED;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public List<String> getPropertyKeys() {
+        return Arrays.asList(
+                SonarCasProperties.SESSION_STORE_PATH.toString(),
+                SonarCasProperties.SESSION_STORE_CLEANUP_BATCH_SIZE.toString(),
+                SonarCasProperties.SESSION_STORE_CLEANUP_PARALLELISM.toString(),
+                SonarCasProperties.SESSION_STORE_CLEANUP_TIME_BUDGET_IN_SECS.toString(),
+                SonarCasProperties.SESSION_STORE_CLEANUP_DELETE_RATE.toString(),
+                SonarCasProperties.SESSION_STORE_DURABILITY.toString(),
+                SonarCasProperties.SESSION_STORE_GROUP_COMMIT_INTERVAL_IN_MILLIS.toString(),
+                SonarCasProperties.SESSION_STORE_MAX_SESSIONS.toString(),
+                SonarCasProperties.SESSION_STORE_MAX_SESSIONS_PER_USER.toString());
+    }
+
+    @Override
+    public CasSessionStore create(Configuration configuration) {
+        return create(configuration, SonarCasProperties.SESSION_STORE_PATH.mustGetString(configuration));
+    }
+
+    /**
+     * Creates a session store in the given directory with the settings of the configuration, f. i. the old session
+     * store of a migration.
+     */
+    FileSessionStore create(Configuration configuration, String sessionStorePath) {
+        int cleanUpBatchSize = SonarCasProperties.SESSION_STORE_CLEANUP_BATCH_SIZE.getInteger(configuration,
+                CLEANUP_BATCH_SIZE_DEFAULT);
+        int cleanUpParallelism = SonarCasProperties.SESSION_STORE_CLEANUP_PARALLELISM.getInteger(configuration,
+                CLEANUP_PARALLELISM_DEFAULT);
+        int cleanUpTimeBudgetInSecs = SonarCasProperties.SESSION_STORE_CLEANUP_TIME_BUDGET_IN_SECS.getInteger(
+                configuration, CLEANUP_TIME_BUDGET_IN_SECS_DEFAULT);
+        int cleanUpDeletesPerSecond = SonarCasProperties.SESSION_STORE_CLEANUP_DELETE_RATE.getInteger(configuration,
+                CLEANUP_DELETE_RATE_DEFAULT);
+        SessionFileWriter.Durability durability = SessionFileWriter.Durability.of(
+                SonarCasProperties.SESSION_STORE_DURABILITY.getString(configuration, DURABILITY_DEFAULT));
+        int groupCommitIntervalInMillis = SonarCasProperties.SESSION_STORE_GROUP_COMMIT_INTERVAL_IN_MILLIS.getInteger(
+                configuration, GROUP_COMMIT_INTERVAL_IN_MILLIS_DEFAULT);
+        int maxSessions = SonarCasProperties.SESSION_STORE_MAX_SESSIONS.getInteger(configuration, MAX_SESSIONS_DEFAULT);
+        int maxSessionsPerUser = SonarCasProperties.SESSION_STORE_MAX_SESSIONS_PER_USER.getInteger(configuration,
+                MAX_SESSIONS_PER_USER_DEFAULT);
+
+        return new FileSessionStore(sessionStorePath, cleanUpBatchSize, cleanUpParallelism, cleanUpTimeBudgetInSecs,
+                cleanUpDeletesPerSecond, durability, groupCommitIntervalInMillis, maxSessions, maxSessionsPerUser);
+    }
+}
@@ -0,0 +1,147 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.plugins.cas.session.SessionStoreMetrics.Operation;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * This class records the call count, errors and latency of each operation of another {@link CasSessionStore} in the
+ * {@link SessionStoreMetrics}. It wraps all other session store layers so the metrics show what the plugin's filters and
+ * handlers actually wait for.
+ */
+final class InstrumentedSessionStore implements CasSessionStore {
+    private final CasSessionStore delegate;
+    private final SessionStoreMetrics metrics;
+
+    InstrumentedSessionStore(CasSessionStore delegate, SessionStoreMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        delegate.prepareForWork();
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        long start = System.nanoTime();
+        try {
+            return delegate.store(ticket, jwt, login);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.STORE);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.STORE, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        try {
+            return delegate.isJwtStored(jwt);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.IS_JWT_STORED);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.IS_JWT_STORED, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        try {
+            return delegate.fetchStoredJwt(jwt);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.FETCH_STORED_JWT);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.FETCH_STORED_JWT, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        try {
+            return delegate.lookupJwt(jwt);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.LOOKUP_JWT);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.LOOKUP_JWT, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        delegate.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        long start = System.nanoTime();
+        try {
+            return delegate.invalidateJwt(serviceTicketId);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.INVALIDATE_JWT);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.INVALIDATE_JWT, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        long start = System.nanoTime();
+        try {
+            return delegate.invalidateJwtsOfUser(login);
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.INVALIDATE_JWTS_OF_USER);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.INVALIDATE_JWTS_OF_USER, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        long start = System.nanoTime();
+        try {
+            return delegate.removeExpiredEntries();
+        } catch (RuntimeException e) {
+            metrics.recordError(Operation.REMOVE_EXPIRED_ENTRIES);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.REMOVE_EXPIRED_ENTRIES, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.refreshJwt(jwtWithLongerExpirationDate);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(Operation.REFRESH_JWT);
+            throw e;
+        } finally {
+            metrics.recordCall(Operation.REFRESH_JWT, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+}
@@ -0,0 +1,180 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class provides a small, fixed-size pool of JDBC connections for the {@link JdbcSessionStore}.
+ *
+ * <p>Each pooled connection caches its prepared statements, so every SQL statement is prepared only once per
+ * connection. Connections are opened lazily and replaced once a statement on them failed.</p>
+ */
+final class JdbcConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcConnectionPool.class);
+    private static final long BORROW_TIMEOUT_IN_SECS = 30;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int poolSize;
+    private final BlockingQueue<PooledConnection> idleConnections;
+    private int openConnections;
+    private boolean closed;
+
+    JdbcConnectionPool(String url, String user, String password, int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be strictly positive");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.poolSize = poolSize;
+        this.idleConnections = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Runs the action on a pooled connection within a transaction. The transaction is committed if the action
+     * returns normally and rolled back otherwise.
+     */
+    <T> T inTransaction(SqlAction<T> action) throws SQLException {
+        PooledConnection connection = borrow();
+        boolean broken = true;
+        try {
+            T result = action.run(connection);
+            connection.connection.commit();
+            broken = false;
+
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            rollbackQuietly(connection);
+            throw e;
+        } finally {
+            release(connection, broken);
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+            openConnections--;
+        }
+    }
+
+    private PooledConnection borrow() throws SQLException {
+        PooledConnection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new SQLException("The JDBC connection pool of the CAS session store is closed");
+            }
+            if (openConnections < poolSize) {
+                connection = open();
+                openConnections++;
+                return connection;
+            }
+        }
+
+        try {
+            connection = idleConnections.poll(BORROW_TIMEOUT_IN_SECS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a JDBC connection", e);
+        }
+        if (connection == null) {
+            throw new SQLException("No JDBC connection became available within " + BORROW_TIMEOUT_IN_SECS + " seconds");
+        }
+
+        return connection;
+    }
+
+    private synchronized void release(PooledConnection connection, boolean broken) {
+        if (broken || closed) {
+            connection.close();
+            openConnections--;
+            return;
+        }
+
+        idleConnections.offer(connection);
+    }
+
+    private PooledConnection open() throws SQLException {
+        LOG.debug("Opening JDBC connection to {}", url);
+        Connection connection = DriverManager.getConnection(url, user, password);
+        connection.setAutoCommit(false);
+
+        return new PooledConnection(connection);
+    }
+
+    private static void rollbackQuietly(PooledConnection connection) {
+        try {
+            connection.connection.rollback();
+        } catch (SQLException e) {
+            LOG.debug("Could not roll back JDBC transaction", e);
+        }
+    }
+
+    /**
+     * A database action which is run on a pooled connection.
+     */
+    interface SqlAction<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * A JDBC connection together with the statements which were prepared on it.
+     */
+    static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns the cached prepared statement for the SQL or prepares it on first use. The parameters of a cached
+         * statement are cleared before it is returned.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+
+            return statement;
+        }
+
+        private void close() {
+            try {
+                for (PreparedStatement statement : statements.values()) {
+                    statement.close();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                LOG.debug("Could not close JDBC connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.sonar.plugins.cas.session;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.session.JdbcConnectionPool.PooledConnection;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This class implements a session store which keeps JWTs and service tickets in two tables of a relational database.
+ *
+ * <p>Several SonarQube servers can share one database, so this store fits deployments with more than one SonarQube
+ * web server. JWTs are looked up by their primary key and service tickets have an index on the JWT ID, so every
+ * request costs a single indexed query. Statements are prepared once per pooled connection and reused afterwards
+ * (see {@link JdbcConnectionPool}). Expired JWTs are found by an index on their expiration date and removed in
+ * batches, each batch in its own transaction.
+ * </p>
+ *
+ * <p>The tables are created during {@link #prepareForWork()} if they do not exist. The JDBC driver of the database
+ * must be visible to the class loader of the plugin. SonarQube's own drivers are not, so the driver has to be
+ * packaged into the plugin jar.</p>
+ */
+public final class JdbcSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcSessionStore.class);
+    private static final String NO_TICKET_FOUND = "no ticket found";
+    private static final String JWT_TABLE = "cas_jwt";
+    private static final String TICKET_TABLE = "cas_service_ticket";
+
+    private static final String[] CREATE_JWT_TABLE = {
+            "CREATE TABLE " + JWT_TABLE + " (jwt_id VARCHAR(64) NOT NULL PRIMARY KEY, expiration BIGINT NOT NULL, "
+                    + "invalid SMALLINT NOT NULL)",
+            "CREATE INDEX " + JWT_TABLE + "_expiration ON " + JWT_TABLE + " (expiration)"};
+    private static final String[] CREATE_TICKET_TABLE = {
+            "CREATE TABLE " + TICKET_TABLE + " (service_ticket VARCHAR(256) NOT NULL PRIMARY KEY, "
+                    + "jwt_id VARCHAR(64) NOT NULL)",
+            "CREATE INDEX " + TICKET_TABLE + "_jwt_id ON " + TICKET_TABLE + " (jwt_id)"};
+
+    private static final String SELECT_JWT = "SELECT expiration, invalid FROM " + JWT_TABLE + " WHERE jwt_id = ?";
+    private static final String SELECT_ALL_JWTS = "SELECT jwt_id, expiration, invalid FROM " + JWT_TABLE;
+    private static final String SELECT_EXPIRED_JWT_IDS = "SELECT jwt_id FROM " + JWT_TABLE + " WHERE expiration < ?";
+    private static final String INSERT_JWT = "INSERT INTO " + JWT_TABLE + " (expiration, invalid, jwt_id) VALUES (?, ?, ?)";
+    // never touches the invalid flag, so a refresh cannot re-validate a JWT which another server invalidated meanwhile
+    private static final String UPDATE_EXPIRATION = "UPDATE " + JWT_TABLE + " SET expiration = ? WHERE jwt_id = ?";
+    private static final String INVALIDATE_JWT = "UPDATE " + JWT_TABLE + " SET invalid = 1 WHERE jwt_id = ?";
+    private static final String DELETE_JWT = "DELETE FROM " + JWT_TABLE + " WHERE jwt_id = ?";
+    private static final String SELECT_TICKET = "SELECT jwt_id FROM " + TICKET_TABLE + " WHERE service_ticket = ?";
+    private static final String INSERT_TICKET = "INSERT INTO " + TICKET_TABLE + " (jwt_id, service_ticket) VALUES (?, ?)";
+    private static final String UPDATE_TICKET = "UPDATE " + TICKET_TABLE + " SET jwt_id = ? WHERE service_ticket = ?";
+    private static final String DELETE_TICKETS_OF_JWT = "DELETE FROM " + TICKET_TABLE + " WHERE jwt_id = ?";
+
+    private final JdbcConnectionPool pool;
+    private final int cleanUpBatchSize;
+
+    /**
+     * default visibility constructor for testing
+     */
+    JdbcSessionStore(JdbcConnectionPool pool, int cleanUpBatchSize) {
+        if (cleanUpBatchSize <= 0) {
+            throw new IllegalArgumentException("cleanUpBatchSize must be strictly positive");
+        }
+        this.pool = pool;
+        this.cleanUpBatchSize = cleanUpBatchSize;
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        LOG.info("Preparing CAS JDBC session store");
+        try {
+            pool.inTransaction(connection -> {
+                DatabaseMetaData metaData = connection.getConnection().getMetaData();
+                createTableIfMissing(connection, metaData, JWT_TABLE, CREATE_JWT_TABLE);
+                createTableIfMissing(connection, metaData, TICKET_TABLE, CREATE_TICKET_TABLE);
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("Could not prepare the tables of the CAS JDBC session store", e);
+        }
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        if (StringUtils.isEmpty(ticket)) {
+            throw new IllegalArgumentException("Could not store JWT: serviceTicket must not be null");
+        }
+        LOG.debug("store ticket {} to token {}", ticket, jwt.getJwtId());
+
+        try {
+            pool.inTransaction(connection -> {
+                writeJwt(connection, jwt);
+                if (update(connection, UPDATE_TICKET, jwt.getJwtId(), ticket) == 0) {
+                    update(connection, INSERT_TICKET, jwt.getJwtId(), ticket);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOG.error("Could not store JWT " + jwt.getJwtId() + " to JDBC session store.", e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        boolean stored = !fetchStoredJwt(jwt).isNullObject();
+        LOG.debug("check if JWT {} is stored: {}", jwt.getJwtId(), stored);
+
+        return stored;
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        LOG.debug("get token {}", jwt.getJwtId());
+
+        try {
+            return pool.inTransaction(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT_JWT);
+                statement.setString(1, jwt.getJwtId());
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return SimpleJwt.getNullObject();
+                    }
+                    return toJwt(jwt.getJwtId(), result.getLong(1), result.getInt(2));
+                }
+            });
+        } catch (SQLException e) {
+            LOG.error("Could not return JWT " + jwt.getJwtId() + " from JDBC session store", e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        return StoredJwtState.of(fetchStoredJwt(jwt));
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        try {
+            pool.inTransaction(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT_ALL_JWTS);
+                statement.setFetchSize(cleanUpBatchSize);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        consumer.accept(toJwt(result.getString(1), result.getLong(2), result.getInt(3)));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("Could not read JWTs from JDBC session store", e);
+        }
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        LOG.debug("invalidate token by ticket {}", serviceTicketId);
+
+        String jwtId;
+        try {
+            jwtId = pool.inTransaction(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT_TICKET);
+                statement.setString(1, serviceTicketId);
+                String storedJwtId;
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        LOG.debug("Could not find service ticket {} for invalidation", serviceTicketId);
+                        return NO_TICKET_FOUND;
+                    }
+                    storedJwtId = result.getString(1);
+                }
+
+                if (update(connection, INVALIDATE_JWT, storedJwtId) == 0) {
+                    return NO_TICKET_FOUND;
+                }
+                return storedJwtId;
+            });
+        } catch (SQLException e) {
+            LOG.error("Could not invalidate JWT with granting ticket " + serviceTicketId, e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+
+        LOG.debug("successfully invalidated token {} by ticket {}", jwtId, serviceTicketId);
+        return jwtId;
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        String jwtId = jwtWithLongerExpirationDate.getJwtId();
+        LOG.debug("refresh token {}", jwtId);
+
+        int updated;
+        try {
+            updated = pool.inTransaction(connection -> updateJwt(connection, jwtWithLongerExpirationDate));
+        } catch (SQLException e) {
+            throw new IOException("Could not refresh JWT " + jwtId + " in JDBC session store", e);
+        }
+
+        if (updated == 0) {
+            LOG.debug("Could not refresh token {} because it is not stored", jwtId);
+            return;
+        }
+        LOG.debug("successfully refreshed token {}", jwtId);
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        long now = Instant.now().getEpochSecond();
+        int removalCounter = 0;
+
+        try {
+            int removedInBatch;
+            do {
+                removedInBatch = pool.inTransaction(connection -> removeExpiredBatch(connection, now));
+                removalCounter += removedInBatch;
+            } while (removedInBatch > 0);
+        } catch (SQLException e) {
+            LOG.error("Could not remove expired entries from JDBC session store", e);
+        }
+
+        return removalCounter;
+    }
+
+    @Override
+    public void shutdown() {
+        pool.close();
+    }
+
+    /**
+     * Removes up to {@link #cleanUpBatchSize} expired JWTs together with their service tickets.
+     *
+     * @return the number of removed JWTs and service tickets
+     */
+    private int removeExpiredBatch(PooledConnection connection, long now) throws SQLException {
+        List<String> expiredJwtIds = new ArrayList<>(cleanUpBatchSize);
+
+        PreparedStatement select = connection.prepare(SELECT_EXPIRED_JWT_IDS);
+        select.setMaxRows(cleanUpBatchSize);
+        select.setLong(1, now);
+        try (ResultSet result = select.executeQuery()) {
+            while (result.next()) {
+                expiredJwtIds.add(result.getString(1));
+            }
+        }
+        if (expiredJwtIds.isEmpty()) {
+            return 0;
+        }
+
+        int removed = deleteBatch(connection, DELETE_TICKETS_OF_JWT, expiredJwtIds);
+        removed += deleteBatch(connection, DELETE_JWT, expiredJwtIds);
+        LOG.debug("CAS JDBC session store clean up removed {} expired JWTs", expiredJwtIds.size());
+
+        return removed;
+    }
+
+    private static int deleteBatch(PooledConnection connection, String sql, List<String> jwtIds) throws SQLException {
+        PreparedStatement delete = connection.prepare(sql);
+        for (String jwtId : jwtIds) {
+            delete.setString(1, jwtId);
+            delete.addBatch();
+        }
+
+        int removed = 0;
+        for (int count : delete.executeBatch()) {
+            // some drivers don't report the number of affected rows for batches
+            removed += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+
+        return removed;
+    }
+
+    private static void writeJwt(PooledConnection connection, SimpleJwt jwt) throws SQLException {
+        if (updateJwt(connection, jwt) == 0) {
+            update(connection, INSERT_JWT, jwt.getExpiration().getEpochSecond(), jwt.isInvalid() ? 1 : 0,
+                    jwt.getJwtId());
+        }
+    }
+
+    /**
+     * Updates the expiration date of a stored JWT. The invalid flag is only ever set, never cleared.
+     *
+     * @return the number of updated rows
+     */
+    private static int updateJwt(PooledConnection connection, SimpleJwt jwt) throws SQLException {
+        int updated = update(connection, UPDATE_EXPIRATION, jwt.getExpiration().getEpochSecond(), jwt.getJwtId());
+        if (updated > 0 && jwt.isInvalid()) {
+            update(connection, INVALIDATE_JWT, jwt.getJwtId());
+        }
+
+        return updated;
+    }
+
+    private static int update(PooledConnection connection, String sql, Object... parameters) throws SQLException {
+        PreparedStatement statement = connection.prepare(sql);
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+
+        return statement.executeUpdate();
+    }
+
+    private static SimpleJwt toJwt(String jwtId, long expiration, int invalid) {
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(jwtId, expiration);
+        return invalid != 0 ? jwt.cloneAsInvalidated() : jwt;
+    }
+
+    private static void createTableIfMissing(PooledConnection connection, DatabaseMetaData metaData, String table,
+                                             String[] ddl) throws SQLException {
+        if (tableExists(metaData, table)) {
+            return;
+        }
+
+        LOG.info("Creating table {} for CAS JDBC session store", table);
+        try (Statement statement = connection.getConnection().createStatement()) {
+            for (String sql : ddl) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private static boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+        // databases store unquoted identifiers in upper or lower case
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet tables = metaData.getTables(null, null, name, new String[]{"TABLE"})) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static class CasIOAuthenticationException extends RuntimeException {
+        CasIOAuthenticationException(String message) {
+            super(message);
+        }
+    }
+}
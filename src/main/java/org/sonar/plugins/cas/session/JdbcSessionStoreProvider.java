@@ -0,0 +1,43 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.plugins.cas.util.SonarCasProperties;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Provides the {@link JdbcSessionStore} as session store type <code>jdbc</code>.
+ */
+public final class JdbcSessionStoreProvider implements CasSessionStoreProvider {
+    static final String TYPE = "jdbc";
+    private static final int CLEANUP_BATCH_SIZE_DEFAULT = 1000;
+    private static final int POOL_SIZE_DEFAULT = 4;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public List<String> getPropertyKeys() {
+        return Arrays.asList(
+                SonarCasProperties.SESSION_STORE_JDBC_URL.toString(),
+                SonarCasProperties.SESSION_STORE_JDBC_USER.toString(),
+                SonarCasProperties.SESSION_STORE_JDBC_PASSWORD.toString(),
+                SonarCasProperties.SESSION_STORE_JDBC_POOL_SIZE.toString(),
+                SonarCasProperties.SESSION_STORE_CLEANUP_BATCH_SIZE.toString());
+    }
+
+    @Override
+    public CasSessionStore create(Configuration configuration) {
+        String url = SonarCasProperties.SESSION_STORE_JDBC_URL.mustGetString(configuration);
+        String user = SonarCasProperties.SESSION_STORE_JDBC_USER.getString(configuration, null);
+        String password = SonarCasProperties.SESSION_STORE_JDBC_PASSWORD.getString(configuration, null);
+        int poolSize = SonarCasProperties.SESSION_STORE_JDBC_POOL_SIZE.getInteger(configuration, POOL_SIZE_DEFAULT);
+        int cleanUpBatchSize = SonarCasProperties.SESSION_STORE_CLEANUP_BATCH_SIZE.getInteger(configuration,
+                CLEANUP_BATCH_SIZE_DEFAULT);
+
+        return new JdbcSessionStore(new JdbcConnectionPool(url, user, password, poolSize), cleanUpBatchSize);
+    }
+}
@@ -0,0 +1,256 @@
+package org.sonar.plugins.cas.session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class maps JWT IDs to an expiration as epoch seconds without an object per entry.
+ *
+ * <p>The IDs are packed by the {@link JwtIdCodec} and kept together with the expiration in three parallel
+ * <code>long</code> arrays which are probed linearly. A slot takes 24 bytes and the arrays are filled by at least three
+ * eighths after they grew, so a million JWTs take at most 64 MB instead of more than 100 bytes per entry in a
+ * {@link java.util.HashMap}. The map is split into segments which are locked independently, so concurrent requests
+ * rarely wait for each other. Removed entries shift their successors back instead of leaving tombstones.</p>
+ *
+ * <p>IDs which the codec cannot pack are kept in an ordinary map, they do not occur with the JWTs SonarQube issues.</p>
+ */
+final class JwtExpirationMap {
+    /**
+     * returned by {@link #get(String)} for unknown JWT IDs
+     */
+    static final long NO_EXPIRATION = Long.MIN_VALUE;
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int MIN_CAPACITY = 16;
+    private static final long EMPTY = 0;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final Map<String, Long> unencodableIds = new ConcurrentHashMap<>();
+
+    JwtExpirationMap() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the expiration of the JWT, or {@link #NO_EXPIRATION} if the map does not contain it.
+     */
+    long get(String jwtId) {
+        if (!JwtIdCodec.isEncodable(jwtId)) {
+            return unencodableIds.getOrDefault(jwtId, NO_EXPIRATION);
+        }
+
+        long high = JwtIdCodec.encodeHigh(jwtId);
+        long low = JwtIdCodec.encodeLow(jwtId);
+        long hash = hash(high, low);
+        return segmentOf(hash).get(high, low, hash);
+    }
+
+    boolean containsKey(String jwtId) {
+        return get(jwtId) != NO_EXPIRATION;
+    }
+
+    void put(String jwtId, long expiration) {
+        if (!JwtIdCodec.isEncodable(jwtId)) {
+            unencodableIds.put(jwtId, expiration);
+            return;
+        }
+
+        long high = JwtIdCodec.encodeHigh(jwtId);
+        long low = JwtIdCodec.encodeLow(jwtId);
+        long hash = hash(high, low);
+        segmentOf(hash).put(high, low, hash, expiration, false);
+    }
+
+    /**
+     * Changes the expiration of the JWT only if the map already contains it.
+     */
+    void replace(String jwtId, long expiration) {
+        if (!JwtIdCodec.isEncodable(jwtId)) {
+            unencodableIds.computeIfPresent(jwtId, (id, oldExpiration) -> expiration);
+            return;
+        }
+
+        long high = JwtIdCodec.encodeHigh(jwtId);
+        long low = JwtIdCodec.encodeLow(jwtId);
+        long hash = hash(high, low);
+        segmentOf(hash).put(high, low, hash, expiration, true);
+    }
+
+    void remove(String jwtId) {
+        if (!JwtIdCodec.isEncodable(jwtId)) {
+            unencodableIds.remove(jwtId);
+            return;
+        }
+
+        long high = JwtIdCodec.encodeHigh(jwtId);
+        long low = JwtIdCodec.encodeLow(jwtId);
+        long hash = hash(high, low);
+        segmentOf(hash).remove(high, low, hash);
+    }
+
+    /**
+     * Removes all JWTs which expired before the given epoch second and shrinks the map accordingly.
+     */
+    void removeExpiredBefore(long epochSecond) {
+        unencodableIds.values().removeIf(expiration -> expiration < epochSecond);
+        for (Segment segment : segments) {
+            segment.removeExpiredBefore(epochSecond);
+        }
+    }
+
+    int size() {
+        int size = unencodableIds.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of slots of all segments. Default visibility for testing.
+     */
+    int capacity() {
+        int capacity = 0;
+        for (Segment segment : segments) {
+            capacity += segment.capacity();
+        }
+        return capacity;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     * default visibility for testing
+     */
+    static long hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * An open-addressing hash table with linear probing. All methods are guarded by the segment.
+     */
+    private static final class Segment {
+        private long[] highs = new long[MIN_CAPACITY];
+        private long[] lows = new long[MIN_CAPACITY];
+        private long[] expirations = new long[MIN_CAPACITY];
+        private int size;
+
+        synchronized long get(long high, long low, long hash) {
+            int slot = findSlot(high, low, hash);
+            return highs[slot] == EMPTY ? NO_EXPIRATION : expirations[slot];
+        }
+
+        synchronized void put(long high, long low, long hash, long expiration, boolean onlyIfPresent) {
+            int slot = findSlot(high, low, hash);
+            if (highs[slot] != EMPTY) {
+                expirations[slot] = expiration;
+                return;
+            }
+            if (onlyIfPresent) {
+                return;
+            }
+
+            if (isFull(size + 1, highs.length)) {
+                resize(highs.length * 2, Long.MIN_VALUE);
+                slot = findSlot(high, low, hash);
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            expirations[slot] = expiration;
+            size++;
+        }
+
+        synchronized void remove(long high, long low, long hash) {
+            int slot = findSlot(high, low, hash);
+            if (highs[slot] == EMPTY) {
+                return;
+            }
+
+            // move following entries of the same probe sequence back so lookups never stop at the freed slot
+            int mask = highs.length - 1;
+            int hole = slot;
+            for (int next = (slot + 1) & mask; highs[next] != EMPTY; next = (next + 1) & mask) {
+                int home = (int) hash(highs[next], lows[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    highs[hole] = highs[next];
+                    lows[hole] = lows[next];
+                    expirations[hole] = expirations[next];
+                    hole = next;
+                }
+            }
+            highs[hole] = EMPTY;
+            size--;
+        }
+
+        synchronized void removeExpiredBefore(long epochSecond) {
+            int remaining = 0;
+            for (int slot = 0; slot < highs.length; slot++) {
+                if (highs[slot] != EMPTY && expirations[slot] >= epochSecond) {
+                    remaining++;
+                }
+            }
+
+            int capacity = MIN_CAPACITY;
+            while (isFull(remaining, capacity)) {
+                capacity *= 2;
+            }
+            resize(capacity, epochSecond);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int capacity() {
+            return highs.length;
+        }
+
+        /**
+         * Returns the slot which holds the ID, or the empty slot where the probe sequence ends.
+         */
+        private int findSlot(long high, long low, long hash) {
+            int mask = highs.length - 1;
+            int slot = (int) hash & mask;
+            while (highs[slot] != EMPTY && (highs[slot] != high || lows[slot] != low)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Rehashes all entries which expire at or after the given epoch second into tables of the given capacity.
+         */
+        private void resize(int capacity, long minExpiration) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldExpirations = expirations;
+            highs = new long[capacity];
+            lows = new long[capacity];
+            expirations = new long[capacity];
+            size = 0;
+
+            for (int slot = 0; slot < oldHighs.length; slot++) {
+                if (oldHighs[slot] == EMPTY || oldExpirations[slot] < minExpiration) {
+                    continue;
+                }
+                int newSlot = findSlot(oldHighs[slot], oldLows[slot], hash(oldHighs[slot], oldLows[slot]));
+                highs[newSlot] = oldHighs[slot];
+                lows[newSlot] = oldLows[slot];
+                expirations[newSlot] = oldExpirations[slot];
+                size++;
+            }
+        }
+
+        /**
+         * Returns <code>true</code> if the given number of entries fill more than three quarters of the capacity.
+         */
+        private static boolean isFull(int entries, int capacity) {
+            return entries > capacity - capacity / 4;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.sonar.plugins.cas.session;
+
+/**
+ * This class packs JWT IDs into two <code>long</code>s so in-memory indexes can hold them without a {@link String}
+ * per session.
+ *
+ * <p>JWT IDs consist of up to 20 characters out of <code>[0-9A-Za-z]</code>, see
+ * {@link SessionFileHandler#JWT_FILE_PATTERN}. Each character is mapped to a 6 bit code from 1 to 62, the first ten
+ * characters fill the high <code>long</code> and the remaining characters the low <code>long</code>, each from the
+ * most significant bits downwards. Code 0 pads shorter IDs, so the high <code>long</code> of an encoded ID is never 0
+ * and indexes may use 0 to mark an empty slot. IDs which do not match are not encodable, indexes must keep them
+ * elsewhere.</p>
+ */
+final class JwtIdCodec {
+    static final int MAX_LENGTH = 20;
+    private static final int CHARS_PER_LONG = MAX_LENGTH / 2;
+    private static final int BITS_PER_CHAR = 6;
+    private static final int CHAR_MASK = (1 << BITS_PER_CHAR) - 1;
+    private static final int NO_CODE = 0;
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private JwtIdCodec() {
+    }
+
+    /**
+     * Returns <code>true</code> if the JWT ID can be packed into two <code>long</code>s.
+     */
+    static boolean isEncodable(String jwtId) {
+        if (jwtId == null || jwtId.isEmpty() || jwtId.length() > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < jwtId.length(); i++) {
+            if (toCode(jwtId.charAt(i)) == NO_CODE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the high <code>long</code> of an {@link #isEncodable(String) encodable} JWT ID. It is never 0.
+     */
+    static long encodeHigh(String jwtId) {
+        return pack(jwtId, 0);
+    }
+
+    /**
+     * Returns the low <code>long</code> of an {@link #isEncodable(String) encodable} JWT ID.
+     */
+    static long encodeLow(String jwtId) {
+        return pack(jwtId, CHARS_PER_LONG);
+    }
+
+    /**
+     * Restores the JWT ID from its two <code>long</code>s.
+     */
+    static String decode(long high, long low) {
+        StringBuilder jwtId = new StringBuilder(MAX_LENGTH);
+        if (unpack(high, jwtId)) {
+            unpack(low, jwtId);
+        }
+        return jwtId.toString();
+    }
+
+    private static long pack(String jwtId, int offset) {
+        long packed = 0;
+        for (int i = 0; i < CHARS_PER_LONG; i++) {
+            int index = offset + i;
+            int code = index < jwtId.length() ? toCode(jwtId.charAt(index)) : NO_CODE;
+            packed = (packed << BITS_PER_CHAR) | code;
+        }
+        return packed;
+    }
+
+    /**
+     * Appends the characters of one <code>long</code> and returns <code>false</code> if the ID ended within it.
+     */
+    private static boolean unpack(long packed, StringBuilder jwtId) {
+        for (int i = CHARS_PER_LONG - 1; i >= 0; i--) {
+            int code = (int) (packed >>> (i * BITS_PER_CHAR)) & CHAR_MASK;
+            if (code == NO_CODE) {
+                return false;
+            }
+            jwtId.append(ALPHABET.charAt(code - 1));
+        }
+        return true;
+    }
+
+    private static int toCode(char c) {
+        if (c >= '0' && c <= '9') {
+            return 1 + c - '0';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return 11 + c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return 37 + c - 'a';
+        }
+        return NO_CODE;
+    }
+}
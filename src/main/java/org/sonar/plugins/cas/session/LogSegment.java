@@ -0,0 +1,119 @@
+package org.sonar.plugins.cas.session;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class represents a single append-only segment file of the {@link LogStructuredSessionStore}.
+ *
+ * <p>Appending is not thread-safe and must be serialized by the caller. Reading uses positional reads and can be done
+ * concurrently to appending.</p>
+ */
+final class LogSegment implements Closeable {
+    private static final String SEGMENT_FILE_FORMAT = "segment-%08d.log";
+    private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d{8})\\.log");
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile long size;
+
+    private LogSegment(int id, Path path, FileChannel channel) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    static LogSegment open(Path directory, int id) throws IOException {
+        Path path = directory.resolve(String.format(SEGMENT_FILE_FORMAT, id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new LogSegment(id, path, channel);
+    }
+
+    /**
+     * Returns the segment id encoded in the file name or -1 if the file is not a segment file.
+     */
+    static int parseSegmentId(Path file) {
+        Matcher matcher = SEGMENT_FILE_PATTERN.matcher(file.getFileName().toString());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Appends the given record at the end of this segment.
+     *
+     * @return the offset where the record starts.
+     */
+    long append(ByteBuffer record) throws IOException {
+        long offset = size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        size = position;
+
+        return offset;
+    }
+
+    ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of session log segment " + path);
+            }
+            position += read;
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Cuts off a partially written record at the end of the segment, f. e. after a crash during an append.
+     */
+    void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        size = newSize;
+    }
+
+    void flush() throws IOException {
+        channel.force(false);
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
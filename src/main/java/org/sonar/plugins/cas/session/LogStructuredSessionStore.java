@@ -0,0 +1,655 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.session.SessionFileWriter.Durability;
+import org.sonar.plugins.cas.session.SessionLogRecord.CorruptRecordException;
+import org.sonar.plugins.cas.session.SessionLogRecord.Type;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * This class implements a log-structured session store in the spirit of Bitcask.
+ *
+ * <p>Instead of one file per JWT and service ticket, all changes are appended as compact records (see
+ * {@link SessionLogRecord}) to a small number of segment files. An in-memory index maps each JWT ID and each service
+ * ticket to the offset of its latest record. This way {@link #isJwtStored(SimpleJwt)} is answered from memory and
+ * {@link #fetchStoredJwt(SimpleJwt)} costs a single positional read.
+ * </p>
+ *
+ * <p>The index is rebuilt from the segments during {@link #prepareForWork()}. A partially written record at the end of
+ * the newest segment (f. e. after a crash) is cut off. Segments which mostly contain superseded records are compacted
+ * in the background: their live records are copied to the active segment and the old segment file is deleted.
+ * </p>
+ *
+ * <p>When appended records become durable on disk depends on the {@link Durability}, like the files of the
+ * {@link FileSessionStore}. Compacted records are always forced to disk before the old segment is deleted.</p>
+ */
+public final class LogStructuredSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(LogStructuredSessionStore.class);
+    private static final String SEGMENT_DIRECTORY = "segments";
+    private static final long MAX_SEGMENT_SIZE = 8L * 1024 * 1024;
+    private static final long COMPACTION_INTERVAL_IN_MINUTES = 10;
+    /** segments whose live records take less than this share of the segment size are compacted */
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final String NO_TICKET_FOUND = "no ticket found";
+    private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 30;
+    /** the number of tombstones which are appended during a single hold of the append lock */
+    private static final int REMOVAL_BATCH_SIZE = 256;
+
+    private final Path segmentDirectory;
+    private final Map<Integer, LogSegment> segments = new ConcurrentHashMap<>();
+    private final Map<String, RecordPointer> jwtIndex = new ConcurrentHashMap<>();
+    private final Map<String, RecordPointer> ticketIndex = new ConcurrentHashMap<>();
+    /** serializes all appends, index modifications and the compaction */
+    private final Object appendLock = new Object();
+    /** protects readers against segments that are removed during compaction */
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Durability durability;
+    private final long groupCommitIntervalInMillis;
+    /** segments which were appended to since the last group commit */
+    private final Set<LogSegment> unsyncedSegments = ConcurrentHashMap.newKeySet();
+    private LogSegment activeSegment;
+    private ScheduledExecutorService compactionExecutor;
+    private ScheduledExecutorService groupCommitExecutor;
+
+    /**
+     * default visibility constructor for testing
+     */
+    LogStructuredSessionStore(String sessionStorePath, Durability durability, long groupCommitIntervalInMillis) {
+        if (durability == Durability.GROUP && groupCommitIntervalInMillis <= 0) {
+            throw new IllegalArgumentException("groupCommitIntervalInMillis must be strictly positive");
+        }
+        this.segmentDirectory = Paths.get(sessionStorePath, SEGMENT_DIRECTORY);
+        this.durability = durability;
+        this.groupCommitIntervalInMillis = groupCommitIntervalInMillis;
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        LOG.info("Creating CAS log-structured session store with path {}", segmentDirectory);
+        Files.createDirectories(segmentDirectory);
+
+        synchronized (appendLock) {
+            List<Integer> segmentIds = listSegmentIds();
+            for (int i = 0; i < segmentIds.size(); i++) {
+                LogSegment segment = LogSegment.open(segmentDirectory, segmentIds.get(i));
+                segments.put(segment.getId(), segment);
+
+                boolean newestSegment = i == segmentIds.size() - 1;
+                replay(segment, newestSegment);
+            }
+
+            int activeSegmentId = segmentIds.isEmpty() ? 1 : segmentIds.get(segmentIds.size() - 1);
+            activeSegment = segments.containsKey(activeSegmentId) ? segments.get(activeSegmentId) : openSegment(activeSegmentId);
+        }
+        LOG.info("Recovered {} JWTs and {} service tickets from {} segments", jwtIndex.size(), ticketIndex.size(),
+                segments.size());
+
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-log-compaction")
+                .build());
+        compactionExecutor.scheduleWithFixedDelay(this::compactSafely, COMPACTION_INTERVAL_IN_MINUTES,
+                COMPACTION_INTERVAL_IN_MINUTES, TimeUnit.MINUTES);
+
+        if (durability == Durability.GROUP) {
+            groupCommitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("cas-session-log-group-commit")
+                    .build());
+            groupCommitExecutor.scheduleWithFixedDelay(this::groupCommitSafely, groupCommitIntervalInMillis,
+                    groupCommitIntervalInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<Integer> listSegmentIds() throws IOException {
+        List<Integer> segmentIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory)) {
+            for (Path file : files) {
+                int segmentId = LogSegment.parseSegmentId(file);
+                if (segmentId > 0) {
+                    segmentIds.add(segmentId);
+                }
+            }
+        }
+        Collections.sort(segmentIds);
+
+        return segmentIds;
+    }
+
+    private void replay(LogSegment segment, boolean newestSegment) throws IOException {
+        ByteBuffer content = segment.read(0, (int) segment.getSize());
+
+        while (content.hasRemaining()) {
+            int offset = content.position();
+            try {
+                SessionLogRecord record = SessionLogRecord.decode(content);
+                int length = content.position() - offset;
+                apply(record, new RecordPointer(segment.getId(), offset, length, record.getExpiration()));
+            } catch (CorruptRecordException e) {
+                handleCorruptRecord(segment, offset, newestSegment, e);
+                return;
+            }
+        }
+    }
+
+    private void handleCorruptRecord(LogSegment segment, int offset, boolean newestSegment, CorruptRecordException e) throws IOException {
+        if (newestSegment) {
+            LOG.warn("Found incomplete record at offset {} of CAS session log segment {}. The record is removed.",
+                    offset, segment, e);
+            segment.truncate(offset);
+        } else {
+            LOG.error("Found corrupt record at offset {} of CAS session log segment {}. Skipping the rest of the segment.",
+                    offset, segment, e);
+        }
+    }
+
+    private void apply(SessionLogRecord record, RecordPointer pointer) {
+        switch (record.getType()) {
+            case STORE:
+                jwtIndex.put(record.getJwtId(), pointer);
+                if (record.hasServiceTicket()) {
+                    ticketIndex.put(record.getServiceTicket(), pointer);
+                }
+                break;
+            case REFRESH:
+            case INVALIDATE:
+                jwtIndex.put(record.getJwtId(), pointer);
+                break;
+            case TICKET:
+                ticketIndex.put(record.getServiceTicket(), pointer);
+                break;
+            case TOMBSTONE:
+                jwtIndex.remove(record.getJwtId());
+                if (record.hasServiceTicket()) {
+                    ticketIndex.remove(record.getServiceTicket());
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unhandled session log record type " + record.getType());
+        }
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        if (StringUtils.isEmpty(ticket)) {
+            throw new IllegalArgumentException("Could not store JWT: serviceTicket must not be null");
+        }
+        LOG.debug("store ticket {} to token {}", ticket, jwt.getJwtId());
+
+        try {
+            synchronized (appendLock) {
+                RecordPointer pointer = append(SessionLogRecord.of(Type.STORE, jwt, ticket));
+                commit(pointer);
+                jwtIndex.put(jwt.getJwtId(), pointer);
+                ticketIndex.put(ticket, pointer);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not store JWT " + jwt.getJwtId() + " to session log.", e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        boolean stored = jwtIndex.containsKey(jwt.getJwtId());
+        LOG.debug("check if JWT {} is stored: {}", jwt.getJwtId(), stored);
+
+        return stored;
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        LOG.debug("get token {}", jwt.getJwtId());
+
+        SessionLogRecord record;
+        Lock lock = segmentLock.readLock();
+        lock.lock();
+        try {
+            RecordPointer pointer = jwtIndex.get(jwt.getJwtId());
+            if (pointer == null) {
+                return SimpleJwt.getNullObject();
+            }
+            record = read(pointer);
+        } catch (Exception e) {
+            LOG.error("Could not return JWT " + jwt.getJwtId() + " from session log", e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        } finally {
+            lock.unlock();
+        }
+
+        return record.toJwt();
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        return StoredJwtState.of(fetchStoredJwt(jwt));
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        Lock lock = segmentLock.readLock();
+        lock.lock();
+        try {
+            for (RecordPointer pointer : jwtIndex.values()) {
+                consumer.accept(read(pointer).toJwt());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        LOG.debug("invalidate token by ticket {}", serviceTicketId);
+
+        try {
+            synchronized (appendLock) {
+                RecordPointer ticketPointer = ticketIndex.get(serviceTicketId);
+                if (ticketPointer == null) {
+                    LOG.debug("Could not find service ticket {} for invalidation", serviceTicketId);
+                    return NO_TICKET_FOUND;
+                }
+
+                String jwtId = read(ticketPointer).getJwtId();
+                RecordPointer jwtPointer = jwtIndex.get(jwtId);
+                if (jwtPointer == null) {
+                    return NO_TICKET_FOUND;
+                }
+
+                SessionLogRecord current = read(jwtPointer);
+                SimpleJwt invalidated = current.toJwt().cloneAsInvalidated();
+                RecordPointer pointer = append(SessionLogRecord.of(Type.INVALIDATE, invalidated,
+                        current.getServiceTicket()));
+                commit(pointer);
+                jwtIndex.put(jwtId, pointer);
+
+                LOG.debug("successfully invalidated token {} by ticket {}", jwtId, serviceTicketId);
+                return jwtId;
+            }
+        } catch (IOException e) {
+            LOG.error("Could not invalidate JWT with granting ticket " + serviceTicketId, e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) {
+        String jwtId = jwtWithLongerExpirationDate.getJwtId();
+        LOG.debug("refresh token {}", jwtId);
+
+        try {
+            synchronized (appendLock) {
+                RecordPointer pointer = jwtIndex.get(jwtId);
+                if (pointer == null) {
+                    LOG.debug("Could not refresh token {} because it is not stored", jwtId);
+                    return;
+                }
+
+                SessionLogRecord current = read(pointer);
+                // a refresh extends the expiration but never makes an invalidated JWT valid again
+                SimpleJwt refreshed = current.toJwt().cloneWithExpirationOf(jwtWithLongerExpirationDate);
+                RecordPointer refreshedPointer = append(SessionLogRecord.of(Type.REFRESH, refreshed,
+                        current.getServiceTicket()));
+                commit(refreshedPointer);
+                jwtIndex.put(jwtId, refreshedPointer);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not refresh JWT " + jwtId, e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        }
+
+        LOG.debug("successfully refreshed token {}", jwtId);
+    }
+
+    /**
+     * Removes expired JWTs and their service tickets. The expired JWTs are collected from the index without any lock.
+     * Their tombstones are appended in batches of {@value #REMOVAL_BATCH_SIZE}, and the append lock is released between
+     * the batches, so logins and log-outs never wait for a whole clean-up. A JWT which was changed or moved by a
+     * compaction since it was collected is left to the next clean-up.
+     */
+    @Override
+    public int removeExpiredEntries() {
+        long now = Instant.now().getEpochSecond();
+        List<String> expiredJwtIds = new ArrayList<>();
+        Map<String, RecordPointer> expiredPointers = new HashMap<>();
+        for (Map.Entry<String, RecordPointer> entry : jwtIndex.entrySet()) {
+            if (entry.getValue().expiration < now) {
+                expiredJwtIds.add(entry.getKey());
+                expiredPointers.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        int removalCounter = 0;
+        for (int from = 0; from < expiredJwtIds.size(); from += REMOVAL_BATCH_SIZE) {
+            List<String> batch = expiredJwtIds.subList(from, Math.min(from + REMOVAL_BATCH_SIZE, expiredJwtIds.size()));
+            removalCounter += removeExpiredBatch(readServiceTickets(batch, expiredPointers), expiredPointers);
+        }
+
+        return removalCounter;
+    }
+
+    /**
+     * Reads the service tickets of the expired JWTs under the segment read lock, so appends go on meanwhile.
+     *
+     * @return the service tickets by JWT ID
+     */
+    private Map<String, String> readServiceTickets(List<String> jwtIds, Map<String, RecordPointer> expiredPointers) {
+        Map<String, String> serviceTickets = new HashMap<>();
+        Lock lock = segmentLock.readLock();
+        lock.lock();
+        try {
+            for (String jwtId : jwtIds) {
+                RecordPointer pointer = expiredPointers.get(jwtId);
+                // a compaction may have removed the segment since the JWT was collected
+                if (jwtIndex.get(jwtId) != pointer) {
+                    continue;
+                }
+                try {
+                    serviceTickets.put(jwtId, read(pointer).getServiceTicket());
+                } catch (IOException e) {
+                    LOG.error("Could not remove expired JWT " + jwtId + " from session log", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return serviceTickets;
+    }
+
+    private int removeExpiredBatch(Map<String, String> serviceTickets, Map<String, RecordPointer> expiredPointers) {
+        int removalCounter = 0;
+        Set<LogSegment> appendedSegments = new HashSet<>();
+
+        synchronized (appendLock) {
+            for (Map.Entry<String, String> entry : serviceTickets.entrySet()) {
+                String jwtId = entry.getKey();
+                String serviceTicket = entry.getValue();
+                // skip JWTs which were refreshed, invalidated or compacted since they were collected
+                if (jwtIndex.get(jwtId) != expiredPointers.get(jwtId)) {
+                    continue;
+                }
+                try {
+                    RecordPointer tombstone = append(SessionLogRecord.tombstone(jwtId, serviceTicket));
+                    appendedSegments.add(segments.get(tombstone.segmentId));
+                } catch (IOException e) {
+                    LOG.error("Could not remove expired JWT " + jwtId + " from session log", e);
+                    continue;
+                }
+
+                jwtIndex.remove(jwtId);
+                ++removalCounter;
+                if (ticketIndex.remove(serviceTicket) != null) {
+                    ++removalCounter;
+                }
+            }
+
+            try {
+                for (LogSegment segment : appendedSegments) {
+                    commit(segment);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not force removed JWTs of the session log to disk", e);
+            }
+        }
+
+        return removalCounter;
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        // interrupting a compaction would close the segment channel it writes to, so let it finish
+        awaitTermination(compactionExecutor, "compaction");
+        awaitTermination(groupCommitExecutor, "group commit");
+
+        synchronized (appendLock) {
+            for (LogSegment segment : segments.values()) {
+                segment.flush();
+                segment.close();
+            }
+        }
+    }
+
+    private void awaitTermination(ScheduledExecutorService executor, String task) {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("CAS session log {} did not finish within {} seconds", task, SHUTDOWN_TIMEOUT_IN_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes an appended record durable as configured. Must be called while holding the append lock.
+     */
+    private void commit(RecordPointer pointer) throws IOException {
+        commit(segments.get(pointer.segmentId));
+    }
+
+    private void commit(LogSegment segment) throws IOException {
+        if (durability == Durability.FSYNC) {
+            segment.flush();
+        } else if (durability == Durability.GROUP) {
+            unsyncedSegments.add(segment);
+        }
+    }
+
+    private void groupCommitSafely() {
+        // compaction deletes segments only while holding the write lock
+        Lock lock = segmentLock.readLock();
+        lock.lock();
+        try {
+            for (LogSegment segment : unsyncedSegments) {
+                unsyncedSegments.remove(segment);
+                if (segments.get(segment.getId()) == segment) {
+                    segment.flush();
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Could not force CAS session log segments to disk", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void compactSafely() {
+        try {
+            compact();
+        } catch (Exception e) {
+            LOG.error("Could not compact CAS session log", e);
+        }
+    }
+
+    /**
+     * Copies the live records of sparsely used segments into the active segment and removes the old segments
+     * afterwards.
+     *
+     * <p>Tombstones are never copied. When a JWT's older records live in a segment which is not compacted yet, such a
+     * JWT may reappear after a restart. This is harmless because it is expired and is removed again during the next
+     * clean-up.</p>
+     */
+    void compact() throws IOException {
+        synchronized (appendLock) {
+            List<LogSegment> candidates = findCompactionCandidates();
+            if (candidates.isEmpty()) {
+                return;
+            }
+
+            int firstTargetSegmentId = activeSegment.getId();
+            for (LogSegment candidate : candidates) {
+                copyLiveRecords(candidate);
+            }
+            // the copies must be durable before their originals are deleted
+            for (int segmentId = firstTargetSegmentId; segmentId <= activeSegment.getId(); segmentId++) {
+                segments.get(segmentId).flush();
+            }
+
+            segmentLock.writeLock().lock();
+            try {
+                for (LogSegment candidate : candidates) {
+                    segments.remove(candidate.getId());
+                    candidate.delete();
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            LOG.debug("Compacted {} CAS session log segments", candidates.size());
+        }
+    }
+
+    private List<LogSegment> findCompactionCandidates() {
+        Map<Integer, Long> liveBytesBySegment = new HashMap<>();
+        Set<RecordPointer> countedPointers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (RecordPointer pointer : jwtIndex.values()) {
+            addLiveBytes(liveBytesBySegment, countedPointers, pointer);
+        }
+        for (RecordPointer pointer : ticketIndex.values()) {
+            addLiveBytes(liveBytesBySegment, countedPointers, pointer);
+        }
+
+        List<LogSegment> candidates = new ArrayList<>();
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment) {
+                continue;
+            }
+            long liveBytes = liveBytesBySegment.getOrDefault(segment.getId(), 0L);
+            if (liveBytes < segment.getSize() * COMPACTION_LIVE_RATIO) {
+                candidates.add(segment);
+            }
+        }
+
+        return candidates;
+    }
+
+    private static void addLiveBytes(Map<Integer, Long> liveBytesBySegment, Set<RecordPointer> countedPointers, RecordPointer pointer) {
+        if (countedPointers.add(pointer)) {
+            liveBytesBySegment.merge(pointer.segmentId, (long) pointer.length, Long::sum);
+        }
+    }
+
+    private void copyLiveRecords(LogSegment candidate) throws IOException {
+        Map<RecordPointer, RecordPointer> movedPointers = new IdentityHashMap<>();
+
+        for (Map.Entry<String, RecordPointer> entry : jwtIndex.entrySet()) {
+            RecordPointer oldPointer = entry.getValue();
+            if (oldPointer.segmentId != candidate.getId()) {
+                continue;
+            }
+            RecordPointer newPointer = copy(oldPointer);
+            movedPointers.put(oldPointer, newPointer);
+            entry.setValue(newPointer);
+        }
+
+        for (Map.Entry<String, RecordPointer> entry : ticketIndex.entrySet()) {
+            RecordPointer oldPointer = entry.getValue();
+            if (oldPointer.segmentId != candidate.getId()) {
+                continue;
+            }
+            RecordPointer newPointer = movedPointers.get(oldPointer);
+            if (newPointer == null) {
+                // the JWT state lives in a later record, so keep only the mapping from the ticket to the JWT
+                String jwtId = read(oldPointer).getJwtId();
+                newPointer = append(SessionLogRecord.ticket(jwtId, entry.getKey()));
+            }
+            entry.setValue(newPointer);
+        }
+    }
+
+    private RecordPointer copy(RecordPointer pointer) throws IOException {
+        ByteBuffer record = segments.get(pointer.segmentId).read(pointer.offset, pointer.length);
+        RecordPointer appended = appendRaw(record);
+
+        return new RecordPointer(appended.segmentId, appended.offset, appended.length, pointer.expiration);
+    }
+
+    /**
+     * Must be called while holding the append lock.
+     */
+    private RecordPointer append(SessionLogRecord record) throws IOException {
+        RecordPointer pointer = appendRaw(record.encode());
+        return new RecordPointer(pointer.segmentId, pointer.offset, pointer.length, record.getExpiration());
+    }
+
+    private RecordPointer appendRaw(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (activeSegment.getSize() > 0 && activeSegment.getSize() + length > MAX_SEGMENT_SIZE) {
+            activeSegment = openSegment(activeSegment.getId() + 1);
+        }
+        long offset = activeSegment.append(record);
+
+        return new RecordPointer(activeSegment.getId(), offset, length, 0L);
+    }
+
+    private LogSegment openSegment(int segmentId) throws IOException {
+        LogSegment segment = LogSegment.open(segmentDirectory, segmentId);
+        segments.put(segmentId, segment);
+        LOG.debug("Opened CAS session log segment {}", segment);
+
+        return segment;
+    }
+
+    /**
+     * Callers must hold either the append lock or the segment read lock.
+     */
+    private SessionLogRecord read(RecordPointer pointer) throws IOException {
+        LogSegment segment = segments.get(pointer.segmentId);
+        return SessionLogRecord.decode(segment.read(pointer.offset, pointer.length));
+    }
+
+    /**
+     * Points to a record within a segment. The expiration of JWT records is kept here as well so the clean-up can find
+     * expired JWTs without reading any record.
+     */
+    private static final class RecordPointer {
+        private final int segmentId;
+        private final long offset;
+        private final int length;
+        private final long expiration;
+
+        RecordPointer(int segmentId, long offset, int length, long expiration) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.expiration = expiration;
+        }
+    }
+
+    private static class CasIOAuthenticationException extends RuntimeException {
+        CasIOAuthenticationException(String message) {
+            super(message);
+        }
+    }
+}
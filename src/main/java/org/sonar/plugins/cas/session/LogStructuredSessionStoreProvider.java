@@ -0,0 +1,39 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.plugins.cas.util.SonarCasProperties;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Provides the {@link LogStructuredSessionStore} as session store type <code>log</code>.
+ */
+public final class LogStructuredSessionStoreProvider implements CasSessionStoreProvider {
+    static final String TYPE = "log";
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public List<String> getPropertyKeys() {
+        return Arrays.asList(
+                SonarCasProperties.SESSION_STORE_PATH.toString(),
+                SonarCasProperties.SESSION_STORE_DURABILITY.toString(),
+                SonarCasProperties.SESSION_STORE_GROUP_COMMIT_INTERVAL_IN_MILLIS.toString());
+    }
+
+    @Override
+    public CasSessionStore create(Configuration configuration) {
+        SessionFileWriter.Durability durability = SessionFileWriter.Durability.of(
+                SonarCasProperties.SESSION_STORE_DURABILITY.getString(configuration,
+                        FileSessionStoreProvider.DURABILITY_DEFAULT));
+        int groupCommitIntervalInMillis = SonarCasProperties.SESSION_STORE_GROUP_COMMIT_INTERVAL_IN_MILLIS.getInteger(
+                configuration, FileSessionStoreProvider.GROUP_COMMIT_INTERVAL_IN_MILLIS_DEFAULT);
+
+        return new LogStructuredSessionStore(SonarCasProperties.SESSION_STORE_PATH.mustGetString(configuration),
+                durability, groupCommitIntervalInMillis);
+    }
+}
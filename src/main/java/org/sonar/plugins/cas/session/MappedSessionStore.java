@@ -0,0 +1,283 @@
+package org.sonar.plugins.cas.session;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * This class implements a session store which keeps JWTs and service tickets in two memory-mapped hash tables (see
+ * {@link MappedSlotTable}).
+ *
+ * <p>The blacklist check only needs the JWT ID, its expiration date and the invalid flag. These fit into a small
+ * fixed-size slot so {@link #lookupJwt(SimpleJwt)} and {@link #fetchStoredJwt(SimpleJwt)} are answered with a few
+ * reads from mapped memory without parsing anything. The tables live in the session store path so they survive server
+ * restarts. Changes are written back by the operating system and are explicitly flushed during shut down.
+ * </p>
+ *
+ * <p>The clean up sweeps the tables in chunks of slots and releases the lock between the chunks, so lookups never wait
+ * for a whole sweep. Entries which are moved by a concurrent rehash may be missed and are removed by the next clean up.
+ * </p>
+ */
+public final class MappedSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSessionStore.class);
+    private static final String JWT_TABLE_FILE = "jwt.slots";
+    private static final String TICKET_TABLE_FILE = "ticket.slots";
+    private static final int INITIAL_CAPACITY = 16_384;
+    private static final int MAX_JWT_ID_LENGTH = 32;
+    /** CAS clients should be able to handle service tickets of up to 256 characters */
+    private static final int MAX_SERVICE_TICKET_LENGTH = 256;
+    private static final int JWT_EXPIRATION_OFFSET = 0;
+    private static final int JWT_FLAGS_OFFSET = 8;
+    private static final int JWT_VALUE_SIZE = 9;
+    private static final int TICKET_JWT_ID_OFFSET = 0;
+    private static final int TICKET_VALUE_SIZE = 1 + MAX_JWT_ID_LENGTH;
+    private static final byte FLAG_INVALID = 1;
+    private static final String NO_TICKET_FOUND = "no ticket found";
+    private static final int SWEEP_CHUNK_SLOTS = 4096;
+
+    private final Path sessionStoreDir;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedSlotTable jwtTable;
+    private MappedSlotTable ticketTable;
+
+    /**
+     * default visibility constructor for testing
+     */
+    MappedSessionStore(String sessionStorePath) {
+        this.sessionStoreDir = Paths.get(sessionStorePath);
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        LOG.info("Creating CAS memory-mapped session store with path {}", sessionStoreDir);
+        Files.createDirectories(sessionStoreDir);
+
+        jwtTable = MappedSlotTable.open(sessionStoreDir.resolve(JWT_TABLE_FILE), INITIAL_CAPACITY,
+                MAX_JWT_ID_LENGTH, JWT_VALUE_SIZE);
+        ticketTable = MappedSlotTable.open(sessionStoreDir.resolve(TICKET_TABLE_FILE), INITIAL_CAPACITY,
+                MAX_SERVICE_TICKET_LENGTH, TICKET_VALUE_SIZE);
+
+        LOG.info("Found {} JWTs and {} service tickets in CAS memory-mapped session store", jwtTable.size(),
+                ticketTable.size());
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        if (StringUtils.isEmpty(ticket)) {
+            throw new IllegalArgumentException("Could not store JWT: serviceTicket must not be null");
+        }
+        LOG.debug("store ticket {} to token {}", ticket, jwt.getJwtId());
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            // fail before anything is written
+            jwtTable.assertValidKey(jwt.getJwtId());
+            ticketTable.assertValidKey(ticket);
+
+            writeJwt(jwtTable.insert(jwt.getJwtId()), jwt);
+
+            int ticketSlot = ticketTable.insert(ticket);
+            ticketTable.putString(ticketSlot, TICKET_JWT_ID_OFFSET, jwt.getJwtId());
+        } catch (IOException e) {
+            LOG.error("Could not store JWT " + jwt.getJwtId() + " to memory-mapped session store.", e);
+            throw new CasIOAuthenticationException("An authentication problem occurred. Please let your SonarQube administrator know.");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            boolean stored = jwtTable.find(jwt.getJwtId()) >= 0;
+            LOG.debug("check if JWT {} is stored: {}", jwt.getJwtId(), stored);
+
+            return stored;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        LOG.debug("get token {}", jwt.getJwtId());
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int slot = jwtTable.find(jwt.getJwtId());
+            if (slot < 0) {
+                return SimpleJwt.getNullObject();
+            }
+
+            return readJwt(slot, jwt.getJwtId());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        return StoredJwtState.of(fetchStoredJwt(jwt));
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            jwtTable.forEachUsedSlot(slot -> consumer.accept(readJwt(slot, jwtTable.getKey(slot))));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        LOG.debug("invalidate token by ticket {}", serviceTicketId);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int ticketSlot = ticketTable.find(serviceTicketId);
+            if (ticketSlot < 0) {
+                LOG.debug("Could not find service ticket {} for invalidation", serviceTicketId);
+                return NO_TICKET_FOUND;
+            }
+
+            String jwtId = ticketTable.getString(ticketSlot, TICKET_JWT_ID_OFFSET);
+            int jwtSlot = jwtTable.find(jwtId);
+            if (jwtSlot < 0) {
+                return NO_TICKET_FOUND;
+            }
+
+            byte flags = jwtTable.getByte(jwtSlot, JWT_FLAGS_OFFSET);
+            jwtTable.putByte(jwtSlot, JWT_FLAGS_OFFSET, (byte) (flags | FLAG_INVALID));
+
+            LOG.debug("successfully invalidated token {} by ticket {}", jwtId, serviceTicketId);
+            return jwtId;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) {
+        String jwtId = jwtWithLongerExpirationDate.getJwtId();
+        LOG.debug("refresh token {}", jwtId);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int slot = jwtTable.find(jwtId);
+            if (slot < 0) {
+                LOG.debug("Could not refresh token {} because it is not stored", jwtId);
+                return;
+            }
+            // a refresh extends the expiration but never makes an invalidated JWT valid again
+            writeJwt(slot, readJwt(slot, jwtId).cloneWithExpirationOf(jwtWithLongerExpirationDate));
+        } finally {
+            writeLock.unlock();
+        }
+
+        LOG.debug("successfully refreshed token {}", jwtId);
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        long now = Instant.now().getEpochSecond();
+        Set<String> expiredJwtIds = new HashSet<>();
+
+        sweep(jwtTable, slot -> {
+            if (jwtTable.getLong(slot, JWT_EXPIRATION_OFFSET) < now) {
+                expiredJwtIds.add(jwtTable.getKey(slot));
+                jwtTable.remove(slot);
+            }
+        });
+
+        int[] removedTickets = {0};
+        if (!expiredJwtIds.isEmpty()) {
+            sweep(ticketTable, slot -> {
+                String jwtId = ticketTable.getString(slot, TICKET_JWT_ID_OFFSET);
+                // the JWT could have been stored again since the sweep of the JWT table
+                if (expiredJwtIds.contains(jwtId) && jwtTable.find(jwtId) < 0) {
+                    ticketTable.remove(slot);
+                    removedTickets[0]++;
+                }
+            });
+        }
+
+        return expiredJwtIds.size() + removedTickets[0];
+    }
+
+    /**
+     * Calls the consumer with each used slot of the table, chunk by chunk under the write lock. The capacity is read
+     * again for each chunk because the table may grow between the chunks.
+     */
+    private void sweep(MappedSlotTable table, IntConsumer consumer) {
+        Lock writeLock = lock.writeLock();
+        for (int fromSlot = 0; ; fromSlot += SWEEP_CHUNK_SLOTS) {
+            writeLock.lock();
+            try {
+                if (fromSlot >= table.capacity()) {
+                    return;
+                }
+                table.forEachUsedSlot(fromSlot, fromSlot + SWEEP_CHUNK_SLOTS, consumer);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (jwtTable != null) {
+                jwtTable.close();
+            }
+            if (ticketTable != null) {
+                ticketTable.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeJwt(int slot, SimpleJwt jwt) {
+        jwtTable.putLong(slot, JWT_EXPIRATION_OFFSET, jwt.getExpiration().getEpochSecond());
+        jwtTable.putByte(slot, JWT_FLAGS_OFFSET, jwt.isInvalid() ? FLAG_INVALID : 0);
+    }
+
+    private SimpleJwt readJwt(int slot, String jwtId) {
+        long expiration = jwtTable.getLong(slot, JWT_EXPIRATION_OFFSET);
+        boolean invalid = (jwtTable.getByte(slot, JWT_FLAGS_OFFSET) & FLAG_INVALID) != 0;
+
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(jwtId, expiration);
+        return invalid ? jwt.cloneAsInvalidated() : jwt;
+    }
+
+    private static class CasIOAuthenticationException extends RuntimeException {
+        CasIOAuthenticationException(String message) {
+            super(message);
+        }
+    }
+}
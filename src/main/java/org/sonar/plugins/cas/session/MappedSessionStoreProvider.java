@@ -0,0 +1,29 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.plugins.cas.util.SonarCasProperties;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Provides the {@link MappedSessionStore} as session store type <code>mapped</code>.
+ */
+public final class MappedSessionStoreProvider implements CasSessionStoreProvider {
+    static final String TYPE = "mapped";
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public List<String> getPropertyKeys() {
+        return Collections.singletonList(SonarCasProperties.SESSION_STORE_PATH.toString());
+    }
+
+    @Override
+    public CasSessionStore create(Configuration configuration) {
+        return new MappedSessionStore(SonarCasProperties.SESSION_STORE_PATH.mustGetString(configuration));
+    }
+}
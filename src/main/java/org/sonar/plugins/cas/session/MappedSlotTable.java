@@ -0,0 +1,460 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * This class implements an open-addressing hash table with fixed-size slots inside a memory-mapped file.
+ *
+ * <p>Keys are ASCII strings of a limited length. Each slot holds a state byte, the key and a fixed number of value
+ * bytes which are read and written by the caller. Lookups compare the key directly against the mapped memory and do
+ * not allocate any objects. Collisions are resolved with linear probing; removed slots are marked as deleted until the
+ * table is rehashed.
+ * </p>
+ *
+ * <p>The file starts with a header:</p>
+ * <pre>
+ * int magic number
+ * int layout version
+ * int capacity (number of slots, a power of two)
+ * int maximum key length
+ * int value size in bytes
+ * int number of used slots
+ * int number of deleted slots
+ * </pre>
+ * <p>and is followed by the slots:</p>
+ * <pre>
+ * byte  state (empty, used, deleted)
+ * byte  unused
+ * short key length
+ * byte[maximum key length] ASCII key
+ * byte[value size]         value
+ * </pre>
+ *
+ * <p>This class is not thread-safe. Callers must make sure that writes and rehashing are not done concurrently to
+ * other operations.</p>
+ *
+ * <p>A rehash and {@link #close()} unmap the replaced mapping right away instead of leaving it to the garbage
+ * collector, which could keep the address space and the file of each rehash mapped until the next full collection. If
+ * the running JVM does not allow to unmap a buffer, the mapping is released by the garbage collector as before.</p>
+ */
+final class MappedSlotTable implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSlotTable.class);
+    private static final int MAGIC = 0x43415353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_MAX_KEY_LENGTH = 12;
+    private static final int OFFSET_VALUE_SIZE = 16;
+    private static final int OFFSET_USED = 20;
+    private static final int OFFSET_DELETED = 24;
+    private static final int SLOT_KEY_OFFSET = 4;
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+
+    private final Path path;
+    private final int maxKeyLength;
+    private final int valueSize;
+    private final int slotSize;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int used;
+    private int deleted;
+
+    private MappedSlotTable(Path path, int maxKeyLength, int valueSize) {
+        this.path = path;
+        this.maxKeyLength = maxKeyLength;
+        this.valueSize = valueSize;
+        int unalignedSlotSize = SLOT_KEY_OFFSET + maxKeyLength + valueSize;
+        this.slotSize = (unalignedSlotSize + 7) & ~7;
+    }
+
+    /**
+     * Opens an existing table file or creates a new one with the given initial capacity.
+     *
+     * @throws IOException if the file cannot be mapped or if an existing file has a different layout.
+     */
+    static MappedSlotTable open(Path path, int initialCapacity, int maxKeyLength, int valueSize) throws IOException {
+        MappedSlotTable table = new MappedSlotTable(path, maxKeyLength, valueSize);
+        if (Files.exists(path)) {
+            table.mapExisting();
+        } else {
+            table.mapNew(initialCapacity);
+        }
+        return table;
+    }
+
+    private void mapExisting() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        boolean expectedLayout = header.getInt(OFFSET_MAGIC) == MAGIC && header.getInt(OFFSET_VERSION) == VERSION
+                && header.getInt(OFFSET_MAX_KEY_LENGTH) == maxKeyLength && header.getInt(OFFSET_VALUE_SIZE) == valueSize;
+        int headerCapacity = header.getInt(OFFSET_CAPACITY);
+        unmap(header);
+        if (!expectedLayout) {
+            channel.close();
+            throw new IOException("Session store file " + path + " has an unexpected layout");
+        }
+
+        capacity = headerCapacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+        used = buffer.getInt(OFFSET_USED);
+        deleted = buffer.getInt(OFFSET_DELETED);
+    }
+
+    private void mapNew(int initialCapacity) throws IOException {
+        capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_MAX_KEY_LENGTH, maxKeyLength);
+        buffer.putInt(OFFSET_VALUE_SIZE, valueSize);
+        writeCounters();
+    }
+
+    private int fileSize(int slots) {
+        long size = HEADER_SIZE + (long) slots * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Session store file " + path + " cannot grow beyond " + slots / 2 + " slots");
+        }
+        return (int) size;
+    }
+
+    int size() {
+        return used;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the slot of the given key or -1 if the key is not stored.
+     */
+    int find(String key) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        for (int probe = 0; probe < capacity; probe++) {
+            int offset = slotOffset(slot);
+            byte state = buffer.get(offset);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && keyEquals(offset, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the given key. A new slot is taken if the key is not yet stored. Taking a new slot may
+     * rehash the table, so slots returned earlier must not be used afterwards.
+     */
+    int insert(String key) throws IOException {
+        assertValidKey(key);
+        int existing = find(key);
+        if (existing >= 0) {
+            return existing;
+        }
+
+        ensureCapacity();
+        int slot = findFreeSlot(hash(key));
+        writeKey(slotOffset(slot), key);
+
+        return slot;
+    }
+
+    void remove(int slot) {
+        int offset = slotOffset(slot);
+        if (buffer.get(offset) != USED) {
+            return;
+        }
+        buffer.put(offset, DELETED);
+        used--;
+        deleted++;
+        writeCounters();
+    }
+
+    /**
+     * Calls the consumer with each used slot. The consumer may remove the given slot but must not insert any keys.
+     */
+    void forEachUsedSlot(IntConsumer consumer) {
+        forEachUsedSlot(0, capacity, consumer);
+    }
+
+    /**
+     * Calls the consumer with each used slot from <code>fromSlot</code> (inclusive) to <code>toSlot</code> (exclusive).
+     * Slots beyond the capacity are ignored. The consumer may remove the given slot but must not insert any keys.
+     */
+    void forEachUsedSlot(int fromSlot, int toSlot, IntConsumer consumer) {
+        for (int slot = fromSlot; slot < Math.min(toSlot, capacity); slot++) {
+            if (buffer.get(slotOffset(slot)) == USED) {
+                consumer.accept(slot);
+            }
+        }
+    }
+
+    String getKey(int slot) {
+        int offset = slotOffset(slot);
+        return readAscii(offset + SLOT_KEY_OFFSET, buffer.getShort(offset + 2));
+    }
+
+    long getLong(int slot, int valueOffset) {
+        return buffer.getLong(valueOffset(slot, valueOffset));
+    }
+
+    void putLong(int slot, int valueOffset, long value) {
+        buffer.putLong(valueOffset(slot, valueOffset), value);
+    }
+
+    byte getByte(int slot, int valueOffset) {
+        return buffer.get(valueOffset(slot, valueOffset));
+    }
+
+    void putByte(int slot, int valueOffset, byte value) {
+        buffer.put(valueOffset(slot, valueOffset), value);
+    }
+
+    /**
+     * Reads an ASCII string which was written with {@link #putString(int, int, String)}.
+     */
+    String getString(int slot, int valueOffset) {
+        int offset = valueOffset(slot, valueOffset);
+        return readAscii(offset + 1, buffer.get(offset) & 0xFF);
+    }
+
+    /**
+     * Writes an ASCII string of up to 255 characters prefixed by its length into the value bytes.
+     */
+    void putString(int slot, int valueOffset, String value) {
+        int offset = valueOffset(slot, valueOffset);
+        buffer.put(offset, (byte) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put(offset + 1 + i, (byte) value.charAt(i));
+        }
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        unmap(buffer);
+        // any later access fails instead of reading unmapped memory
+        buffer = null;
+    }
+
+    void assertValidKey(String key) {
+        if (key.isEmpty() || key.length() > maxKeyLength || !isAscii(key)) {
+            throw new IllegalArgumentException("Key must consist of 1 to " + maxKeyLength + " ASCII characters: " + key);
+        }
+    }
+
+    static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity() throws IOException {
+        if (used + deleted + 1 <= capacity * MAX_LOAD_FACTOR) {
+            return;
+        }
+
+        // many deleted slots can be reclaimed by rehashing into a table of the same size
+        int newCapacity = used + 1 > capacity * MAX_LOAD_FACTOR / 2 ? capacity * 2 : capacity;
+        rehash(newCapacity);
+    }
+
+    private void rehash(int newCapacity) throws IOException {
+        Path tempPath = Paths.get(path.toString() + ".rehash");
+        Files.deleteIfExists(tempPath);
+
+        MappedSlotTable target = new MappedSlotTable(tempPath, maxKeyLength, valueSize);
+        target.mapNew(newCapacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            if (buffer.get(offset) == USED) {
+                target.copySlot(buffer, offset, slotSize);
+            }
+        }
+        target.flush();
+
+        channel.close();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        unmap(buffer);
+        channel = target.channel;
+        buffer = target.buffer;
+        capacity = target.capacity;
+        used = target.used;
+        deleted = target.deleted;
+    }
+
+    private void copySlot(MappedByteBuffer source, int sourceOffset, int length) {
+        int keyLength = source.getShort(sourceOffset + 2);
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < keyLength; i++) {
+            hash = (hash ^ source.get(sourceOffset + SLOT_KEY_OFFSET + i)) * FNV_PRIME;
+        }
+
+        int targetOffset = slotOffset(findFreeSlot(mix(hash)));
+        for (int i = 0; i < length; i++) {
+            buffer.put(targetOffset + i, source.get(sourceOffset + i));
+        }
+    }
+
+    private int findFreeSlot(int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (buffer.get(slotOffset(slot)) == USED) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (buffer.get(slotOffset(slot)) == DELETED) {
+            deleted--;
+        }
+        used++;
+        writeCounters();
+
+        return slot;
+    }
+
+    private void writeKey(int offset, String key) {
+        buffer.putShort(offset + 2, (short) key.length());
+        for (int i = 0; i < key.length(); i++) {
+            buffer.put(offset + SLOT_KEY_OFFSET + i, (byte) key.charAt(i));
+        }
+        // publish the slot only after the key was written
+        buffer.put(offset, USED);
+    }
+
+    private boolean keyEquals(int offset, String key) {
+        if (buffer.getShort(offset + 2) != key.length()) {
+            return false;
+        }
+        int keyOffset = offset + SLOT_KEY_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            if (buffer.get(keyOffset + i) != (byte) key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readAscii(int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.get(offset + i);
+        }
+        return new String(chars);
+    }
+
+    private void writeCounters() {
+        buffer.putInt(OFFSET_USED, used);
+        buffer.putInt(OFFSET_DELETED, deleted);
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private int valueOffset(int slot, int valueOffset) {
+        return slotOffset(slot) + SLOT_KEY_OFFSET + maxKeyLength + valueOffset;
+    }
+
+    private static int hash(String key) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ (byte) key.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Releases the mapping of the buffer. The buffer must not be accessed afterwards, the JVM may crash otherwise.
+     */
+    private static void unmap(MappedByteBuffer mapped) {
+        UNMAPPER.accept(mapped);
+    }
+
+    /**
+     * Finds the JVM internal method which releases a mapping: <code>Unsafe.invokeCleaner</code> since Java 9 and the
+     * cleaner of the buffer in Java 8.
+     */
+    private static Consumer<ByteBuffer> findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return mapped -> invokeQuietly(invokeCleaner, unsafe, mapped);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unsafe.invokeCleaner is not available, using the cleaner of mapped buffers");
+        }
+
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return mapped -> {
+                Object bufferCleaner = invokeQuietly(cleaner, mapped);
+                if (bufferCleaner != null) {
+                    invokeQuietly(clean, bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Cannot unmap buffers in this JVM, rehashed session store tables are released by the garbage "
+                    + "collector", e);
+            return mapped -> { };
+        }
+    }
+
+    private static Object invokeQuietly(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            LOG.debug("Could not unmap a session store table, it is released by the garbage collector", e);
+            return null;
+        }
+    }
+}
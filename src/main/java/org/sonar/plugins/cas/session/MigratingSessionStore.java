@@ -0,0 +1,364 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.JwtFile;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * This class moves the sessions of an old {@link FileSessionStore} into another {@link CasSessionStore} while the
+ * server keeps running, so no user has to log in again.
+ *
+ * <p>A background thread copies the sessions in batches. Every session has a service ticket file which names its JWT,
+ * even the sessions which were written as XML by earlier plugin versions, so the migration walks the service tickets.
+ * They are split into partitions by their hash code and copied in ascending order within each partition, so only one
+ * partition is held in memory. After each batch the position of the migration is saved to a checkpoint in the old
+ * session store directory. A migration which was interrupted by a server stop resumes with the next batch. Sessions
+ * which the new store already knows, and expired sessions, are skipped.</p>
+ *
+ * <p>Until the migration is complete, lookups ask the new store first and fall back to the old store. Changes of
+ * sessions which were not copied yet are applied to the old store, so the copy takes them along. Each batch is copied
+ * while no change is in progress, so a log-out is never lost between reading a session from the old store and writing
+ * it into the new one. New sessions are stored in the new store only. Once the migration is complete, the old store is
+ * no longer consulted.</p>
+ */
+final class MigratingSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(MigratingSessionStore.class);
+    static final String CHECKPOINT = ".migration";
+    private static final String PARTITION_KEY = "partition";
+    private static final String LAST_SERVICE_TICKET_KEY = "lastServiceTicket";
+    private static final String COPIED_SESSIONS_KEY = "copiedSessions";
+    private static final String COMPLETE_KEY = "complete";
+    static final int PARTITIONS = 64;
+    private static final long SHUTDOWN_TIMEOUT_IN_SECS = 10;
+
+    private final CasSessionStore target;
+    private final FileSessionStore source;
+    private final int batchSize;
+    /**
+     * changes hold the read lock, the migration holds the write lock while it copies a batch
+     */
+    private final ReadWriteLock migrationLock = new ReentrantReadWriteLock(true);
+    private final AtomicInteger completedPartitions = new AtomicInteger();
+    private final AtomicLong copiedSessions = new AtomicLong();
+    private volatile boolean complete;
+    /**
+     * the service ticket of the last copied batch in the current partition, only accessed by the migration thread
+     */
+    private String lastServiceTicket = "";
+    private ExecutorService migrationExecutor;
+
+    /**
+     * @param target    the new session store which takes over all sessions
+     * @param source    the old session store whose sessions are copied
+     * @param batchSize the number of sessions which are copied at once
+     * @param metrics   receives the progress of the migration
+     */
+    MigratingSessionStore(CasSessionStore target, FileSessionStore source, int batchSize, SessionStoreMetrics metrics) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be strictly positive");
+        }
+        this.target = target;
+        this.source = source;
+        this.batchSize = batchSize;
+        metrics.registerGauge("migration_completed_partitions",
+                "Partitions of service tickets which were copied from the old CAS session store out of "
+                        + PARTITIONS, completedPartitions::get);
+        metrics.registerGauge("migration_copied_sessions", "Sessions which were copied from the old CAS session store",
+                copiedSessions::get);
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        target.prepareForWork();
+        source.prepareForWork();
+        restoreCheckpoint();
+
+        if (complete) {
+            LOG.info("Migration of the old CAS session store is complete, it is no longer read. Please remove the "
+                    + "migration configuration.");
+            return;
+        }
+
+        LOG.info("Migrating the old CAS session store starting with partition {} of {}", completedPartitions.get() + 1,
+                PARTITIONS);
+        migrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-store-migration-%d")
+                .build());
+        migrationExecutor.execute(this::migrateSafely);
+        migrationExecutor.shutdown();
+    }
+
+    private void migrateSafely() {
+        try {
+            migrate();
+        } catch (InterruptedException e) {
+            LOG.info("Migration of the old CAS session store was interrupted. It resumes after the next server start.");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Migration of the old CAS session store failed. It resumes after the next server start.", e);
+        }
+    }
+
+    private void migrate() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        for (int partition = completedPartitions.get(); partition < PARTITIONS; partition++) {
+            int currentPartition = partition;
+            List<String> serviceTickets = source.findServiceTickets(serviceTicket ->
+                    Math.floorMod(serviceTicket.hashCode(), PARTITIONS) == currentPartition
+                            && serviceTicket.compareTo(lastServiceTicket) > 0);
+
+            for (int from = 0; from < serviceTickets.size(); from += batchSize) {
+                List<String> batch = serviceTickets.subList(from, Math.min(from + batchSize, serviceTickets.size()));
+                copyBatch(batch);
+                lastServiceTicket = batch.get(batch.size() - 1);
+                writeCheckpoint();
+            }
+
+            lastServiceTicket = "";
+            completedPartitions.incrementAndGet();
+            writeCheckpoint();
+            LOG.info("Migrated partition {} of {} of the old CAS session store, {} sessions copied so far",
+                    completedPartitions.get(), PARTITIONS, copiedSessions.get());
+        }
+
+        complete = true;
+        writeCheckpoint();
+        LOG.info("Migration of the old CAS session store completed in {} s with {} copied sessions. Please remove the "
+                        + "migration configuration.", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start),
+                copiedSessions.get());
+    }
+
+    private void copyBatch(List<String> serviceTickets) throws IOException, InterruptedException {
+        Lock lock = migrationLock.writeLock();
+        lock.lockInterruptibly();
+        try {
+            for (String serviceTicket : serviceTickets) {
+                if (copy(serviceTicket)) {
+                    copiedSessions.incrementAndGet();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the session of the service ticket into the new store unless it is known there already or expired.
+     */
+    private boolean copy(String serviceTicket) throws IOException {
+        String jwtId = source.findJwtIdOfTicket(serviceTicket);
+        if (jwtId == null || !SessionFileHandler.JWT_FILE_PATTERN.matcher(jwtId).matches()) {
+            return false;
+        }
+
+        JwtFile stored = source.readJwtFile(jwtId);
+        SimpleJwt jwt = stored.getJwt();
+        // expired sessions are rejected anyway and removed by the clean-up of the old store
+        if (stored.isMissing() || jwt.isExpired() || target.lookupJwt(jwt) != StoredJwtState.NOT_STORED) {
+            return false;
+        }
+
+        target.store(serviceTicket, jwt, stored.getLogin());
+        return true;
+    }
+
+    private void restoreCheckpoint() throws IOException {
+        byte[] content = source.readMetadataFile(CHECKPOINT);
+        if (content == null) {
+            return;
+        }
+
+        Properties checkpoint = new Properties();
+        checkpoint.load(new ByteArrayInputStream(content));
+        try {
+            completedPartitions.set(Integer.parseInt(checkpoint.getProperty(PARTITION_KEY, "0")));
+            copiedSessions.set(Long.parseLong(checkpoint.getProperty(COPIED_SESSIONS_KEY, "0")));
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring corrupt CAS session store migration checkpoint. The migration starts over.", e);
+            completedPartitions.set(0);
+            copiedSessions.set(0);
+            return;
+        }
+        lastServiceTicket = checkpoint.getProperty(LAST_SERVICE_TICKET_KEY, "");
+        complete = Boolean.parseBoolean(checkpoint.getProperty(COMPLETE_KEY));
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(PARTITION_KEY, Integer.toString(completedPartitions.get()));
+        checkpoint.setProperty(LAST_SERVICE_TICKET_KEY, lastServiceTicket);
+        checkpoint.setProperty(COPIED_SESSIONS_KEY, Long.toString(copiedSessions.get()));
+        checkpoint.setProperty(COMPLETE_KEY, Boolean.toString(complete));
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        checkpoint.store(content, "CAS session store migration");
+        source.writeMetadataFile(CHECKPOINT, content.toByteArray());
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        // new sessions never exist in the old store
+        return target.store(ticket, jwt, login);
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        return lookupJwt(jwt) != StoredJwtState.NOT_STORED;
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        SimpleJwt stored = target.fetchStoredJwt(jwt);
+        if (!stored.isNullObject() || complete) {
+            return stored;
+        }
+
+        return source.fetchStoredJwt(jwt);
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        StoredJwtState state = target.lookupJwt(jwt);
+        if (state != StoredJwtState.NOT_STORED || complete) {
+            return state;
+        }
+
+        return source.lookupJwt(jwt);
+    }
+
+    /**
+     * Passes the JWTs of the new store and the JWTs of the old store which were not copied yet. A JWT which is copied
+     * during the call may be passed twice.
+     */
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        target.forEachStoredJwt(consumer);
+        if (complete) {
+            return;
+        }
+
+        source.forEachStoredJwt(jwt -> {
+            if (target.lookupJwt(jwt) == StoredJwtState.NOT_STORED) {
+                consumer.accept(jwt);
+            }
+        });
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        Lock lock = migrationLock.readLock();
+        lock.lock();
+        try {
+            if (!complete && isOnlyInSource(serviceTicketId)) {
+                return source.invalidateJwt(serviceTicketId);
+            }
+            return target.invalidateJwt(serviceTicketId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOnlyInSource(String serviceTicketId) {
+        String jwtId;
+        try {
+            jwtId = source.findJwtIdOfTicket(serviceTicketId);
+        } catch (IOException e) {
+            LOG.error("Could not read service ticket " + serviceTicketId + " from the old CAS session store", e);
+            return false;
+        }
+
+        return jwtId != null && !jwtId.isEmpty()
+                && target.lookupJwt(SimpleJwt.fromIdAndExpiration(jwtId, 1L)) == StoredJwtState.NOT_STORED;
+    }
+
+    /**
+     * Invalidates the user's sessions in both stores. Sessions which were copied already are invalidated in the old
+     * store as well, which does no harm because the new store answers for them.
+     */
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        Lock lock = migrationLock.readLock();
+        lock.lock();
+        try {
+            Set<String> jwtIds = new LinkedHashSet<>(target.invalidateJwtsOfUser(login));
+            if (!complete) {
+                jwtIds.addAll(source.invalidateJwtsOfUser(login));
+            }
+            return jwtIds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        return target.removeExpiredEntries() + source.removeExpiredEntries();
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        Lock lock = migrationLock.readLock();
+        lock.lock();
+        try {
+            if (!complete && target.lookupJwt(jwtWithLongerExpirationDate) == StoredJwtState.NOT_STORED
+                    && source.lookupJwt(jwtWithLongerExpirationDate) != StoredJwtState.NOT_STORED) {
+                source.refreshJwt(jwtWithLongerExpirationDate);
+                return;
+            }
+            target.refreshJwt(jwtWithLongerExpirationDate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        if (migrationExecutor != null) {
+            migrationExecutor.shutdownNow();
+            try {
+                migrationExecutor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        target.shutdown();
+        source.shutdown();
+    }
+
+    @Override
+    public SessionStatistics getStatistics() {
+        return target.getStatistics();
+    }
+
+    @Override
+    public boolean isCleanUpPending() {
+        return target.isCleanUpPending() || source.isCleanUpPending();
+    }
+}
@@ -0,0 +1,166 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**
+ * This class skips writing JWT refreshes to another {@link CasSessionStore} which only move the expiration forward by
+ * a little.
+ *
+ * <p>A stored JWT only needs to outlive the cookie so the clean-up does not remove a JWT which may still be used.
+ * Whenever a refresh is written, the stored expiration is therefore extended by the minimum extension beyond the
+ * cookie's expiration. Following refreshes whose expiration plus the safety margin is still covered by the stored
+ * expiration are not written at all, only the next refresh which comes closer than the safety margin is. The stored
+ * expiration never falls behind the cookie's expiration, so this also holds after a server crash.</p>
+ *
+ * <p>The stored expirations of refreshed JWTs are kept in memory. A JWT which was not refreshed since the server start
+ * is read from the underlying store once during its first refresh.</p>
+ */
+final class RefreshSuppressingSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(RefreshSuppressingSessionStore.class);
+    private static final int LOCK_STRIPES = 64;
+
+    private final CasSessionStore delegate;
+    private final long minimumExtensionInSecs;
+    private final long safetyMarginInSecs;
+    /**
+     * maps JWT IDs to the expiration as epoch seconds which is stored in the underlying store
+     */
+    private final JwtExpirationMap storedExpirations = new JwtExpirationMap();
+    private final Striped<Lock> refreshLocks = Striped.lock(LOCK_STRIPES);
+
+    RefreshSuppressingSessionStore(CasSessionStore delegate, long minimumExtensionInSecs, long safetyMarginInSecs) {
+        if (minimumExtensionInSecs <= 0) {
+            throw new IllegalArgumentException("minimumExtensionInSecs must be strictly positive");
+        }
+        if (safetyMarginInSecs < 0 || safetyMarginInSecs >= minimumExtensionInSecs) {
+            throw new IllegalArgumentException("safetyMarginInSecs must not be negative and must be smaller than minimumExtensionInSecs");
+        }
+        this.delegate = delegate;
+        this.minimumExtensionInSecs = minimumExtensionInSecs;
+        this.safetyMarginInSecs = safetyMarginInSecs;
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        delegate.prepareForWork();
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        Lock lock = refreshLocks.get(jwt.getJwtId());
+        lock.lock();
+        try {
+            Collection<String> evictedJwtIds = delegate.store(ticket, jwt, login);
+            storedExpirations.put(jwt.getJwtId(), jwt.getExpiration().getEpochSecond());
+
+            return evictedJwtIds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        return delegate.isJwtStored(jwt);
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        return delegate.fetchStoredJwt(jwt);
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        return delegate.lookupJwt(jwt);
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        delegate.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        // the invalidated JWT keeps the stored expiration which already outlives the cookie
+        return delegate.invalidateJwt(serviceTicketId);
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        return delegate.invalidateJwtsOfUser(login);
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        int removed = delegate.removeExpiredEntries();
+
+        long now = Instant.now().getEpochSecond();
+        storedExpirations.removeExpiredBefore(now);
+
+        return removed;
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        String jwtId = jwtWithLongerExpirationDate.getJwtId();
+        long requestedExpiration = jwtWithLongerExpirationDate.getExpiration().getEpochSecond();
+
+        Lock lock = refreshLocks.get(jwtId);
+        lock.lock();
+        try {
+            long storedExpiration = getStoredExpiration(jwtId);
+            if (storedExpiration != JwtExpirationMap.NO_EXPIRATION && requestedExpiration + safetyMarginInSecs <= storedExpiration) {
+                LOG.debug("skip writing refreshed JWT {} because the stored expiration still covers it", jwtId);
+                return;
+            }
+
+            long extendedExpiration = requestedExpiration + minimumExtensionInSecs;
+            SimpleJwt extended = SimpleJwt.fromIdAndExpiration(jwtId, extendedExpiration);
+            delegate.refreshJwt(jwtWithLongerExpirationDate.isInvalid() ? extended.cloneAsInvalidated() : extended);
+            storedExpirations.put(jwtId, extendedExpiration);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+
+    /**
+     * Returns the stored expiration of the JWT, or {@link JwtExpirationMap#NO_EXPIRATION} if the underlying store does
+     * not know the JWT.
+     */
+    private long getStoredExpiration(String jwtId) {
+        long storedExpiration = storedExpirations.get(jwtId);
+        if (storedExpiration != JwtExpirationMap.NO_EXPIRATION) {
+            return storedExpiration;
+        }
+
+        // session stores look JWTs up by their ID only
+        SimpleJwt stored = delegate.fetchStoredJwt(SimpleJwt.fromIdAndExpiration(jwtId, 1L));
+        if (stored.isNullObject()) {
+            return JwtExpirationMap.NO_EXPIRATION;
+        }
+
+        storedExpiration = stored.getExpiration().getEpochSecond();
+        storedExpirations.put(jwtId, storedExpiration);
+
+        return storedExpiration;
+    }
+}
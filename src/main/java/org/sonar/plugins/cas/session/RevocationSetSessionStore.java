@@ -0,0 +1,228 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps the IDs of all invalidated JWTs of another {@link CasSessionStore} in memory.
+ *
+ * <p>Only JWTs which were invalidated during a single log-out must be rejected by the blacklist check in
+ * {@link #lookupJwt(SimpleJwt)}, and these are a tiny fraction of all stored JWTs. The revocation set is loaded
+ * from the underlying store during {@link #prepareForWork()} and updated by {@link #invalidateJwt(String)}. A JWT which
+ * is not in the revocation set is answered as {@link StoredJwtState#VALID} without reading the underlying store, so
+ * this store does not tell unknown JWTs apart from valid ones. The rare hits are confirmed against the underlying
+ * store which stays the single source of truth.
+ * </p>
+ *
+ * <p>The revocation set only knows invalidations which were done by this server. Several servers which share an
+ * underlying store must not use it.</p>
+ *
+ * <p>Loading the revocation set reads the whole underlying store. With the asynchronous warm-up this happens on a
+ * background thread so the server start does not wait for it. Until the warm-up is complete, every blacklist check is
+ * answered by the underlying store.</p>
+ */
+final class RevocationSetSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(RevocationSetSessionStore.class);
+    private static final long WARM_UP_PROGRESS_INTERVAL = 10_000;
+
+    private final CasSessionStore delegate;
+    /**
+     * maps the IDs of invalidated JWTs to their expiration as epoch seconds so expired IDs can be dropped without
+     * reading the underlying store
+     */
+    private final JwtExpirationMap revokedJwts = new JwtExpirationMap();
+    private final boolean asyncWarmUp;
+    /**
+     * becomes <code>true</code> once the revocation set contains all invalidated JWTs of the underlying store
+     */
+    private volatile boolean warmedUp;
+    private ExecutorService warmUpExecutor;
+
+    /**
+     * @param asyncWarmUp <code>true</code> loads the revocation set on a background thread, <code>false</code> loads it
+     *                    before {@link #prepareForWork()} returns
+     * @param metrics     receives the size of the revocation set
+     */
+    RevocationSetSessionStore(CasSessionStore delegate, boolean asyncWarmUp, SessionStoreMetrics metrics) {
+        this.delegate = delegate;
+        this.asyncWarmUp = asyncWarmUp;
+        metrics.registerGauge("revoked_jwts", "Invalidated JWTs in the CAS session store revocation set",
+                revokedJwts::size);
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        delegate.prepareForWork();
+
+        if (!asyncWarmUp) {
+            warmUp();
+            return;
+        }
+
+        warmUpExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-store-warm-up-%d")
+                .build());
+        warmUpExecutor.execute(this::warmUpSafely);
+        warmUpExecutor.shutdown();
+    }
+
+    private void warmUp() throws IOException {
+        LOG.info("Loading invalidated JWTs into the CAS session store revocation set");
+        long start = System.currentTimeMillis();
+        AtomicLong scanned = new AtomicLong();
+
+        delegate.forEachStoredJwt(jwt -> {
+            if (jwt.isInvalid() && !jwt.isExpired()) {
+                revoke(jwt);
+            }
+            long scannedSoFar = scanned.incrementAndGet();
+            if (scannedSoFar % WARM_UP_PROGRESS_INTERVAL == 0) {
+                LOG.info("Scanned {} JWTs for the CAS session store revocation set", scannedSoFar);
+            }
+        });
+        warmedUp = true;
+
+        LOG.info("Loaded {} invalidated JWTs out of {} JWTs into the CAS session store revocation set in {} ms",
+                revokedJwts.size(), scanned.get(), System.currentTimeMillis() - start);
+    }
+
+    private void warmUpSafely() {
+        try {
+            warmUp();
+        } catch (Exception e) {
+            LOG.error("Could not load the CAS session store revocation set. The session store answers all blacklist "
+                    + "checks until the next server start.", e);
+        }
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        Collection<String> evictedJwtIds = delegate.store(ticket, jwt, login);
+        if (jwt.isInvalid()) {
+            revoke(jwt);
+        }
+        revokeAll(evictedJwtIds);
+
+        return evictedJwtIds;
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        return delegate.isJwtStored(jwt);
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        return delegate.fetchStoredJwt(jwt);
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        if (!warmedUp) {
+            return delegate.lookupJwt(jwt);
+        }
+
+        String jwtId = jwt.getJwtId();
+        if (!revokedJwts.containsKey(jwtId)) {
+            // the revocation set holds every invalidated JWT so this one is not blacklisted, whether stored or not
+            return StoredJwtState.VALID;
+        }
+
+        StoredJwtState state = delegate.lookupJwt(jwt);
+        if (state != StoredJwtState.INVALIDATED) {
+            LOG.debug("remove JWT {} from revocation set because the session store does not know it as invalid", jwtId);
+            revokedJwts.remove(jwtId);
+        }
+
+        return state;
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        delegate.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        String jwtId = delegate.invalidateJwt(serviceTicketId);
+
+        // session stores look JWTs up by their ID only
+        SimpleJwt invalidated = delegate.fetchStoredJwt(SimpleJwt.fromIdAndExpiration(jwtId, 1L));
+        if (!invalidated.isNullObject() && invalidated.isInvalid()) {
+            revoke(invalidated);
+        }
+
+        return jwtId;
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        Collection<String> jwtIds = delegate.invalidateJwtsOfUser(login);
+        revokeAll(jwtIds);
+
+        return jwtIds;
+    }
+
+    /**
+     * Adds JWTs which the underlying store invalidated on its own to the revocation set. Their expiration is only
+     * known to the underlying store.
+     */
+    private void revokeAll(Collection<String> jwtIds) {
+        for (String jwtId : jwtIds) {
+            SimpleJwt invalidated = delegate.fetchStoredJwt(SimpleJwt.fromIdAndExpiration(jwtId, 1L));
+            if (!invalidated.isNullObject() && invalidated.isInvalid()) {
+                revoke(invalidated);
+            }
+        }
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        int removed = delegate.removeExpiredEntries();
+
+        long now = Instant.now().getEpochSecond();
+        revokedJwts.removeExpiredBefore(now);
+
+        return removed;
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        delegate.refreshJwt(jwtWithLongerExpirationDate);
+
+        String jwtId = jwtWithLongerExpirationDate.getJwtId();
+        if (jwtWithLongerExpirationDate.isInvalid()) {
+            revoke(jwtWithLongerExpirationDate);
+        } else {
+            revokedJwts.replace(jwtId, jwtWithLongerExpirationDate.getExpiration().getEpochSecond());
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        if (warmUpExecutor != null) {
+            warmUpExecutor.shutdownNow();
+        }
+        delegate.shutdown();
+    }
+
+    private void revoke(SimpleJwt jwt) {
+        revokedJwts.put(jwt.getJwtId(), jwt.getExpiration().getEpochSecond());
+    }
+}
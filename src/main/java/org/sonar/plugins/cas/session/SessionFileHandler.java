@@ -1,23 +1,48 @@
 package org.sonar.plugins.cas.session;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.JwtFile;
 import org.sonar.plugins.cas.util.JwtFiles;
 import org.sonar.plugins.cas.util.SimpleJwt;
 
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
  * This class handles all the necessary file actions towards JWT and Service Ticket files for {@link FileSessionStore}.
  */
 class SessionFileHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionFileHandler.class);
+    private static final String JWT_FILE_REGEX = "[a-zA-Z0-9]{20}";
+    static final Pattern JWT_FILE_PATTERN = Pattern.compile(JWT_FILE_REGEX);
+    static final String SERVICE_TICKET_PREFIX = "ST-";
 
     private String sessionStorePath;
+    private final SessionFileWriter fileWriter;
 
-    SessionFileHandler(String sessionStorePath) {
+    SessionFileHandler(String sessionStorePath, SessionFileWriter fileWriter) {
         this.sessionStorePath = sessionStorePath;
+        this.fileWriter = fileWriter;
     }
 
     boolean isJwtStored(String jwtId) {
@@ -25,12 +50,101 @@ class SessionFileHandler {
         return Files.exists(path);
     }
 
-    SimpleJwt readJwtFile(String jwtId) {
+    /**
+     * Reads the JWT file together with its service ticket back-reference, login and size.
+     */
+    JwtFile readJwtFile(String jwtId) throws IOException {
         Path filePath = Paths.get(sessionStorePath, jwtId);
-        return JwtFiles.unmarshal(filePath);
+        try {
+            return JwtFiles.read(filePath);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read JWT file " + jwtId, e);
+        }
+    }
+
+    /**
+     * Reads the JWT file like {@link #readJwtFile(String)} or returns {@link JwtFile#getMissing()} if there is no JWT
+     * file.
+     */
+    JwtFile readJwtFileIfExists(String jwtId) {
+        Path filePath = Paths.get(sessionStorePath, jwtId);
+        return JwtFiles.readIfExists(filePath);
+    }
+
+    /**
+     * Streams all JWT files of the session store and passes each parsed JWT to the consumer. Files which cannot be
+     * parsed are skipped. The files are parsed in batches on the given executor, so the consumer may be called from
+     * several threads at once. At most twice the parallelism of batches are in flight at any time.
+     *
+     * @param executor    parses the batches. A same-thread executor parses all files in the calling thread.
+     * @param parallelism the number of threads of the executor
+     * @param batchSize   the number of files per batch
+     */
+    void forEachJwtFile(Consumer<SimpleJwt> consumer, ExecutorService executor, int parallelism, int batchSize)
+            throws IOException {
+        DirectoryStream.Filter<Path> jwtFiles = file -> JWT_FILE_PATTERN.matcher(file.getFileName().toString()).matches();
+        Deque<Future<?>> pendingBatches = new ArrayDeque<>();
+        int maxPendingBatches = Math.max(1, parallelism) * 2;
+        List<Path> batch = new ArrayList<>(batchSize);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(sessionStorePath), jwtFiles)) {
+            for (Path file : files) {
+                batch.add(file);
+                if (batch.size() < batchSize) {
+                    continue;
+                }
+
+                if (pendingBatches.size() >= maxPendingBatches) {
+                    awaitBatch(pendingBatches.poll());
+                }
+                pendingBatches.add(submitBatch(batch, consumer, executor));
+                batch = new ArrayList<>(batchSize);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        } finally {
+            if (!batch.isEmpty()) {
+                pendingBatches.add(submitBatch(batch, consumer, executor));
+            }
+            while (!pendingBatches.isEmpty()) {
+                awaitBatch(pendingBatches.poll());
+            }
+        }
+    }
+
+    private static Future<?> submitBatch(List<Path> batch, Consumer<SimpleJwt> consumer, ExecutorService executor) {
+        return executor.submit(() -> {
+            for (Path file : batch) {
+                SimpleJwt jwt;
+                try {
+                    jwt = JwtFiles.unmarshal(file);
+                } catch (Exception e) {
+                    LOG.error("Could not parse JWT file.", e);
+                    continue;
+                }
+                consumer.accept(jwt);
+            }
+        });
+    }
+
+    private static void awaitBatch(Future<?> batch) throws IOException {
+        try {
+            batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading JWT files", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read JWT files", e.getCause());
+        }
     }
 
-    void writeJwtFile(String jwtId, SimpleJwt jwt) {
+    /**
+     * Writes the JWT file together with the given service ticket back-reference and the login of its user.
+     *
+     * @param login the login of the user, may be <code>null</code> if unknown
+     * @return the size of the written file in bytes
+     */
+    int writeJwtFile(String jwtId, SimpleJwt jwt, String serviceTicket, String login) throws IOException {
         if (StringUtils.isEmpty(jwtId)) {
             throw new IllegalArgumentException("Could not writeJwtFile JWT: jwtId must not be null");
         }
@@ -40,24 +154,54 @@ class SessionFileHandler {
 
         Path path = Paths.get(sessionStorePath, jwtId);
 
-        JwtFiles.marshalIntoNewFile(path, jwt);
+        byte[] content = JwtFiles.marshal(jwt, serviceTicket, login);
+        fileWriter.write(path, content);
+
+        return content.length;
     }
 
-    void replaceJwtFile(String jwtId, SimpleJwt invalidated) throws IOException {
+    /**
+     * Replaces the JWT file and writes the given service ticket back-reference and login. This also adds the
+     * back-reference to JWT files of earlier plugin versions. Concurrent readers see either the old or the new JWT
+     * file. The caller must hold the per-JWT lock of the {@link FileSessionStore}, which the clean-up takes as well, so
+     * the file cannot be removed between the existence check and its replacement.
+     *
+     * @return the size of the written file in bytes
+     */
+    int replaceJwtFile(String jwtId, SimpleJwt jwt, String serviceTicket, String login) throws IOException {
         if (StringUtils.isEmpty(jwtId)) {
             throw new IllegalArgumentException("Could not replaceJwtFile JWT: jwtId must not be null");
         }
-        if (invalidated == null) {
+        if (jwt == null) {
             throw new IllegalArgumentException("Could not replaceJwtFile JWT: jwt must not be null");
         }
 
         Path path = Paths.get(sessionStorePath, jwtId);
-        Files.delete(path);
+        if (!Files.exists(path)) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        return writeJwtFile(jwtId, jwt, serviceTicket, login);
+    }
+
+    /**
+     * Replaces several JWT files at once. Each file is replaced atomically, but the files are forced to disk together.
+     *
+     * @param contentsByJwtId the content of each JWT file as created by {@link JwtFiles#marshal(SimpleJwt, String, String)}
+     */
+    void replaceJwtFiles(Map<String, byte[]> contentsByJwtId) throws IOException {
+        Map<Path, byte[]> contents = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> jwtFile : contentsByJwtId.entrySet()) {
+            contents.put(Paths.get(sessionStorePath, jwtFile.getKey()), jwtFile.getValue());
+        }
 
-        writeJwtFile(jwtId, invalidated);
+        fileWriter.writeAll(contents);
     }
 
-    void createServiceTicketFile(String serviceTicket, SimpleJwt jwt) throws IOException {
+    /**
+     * @return the size of the written file in bytes
+     */
+    int createServiceTicketFile(String serviceTicket, SimpleJwt jwt) throws IOException {
         if (StringUtils.isEmpty(serviceTicket)) {
             throw new IllegalArgumentException("Could not create ServiceTicketFile ST->JWT: serviceTicket must not be null");
         }
@@ -67,7 +211,56 @@ class SessionFileHandler {
 
         byte[] jwtIdAsBytes = jwt.getJwtId().getBytes();
         Path path = Paths.get(sessionStorePath, serviceTicket);
-        Files.write(path, jwtIdAsBytes);
+        fileWriter.write(path, jwtIdAsBytes);
+
+        return jwtIdAsBytes.length;
+    }
+
+    /**
+     * Returns the size of all JWT and service ticket files in bytes. This method reads the whole session store
+     * directory.
+     */
+    long sumSessionFileSizes() throws IOException {
+        DirectoryStream.Filter<Path> sessionFiles = file -> {
+            String name = file.getFileName().toString();
+            return JWT_FILE_PATTERN.matcher(name).matches() || name.startsWith(SERVICE_TICKET_PREFIX);
+        };
+
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(sessionStorePath), sessionFiles)) {
+            for (Path file : files) {
+                try {
+                    bytes += Files.size(file);
+                } catch (NoSuchFileException e) {
+                    LOG.debug("File {} was removed while the CAS session store was counted", file);
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns all stored service tickets which are accepted by the filter in ascending order.
+     */
+    List<String> findServiceTickets(Predicate<String> filter) throws IOException {
+        List<String> serviceTickets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(sessionStorePath),
+                SERVICE_TICKET_PREFIX + "*")) {
+            for (Path file : files) {
+                String serviceTicket = file.getFileName().toString();
+                if (filter.test(serviceTicket)) {
+                    serviceTickets.add(serviceTicket);
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        Collections.sort(serviceTickets);
+
+        return serviceTickets;
     }
 
     String readServiceTicketFile(String serviceTicket) throws IOException {
@@ -1,21 +1,32 @@
 package org.sonar.plugins.cas.session;
 
+import com.google.common.util.concurrent.Striped;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.JwtFile;
 import org.sonar.plugins.cas.util.JwtFiles;
 import org.sonar.plugins.cas.util.SimpleJwt;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.ToIntFunction;
 
 /**
  * This class cleans up expired files created by the {@link FileSessionStore}.
@@ -24,134 +35,474 @@ import java.util.stream.Stream;
  * creates both an JWT file and a Service Ticket file in order to manage the session. Once the JWT session is expired
  * (which is usually longer than the actual log-in duration) both files must be removed for house keeping reasons.
  * </p>
+ *
+ * <p>Sessions are found by the {@link ExpiryBucketIndex}: whole buckets whose time window has passed are removed
+ * without listing the session store, so the clean-up effort grows with the number of expired sessions only. JWT files
+ * which were written before the index existed are parsed once and added to the index. During this scan expired JWT files
+ * lead to their service ticket by reference. Service ticket files of earlier plugin versions which lack this reference
+ * are removed afterwards once their JWT file is gone.</p>
+ *
+ * <p>A refresh moves a session to a later bucket by creating the new marker before it deletes the old one. A crash in
+ * between or a failed delete leaves a stale marker behind. Therefore the JWT file of each marker is read again before
+ * its session is removed, and only the marker is removed if the JWT did not expire.</p>
+ *
+ * <p>Each session is checked and removed under the same per-JWT lock which the {@link FileSessionStore} holds while it
+ * refreshes or invalidates a JWT. So a JWT file is never removed between a refresh's check that it exists and its
+ * replacement, which would otherwise bring back an expired session.</p>
+ *
+ * <p>All directories are streamed and processed in batches of a configurable size, so the memory consumption does not
+ * depend on the number of stored sessions. Batches are either processed one after another or in parallel by a
+ * dedicated executor, which lowers the run time on storage where the clean-up is bound by latency.</p>
+ *
+ * <p>A {@link CleanUpBudget} limits the run time and the delete rate. Expired buckets are processed oldest first and a
+ * marker is only removed after all files of its session, so a run which stops early leaves the remaining sessions in the
+ * index and the next run continues with them.</p>
  */
 class SessionFileRemover {
     private static final Logger LOG = LoggerFactory.getLogger(SessionFileRemover.class);
-    private static final String SERVICE_TICKET_PREFIX = "ST-";
-    private static final String JWT_FILE_REGEX = "[a-zA-Z0-9]{20}";
-    private static final Pattern JWT_FILE_PATTERN = Pattern.compile(JWT_FILE_REGEX);
+    private static final String SERVICE_TICKET_PREFIX = SessionFileHandler.SERVICE_TICKET_PREFIX;
     private String sessionStorePath;
+    private final ExpiryBucketIndex expiryIndex;
+    private final UserSessionIndex userIndex;
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final CleanUpBudget budget;
+    private final SessionStatistics statistics;
+    private final Striped<Lock> jwtLocks;
 
-    SessionFileRemover(String sessionStorePath) {
+    /**
+     * @param executor    processes the batches of the clean-up. A same-thread executor processes all batches one after
+     *                    another in the calling thread.
+     * @param parallelism the number of threads of the executor
+     * @param budget      limits the run time and the delete rate of this clean-up
+     * @param statistics  counts the removed sessions and their bytes
+     * @param jwtLocks    the per-JWT locks of the session store which serialize the removal with refreshes
+     */
+    SessionFileRemover(String sessionStorePath, ExpiryBucketIndex expiryIndex, UserSessionIndex userIndex,
+                       int batchSize, ExecutorService executor, int parallelism, CleanUpBudget budget,
+                       SessionStatistics statistics, Striped<Lock> jwtLocks) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be strictly positive");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be strictly positive");
+        }
         this.sessionStorePath = sessionStorePath;
+        this.expiryIndex = expiryIndex;
+        this.userIndex = userIndex;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.budget = budget;
+        this.statistics = statistics;
+        this.jwtLocks = jwtLocks;
     }
 
     /**
-     * Finds expired JWTs and removes associated JWT and Service Ticket files.
+     * Removes the JWT and Service Ticket files of all sessions in expiry buckets whose time window has passed. JWT files
+     * which were written before the expiry bucket index existed are found by a single full scan.
      * @return the number of actually removed files for both JWT and service ticket files.
      */
     int cleanUp() {
-    // TODO add batch sizes for chunk-wise processing
-        List<String> expiredJwtIds = findExpiredJwts();
+        int removalCounter = 0;
+        if (!expiryIndex.isBackfilled()) {
+            removalCounter += cleanUpByFullScan();
+        }
+        removalCounter += removePassedBuckets();
 
-        Collection<Path> candidatesForRemoval = findFilesToBeRemoved(expiredJwtIds);
+        if (budget.isExhausted()) {
+            LOG.info("CAS session store clean up used up its time budget after removing {} files. The next clean up "
+                    + "continues with the remaining expired sessions.", removalCounter);
+        }
 
-        return removeFile(candidatesForRemoval);
+        return removalCounter;
     }
 
-    private List<String> findExpiredJwts() {
-        Collection<Path> allJwtFiles = listAllJwtFiles();
-        // makes sure we really have JWTs at hand and don't delete anything else
-        List<SimpleJwt> jwts = parseJwtFiles(allJwtFiles);
+    /**
+     * Finds expired JWTs by parsing all JWT files and removes associated JWT and Service Ticket files. All other JWTs
+     * are added to the expiry bucket index so later clean-ups don't need to parse them.
+     */
+    private int cleanUpByFullScan() {
+        LOG.info("Adding existing CAS sessions to the expiry bucket index");
+        Path sessionStoreDir = Paths.get(sessionStorePath);
+        AtomicBoolean indexComplete = new AtomicBoolean(true);
 
-        jwts = findExpiredJwts(jwts);
+        // makes sure we really have JWTs at hand and don't delete anything else
+        DirectoryStream.Filter<Path> jwtFiles = file -> SessionFileHandler.JWT_FILE_PATTERN.matcher(file.getFileName().toString()).matches();
+        int removalCounter = processInBatches(sessionStoreDir, jwtFiles, "JWT scan",
+                batch -> removeExpiredJwtFiles(batch, indexComplete));
+
+        DirectoryStream.Filter<Path> ticketFiles = file -> file.getFileName().toString().startsWith(SERVICE_TICKET_PREFIX);
+        removalCounter += processInBatches(sessionStoreDir, ticketFiles, "orphaned service ticket scan",
+                this::removeOrphanedServiceTickets);
+
+        // a scan which was stopped by the budget is repeated during the next clean-up, files which are already indexed
+        // are simply indexed again
+        if (indexComplete.get() && !budget.isExhausted()) {
+            markBackfilled();
+        }
 
-        return convertJwtsToIds(jwts);
+        return removalCounter;
     }
 
-    private int removeFile(Collection<Path> candidatesForRemoval) {
+    private int removeExpiredJwtFiles(List<Path> jwtFiles, AtomicBoolean indexComplete) {
         int removalCounter = 0;
-        for (Path path : candidatesForRemoval) {
+        List<Path> candidatesForRemoval = new ArrayList<>(2);
+
+        for (JwtFile parsed : parseJwtFiles(jwtFiles)) {
+            SimpleJwt jwt = parsed.getJwt();
+            if (!jwt.isExpired()) {
+                if (!addToExpiryIndex(parsed)) {
+                    indexComplete.set(false);
+                }
+                continue;
+            }
+
+            Lock lock = jwtLocks.get(jwt.getJwtId());
+            lock.lock();
             try {
-                Files.delete(path);
+                Path jwtFile = Paths.get(sessionStorePath, jwt.getJwtId());
+                // a refresh may have extended the JWT since it was parsed, it is indexed by the refresh then
+                JwtFile current = readAgain(jwtFile);
+                if (current == null || current.isMissing() || !current.getJwt().isExpired()) {
+                    continue;
+                }
+
+                candidatesForRemoval.clear();
+                candidatesForRemoval.add(jwtFile);
+                Path ticketFile = toServiceTicketFile(current.getServiceTicket(), jwtFile);
+                if (ticketFile != null) {
+                    candidatesForRemoval.add(ticketFile);
+                }
+                removalCounter += removeFile(candidatesForRemoval);
+                removeFromUserIndex(UserSessionIndex.toUserHash(current.getLogin()), jwt.getJwtId());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return removalCounter;
+    }
+
+    /**
+     * Removes service ticket files whose JWT file does not exist any longer. Sessions always write the JWT file
+     * before the service ticket file, so these belong to removed JWTs of earlier plugin versions which did not
+     * reference their service ticket.
+     */
+    private int removeOrphanedServiceTickets(List<Path> ticketFiles) {
+        List<Path> candidatesForRemoval = new ArrayList<>();
+
+        for (Path ticketFile : ticketFiles) {
+            String jwtId;
+            try {
+                byte[] fileContent = Files.readAllBytes(ticketFile);
+                jwtId = new String(fileContent, StandardCharsets.US_ASCII).trim();
             } catch (IOException e) {
-                LOG.error("Could not delete file.", e);
+                LOG.error("Could not filter Service Ticket " + ticketFile + " for removal", e);
+                continue;
             }
-            ++removalCounter;
+
+            if (SessionFileHandler.JWT_FILE_PATTERN.matcher(jwtId).matches() && !Files.exists(Paths.get(sessionStorePath, jwtId))) {
+                LOG.debug("Found Service Ticket {} for removal", ticketFile);
+                candidatesForRemoval.add(ticketFile);
+            }
+        }
+
+        return removeFile(candidatesForRemoval);
+    }
+
+    private boolean addToExpiryIndex(JwtFile parsed) {
+        try {
+            expiryIndex.add(parsed.getJwt(), UserSessionIndex.toUserHash(parsed.getLogin()));
+            return true;
+        } catch (Exception e) {
+            LOG.error("Could not add JWT " + parsed.getJwt().getJwtId() + " to the expiry bucket index", e);
+            return false;
+        }
+    }
+
+    private void markBackfilled() {
+        try {
+            expiryIndex.markBackfilled();
+        } catch (IOException e) {
+            LOG.error("Could not mark the expiry bucket index as complete", e);
+        }
+    }
+
+    private int removePassedBuckets() {
+        List<Path> passedBuckets;
+        try {
+            passedBuckets = expiryIndex.findPassedBuckets(Instant.now());
+        } catch (IOException e) {
+            LOG.error("Could not list expiry buckets of the CAS session store", e);
+            return 0;
+        }
+
+        int removalCounter = 0;
+        for (Path bucket : passedBuckets) {
+            if (budget.isExhausted()) {
+                break;
+            }
+            removalCounter += removeBucket(bucket);
         }
 
         return removalCounter;
     }
 
-    private Collection<Path> findFilesToBeRemoved(List<String> expiredJwtIds) {
-        int expectedJwtAndServiceTicketCount = expiredJwtIds.size() * 2;
-        List<Path> candidatesForRemoval = new ArrayList<>(expectedJwtAndServiceTicketCount);
+    private int removeBucket(Path bucket) {
+        int removalCounter = processInBatches(bucket, file -> true, "expiry bucket " + bucket.getFileName(),
+                this::removeSessionsOfMarkers);
+        if (budget.isExhausted()) {
+            return removalCounter;
+        }
 
-        List<Path> jwtFiles = convertJwtIdsToPaths(expiredJwtIds);
-        candidatesForRemoval.addAll(jwtFiles);
+        try {
+            Files.deleteIfExists(bucket);
+        } catch (IOException e) {
+            LOG.debug("Could not delete expiry bucket {}, it will be removed during the next clean-up", bucket, e);
+        }
 
-        Collection<Path> ticketFiles = findServiceTicketFilesByJwtId(expiredJwtIds);
-        candidatesForRemoval.addAll(ticketFiles);
+        return removalCounter;
+    }
+
+    private int removeSessionsOfMarkers(List<Path> markers) {
+        int removalCounter = 0;
+        List<Path> sessionFiles = new ArrayList<>(2);
+        for (Path marker : markers) {
+            if (budget.isExhausted()) {
+                break;
+            }
 
-        return candidatesForRemoval;
+            Lock lock = jwtLocks.get(ExpiryBucketIndex.getJwtId(marker));
+            lock.lock();
+            try {
+                removalCounter += removeSessionOfMarker(marker, sessionFiles);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return removalCounter;
     }
 
-    List<String> convertJwtsToIds(List<SimpleJwt> jwts) {
-        return jwts.stream()
-                .map(SimpleJwt::getJwtId)
-                .collect(Collectors.toList());
+    private int removeSessionOfMarker(Path marker, List<Path> sessionFiles) {
+        String jwtId = ExpiryBucketIndex.getJwtId(marker);
+        // makes sure we really have a JWT at hand and don't delete anything else
+        if (!SessionFileHandler.JWT_FILE_PATTERN.matcher(jwtId).matches()) {
+            LOG.warn("Ignoring unexpected file {} in expiry bucket index", marker);
+            removeMarker(marker);
+            return 0;
+        }
+
+        JwtFile current = readAgain(Paths.get(sessionStorePath, jwtId));
+        if (current == null) {
+            // the marker stays so the next clean-up tries again
+            return 0;
+        }
+        if (!current.isMissing() && !current.getJwt().isExpired()) {
+            LOG.debug("Removing stale expiry bucket marker {} of a refreshed JWT", marker);
+            removeMarker(marker);
+            return 0;
+        }
+
+        sessionFiles.clear();
+        addSessionFiles(sessionFiles, marker, jwtId, current);
+        int removalCounter = removeFile(sessionFiles);
+        if (!budget.isExhausted()) {
+            removeFromUserIndex(ExpiryBucketIndex.getUserHash(marker), jwtId);
+        }
+        // the marker stays if the budget stopped the removal of its session so the next clean-up finds it again
+        if (!budget.isExhausted()) {
+            removeMarker(marker);
+        }
+
+        return removalCounter;
     }
 
-    private List<Path> convertJwtIdsToPaths(List<String> expiredJwtIds) {
-        // from earlier listing and parsing we know these expired files exist
-        return expiredJwtIds.stream()
-                .map(expiredId -> Paths.get(sessionStorePath, expiredId))
-                .collect(Collectors.toList());
+    /**
+     * Reads the JWT file again under the lock of its JWT.
+     *
+     * @return the current content of the JWT file, the {@link JwtFile#getMissing() missing file} if it does not exist,
+     * or <code>null</code> if it exists but cannot be read. The clean-up keeps an unreadable JWT file and its session
+     * because it cannot tell whether the JWT expired.
+     */
+    private JwtFile readAgain(Path jwtFile) {
+        try {
+            return JwtFiles.readIfExists(jwtFile);
+        } catch (Exception e) {
+            LOG.error("Could not read JWT file " + jwtFile + ", keeping its session until it can be read", e);
+            return null;
+        }
     }
 
-    Collection<Path> findServiceTicketFilesByJwtId(List<String> expiredJwtIds) {
-        Collection<Path> allServiceTickets = listAllServiceTickets();
+    /**
+     * Adds the JWT file and the service ticket file of the session. The service ticket is taken from the JWT file,
+     * or from the marker name if the marker was written by an earlier plugin version.
+     *
+     * @param current the content of the JWT file, or the {@link JwtFile#getMissing() missing file}
+     */
+    private void addSessionFiles(List<Path> candidatesForRemoval, Path marker, String jwtId, JwtFile current) {
+        candidatesForRemoval.add(Paths.get(sessionStorePath, jwtId));
 
-        return filterServiceTicketsWithJwtIds(allServiceTickets, expiredJwtIds);
+        String serviceTicket = current.getServiceTicket();
+        if (serviceTicket == null) {
+            serviceTicket = ExpiryBucketIndex.getServiceTicket(marker);
+        }
+        Path ticketFile = toServiceTicketFile(serviceTicket, marker);
+        if (ticketFile != null) {
+            candidatesForRemoval.add(ticketFile);
+        }
     }
 
-    private Collection<Path> filterServiceTicketsWithJwtIds(Collection<Path> serviceTicketFiles, List<String> expiredJwtIds) {
-        List<Path> ticketsToBeRemoved = new ArrayList<>();
-        List<String> expiredJwtIdsCopy = new ArrayList<>(expiredJwtIds);
+    /**
+     * Streams the directory and passes its entries in batches of {@link #batchSize} to the batch processor. Batches are
+     * processed by the clean-up executor. At most twice its parallelism level of batches are in flight at any time so
+     * the memory consumption stays bounded. This method returns when all batches are processed.
+     *
+     * @return the number of removed files as reported by the batch processor
+     */
+    private int processInBatches(Path dir, DirectoryStream.Filter<Path> filter, String description,
+                                 ToIntFunction<List<Path>> batchProcessor) {
+        Deque<Future<Integer>> pendingBatches = new ArrayDeque<>();
+        int maxPendingBatches = parallelism * 2;
+        List<Path> batch = new ArrayList<>(batchSize);
+        int batchCounter = 0;
+        int removalCounter = 0;
 
-        for (Path ticketFile : serviceTicketFiles) {
-            filterServiceTicketWithJwtIds(ticketsToBeRemoved, expiredJwtIdsCopy, ticketFile);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, filter)) {
+            for (Path entry : entries) {
+                if (budget.isExhausted()) {
+                    batch.clear();
+                    break;
+                }
+                batch.add(entry);
+                if (batch.size() < batchSize) {
+                    continue;
+                }
+
+                if (pendingBatches.size() >= maxPendingBatches) {
+                    removalCounter += awaitBatch(pendingBatches.poll());
+                }
+                pendingBatches.add(submitBatch(batch, ++batchCounter, description, batchProcessor));
+                batch = new ArrayList<>(batchSize);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            LOG.error("Could not list files in " + dir + " for the CAS session store clean up", e);
+        }
+
+        if (!batch.isEmpty()) {
+            pendingBatches.add(submitBatch(batch, ++batchCounter, description, batchProcessor));
+        }
+        while (!pendingBatches.isEmpty()) {
+            removalCounter += awaitBatch(pendingBatches.poll());
         }
 
-        return ticketsToBeRemoved;
+        return removalCounter;
     }
 
-    private void filterServiceTicketWithJwtIds(List<Path> ticketsToBeRemoved, List<String> jwtIds, Path ticketFile) {
-        String ticketFileRaw = ticketFile.toString();
-        String jwtIdToBeCompared;
+    private Future<Integer> submitBatch(List<Path> batch, int batchNumber, String description,
+                                        ToIntFunction<List<Path>> batchProcessor) {
+        return executor.submit(() -> {
+            int removed = batchProcessor.applyAsInt(batch);
+            LOG.debug("CAS session store clean up ({}): batch {} checked {} files and removed {} files", description,
+                    batchNumber, batch.size(), removed);
+
+            return removed;
+        });
+    }
 
+    private int awaitBatch(Future<Integer> batch) {
         try {
-            byte[] fileContent;
-            fileContent = Files.readAllBytes(ticketFile);
-            jwtIdToBeCompared = new String(fileContent, StandardCharsets.US_ASCII).trim();
-        } catch (IOException e) {
-            LOG.error("Could not filter Service Ticket " + ticketFileRaw + " for removal", e);
-            return;
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("CAS session store clean up was interrupted", e);
+        } catch (ExecutionException e) {
+            LOG.error("Could not process a batch of the CAS session store clean up", e.getCause());
         }
 
-        if (jwtIds.contains(jwtIdToBeCompared)) {
-            LOG.debug("Found Service Ticket {} for removal", ticketFileRaw);
-            ticketsToBeRemoved.add(ticketFile);
-            // reduce search complexity
-            jwtIds.remove(jwtIdToBeCompared);
+        return 0;
+    }
+
+    private int removeFile(Collection<Path> candidatesForRemoval) {
+        int removalCounter = 0;
+        for (Path path : candidatesForRemoval) {
+            if (budget.isExhausted()) {
+                break;
+            }
+            budget.acquireDelete();
+            try {
+                long bytes = getSize(path);
+                if (Files.deleteIfExists(path)) {
+                    ++removalCounter;
+                    countRemoval(path, bytes);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not delete file.", e);
+            }
         }
+
+        return removalCounter;
     }
 
-    Collection<Path> listAllServiceTickets() {
-        Stream<Path> list = listSessionStorePath();
-        return list.filter(file -> file.getFileName().toString().startsWith(SERVICE_TICKET_PREFIX))
-                .collect(Collectors.toList());
+    private void removeMarker(Path marker) {
+        budget.acquireDelete();
+        try {
+            Files.deleteIfExists(marker);
+        } catch (IOException e) {
+            LOG.error("Could not delete file.", e);
+        }
     }
 
-    private Stream<Path> listSessionStorePath() {
-        Path dir = Paths.get(sessionStorePath);
+    private void removeFromUserIndex(String userHash, String jwtId) {
+        if (userHash == null) {
+            return;
+        }
+
+        budget.acquireDelete();
         try {
-            return Files.list(dir);
+            userIndex.remove(userHash, jwtId);
         } catch (IOException e) {
-            throw new RuntimeException("Could not list files in CAS file session writeJwtFile", e);
+            LOG.error("Could not remove JWT " + jwtId + " from the user index", e);
+        }
+    }
+
+    private static long getSize(Path file) throws IOException {
+        try {
+            return Files.size(file);
+        } catch (NoSuchFileException e) {
+            return 0;
         }
     }
 
+    /**
+     * Each session has exactly one JWT file, so removing it removes the session from the statistics. Service ticket
+     * files only free their bytes.
+     */
+    private void countRemoval(Path file, long bytes) {
+        if (SessionFileHandler.JWT_FILE_PATTERN.matcher(file.getFileName().toString()).matches()) {
+            statistics.expiredSessionRemoved(bytes);
+        } else {
+            statistics.bytesRemoved(bytes);
+        }
+    }
+
+    private Path toServiceTicketFile(String serviceTicket, Path source) {
+        if (serviceTicket == null || !serviceTicket.startsWith(SERVICE_TICKET_PREFIX)) {
+            return null;
+        }
+
+        Path ticketFile = Paths.get(sessionStorePath, serviceTicket);
+        // makes sure we don't delete anything outside the session store
+        if (!Paths.get(sessionStorePath).equals(ticketFile.getParent())) {
+            LOG.warn("Ignoring service ticket reference {} of {}", serviceTicket, source);
+            return null;
+        }
+
+        return ticketFile;
+    }
+
     void removeServiceTickets(String... serviceTicketFileNames) {
         for (String serviceTicketFileName : serviceTicketFileNames) {
             removeServiceTicket(serviceTicketFileName);
@@ -167,29 +518,16 @@ class SessionFileRemover {
         }
     }
 
-    Collection<Path> listAllJwtFiles() {
-        return listSessionStorePath()
-                .filter(file -> JWT_FILE_PATTERN.matcher(file.getFileName().toString()).matches())
-                .collect(Collectors.toList());
-    }
-
-    List<SimpleJwt> parseJwtFiles(Collection<Path> foundFiles) {
-        List<SimpleJwt> list = new ArrayList<>(foundFiles.size());
+    List<JwtFile> parseJwtFiles(Collection<Path> foundFiles) {
+        List<JwtFile> list = new ArrayList<>(foundFiles.size());
 
         for (Path file : foundFiles) {
             try {
-                SimpleJwt jwt = JwtFiles.unmarshal(file);
-                list.add(jwt);
+                list.add(JwtFiles.read(file));
             } catch(Exception e) {
-                LOG.error("Could not parse JWT file.", e);
+                LOG.error("Could not parse JWT file " + file + ", keeping its session until it can be read", e);
             }
         }
         return list;
     }
-
-    List<SimpleJwt> findExpiredJwts(List<SimpleJwt> unfiltered) {
-        return unfiltered.stream()
-                .filter(SimpleJwt::isExpired)
-                .collect(Collectors.toList());
-    }
 }
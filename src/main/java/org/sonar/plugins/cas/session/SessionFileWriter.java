@@ -0,0 +1,223 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class writes the files of the {@link FileSessionStore} crash-safe.
+ *
+ * <p>Each file is written into a temporary file in the same directory first which is then atomically renamed to the
+ * target file. Readers therefore see either the complete old or the complete new content, but never a missing or a
+ * partly written file. When the content becomes durable on disk depends on the {@link Durability}.</p>
+ */
+class SessionFileWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionFileWriter.class);
+    private static final String TEMP_FILE_PREFIX = ".";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Describes when written files are forced to disk.
+     */
+    enum Durability {
+        /** files are left to the operating system which writes them eventually */
+        NONE,
+        /** each file and its directory entry are forced to disk before the write returns */
+        FSYNC,
+        /** written files are forced to disk together in fixed intervals, the write returns right away */
+        GROUP;
+
+        /**
+         * Returns the durability for a configured value, f. i. <code>fsync</code>.
+         */
+        static Durability of(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown CAS session store durability '" + value
+                        + "'. Please use one of: none, fsync, group", e);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final Durability durability;
+    private final long groupCommitIntervalInMillis;
+    /**
+     * files which were written since the last group commit
+     */
+    private final Set<Path> unsyncedFiles = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService groupCommitExecutor;
+
+    SessionFileWriter(String sessionStorePath, Durability durability, long groupCommitIntervalInMillis) {
+        if (durability == Durability.GROUP && groupCommitIntervalInMillis <= 0) {
+            throw new IllegalArgumentException("groupCommitIntervalInMillis must be strictly positive");
+        }
+        this.directory = Paths.get(sessionStorePath);
+        this.durability = durability;
+        this.groupCommitIntervalInMillis = groupCommitIntervalInMillis;
+    }
+
+    /**
+     * Removes temporary files which were left over by a crash and starts the group commit if configured.
+     */
+    void prepareForWork() throws IOException {
+        removeTemporaryFiles();
+
+        if (durability == Durability.GROUP) {
+            groupCommitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("cas-session-store-group-commit-%d")
+                    .build());
+            groupCommitExecutor.scheduleWithFixedDelay(this::commitSafely, groupCommitIntervalInMillis,
+                    groupCommitIntervalInMillis, TimeUnit.MILLISECONDS);
+        }
+        LOG.debug("CAS session store writes files with durability {}", durability);
+    }
+
+    /**
+     * Atomically creates or replaces the file with the given content.
+     */
+    void write(Path file, byte[] content) throws IOException {
+        writeAtomically(file, content);
+
+        if (durability == Durability.FSYNC) {
+            forceDirectory();
+        } else if (durability == Durability.GROUP) {
+            unsyncedFiles.add(file);
+        }
+    }
+
+    /**
+     * Atomically creates or replaces each file like {@link #write(Path, byte[])}, but forces the directory to disk only
+     * once for all files. The batch as a whole is not atomic: after a crash only some files may have been replaced.
+     */
+    void writeAll(Map<Path, byte[]> contents) throws IOException {
+        for (Map.Entry<Path, byte[]> file : contents.entrySet()) {
+            writeAtomically(file.getKey(), file.getValue());
+        }
+
+        if (durability == Durability.FSYNC && !contents.isEmpty()) {
+            forceDirectory();
+        } else if (durability == Durability.GROUP) {
+            unsyncedFiles.addAll(contents.keySet());
+        }
+    }
+
+    private void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tempFile = Files.createTempFile(directory, TEMP_FILE_PREFIX + file.getFileName(), TEMP_FILE_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (durability == Durability.FSYNC) {
+                    channel.force(true);
+                }
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Forces all files which were written since the last group commit to disk. Does nothing for other durabilities.
+     */
+    void commit() throws IOException {
+        if (unsyncedFiles.isEmpty()) {
+            return;
+        }
+
+        List<Path> files = new ArrayList<>(unsyncedFiles);
+        unsyncedFiles.removeAll(files);
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                LOG.debug("File {} was removed before it was forced to disk", file);
+            }
+        }
+        forceDirectory();
+        LOG.debug("Forced {} CAS session store files to disk", files.size());
+    }
+
+    void shutdown() throws IOException {
+        if (groupCommitExecutor != null) {
+            groupCommitExecutor.shutdown();
+            try {
+                groupCommitExecutor.awaitTermination(groupCommitIntervalInMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        commit();
+    }
+
+    private void commitSafely() {
+        try {
+            commit();
+        } catch (Exception e) {
+            LOG.error("Could not force CAS session store files to disk", e);
+        }
+    }
+
+    /**
+     * Forces the directory entries (and thus the renames) to disk. Not every platform supports opening directories, in
+     * that case the renames become durable whenever the operating system writes them.
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Could not force directory {} to disk", directory, e);
+        }
+    }
+
+    private void removeTemporaryFiles() throws IOException {
+        DirectoryStream.Filter<Path> tempFiles = file -> {
+            String name = file.getFileName().toString();
+            return name.startsWith(TEMP_FILE_PREFIX) && name.endsWith(TEMP_FILE_SUFFIX);
+        };
+
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, tempFiles)) {
+            for (Path file : files) {
+                if (Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        if (removed > 0) {
+            LOG.info("Removed {} temporary files of interrupted writes from the CAS session store", removed);
+        }
+    }
+}
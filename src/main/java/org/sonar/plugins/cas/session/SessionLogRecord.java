@@ -0,0 +1,214 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents a single record of the {@link LogStructuredSessionStore}.
+ *
+ * <p>A record is laid out like this (all numbers are big-endian):</p>
+ *
+ * <pre>
+ * int   payload length
+ * int   CRC32 checksum of the payload
+ * byte  record type
+ * short JWT ID length, followed by the UTF-8 encoded JWT ID
+ * long  JWT expiration as epoch seconds
+ * byte  1 if the JWT is invalid, otherwise 0
+ * short service ticket length, followed by the UTF-8 encoded service ticket (may be empty)
+ * </pre>
+ */
+final class SessionLogRecord {
+    static final int HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    private final Type type;
+    private final String jwtId;
+    private final long expiration;
+    private final boolean invalid;
+    private final String serviceTicket;
+
+    private SessionLogRecord(Type type, String jwtId, long expiration, boolean invalid, String serviceTicket) {
+        this.type = type;
+        this.jwtId = jwtId;
+        this.expiration = expiration;
+        this.invalid = invalid;
+        this.serviceTicket = serviceTicket == null ? "" : serviceTicket;
+    }
+
+    static SessionLogRecord of(Type type, SimpleJwt jwt, String serviceTicket) {
+        return new SessionLogRecord(type, jwt.getJwtId(), jwt.getExpiration().getEpochSecond(), jwt.isInvalid(),
+                serviceTicket);
+    }
+
+    static SessionLogRecord tombstone(String jwtId, String serviceTicket) {
+        return new SessionLogRecord(Type.TOMBSTONE, jwtId, 0L, true, serviceTicket);
+    }
+
+    static SessionLogRecord ticket(String jwtId, String serviceTicket) {
+        return new SessionLogRecord(Type.TICKET, jwtId, 0L, false, serviceTicket);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getJwtId() {
+        return jwtId;
+    }
+
+    long getExpiration() {
+        return expiration;
+    }
+
+    String getServiceTicket() {
+        return serviceTicket;
+    }
+
+    boolean hasServiceTicket() {
+        return !serviceTicket.isEmpty();
+    }
+
+    SimpleJwt toJwt() {
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(jwtId, expiration);
+        return invalid ? jwt.cloneAsInvalidated() : jwt;
+    }
+
+    /**
+     * Encodes this record including its header so it can be appended to a segment as it is.
+     */
+    ByteBuffer encode() {
+        byte[] id = jwtId.getBytes(StandardCharsets.UTF_8);
+        byte[] ticket = serviceTicket.getBytes(StandardCharsets.UTF_8);
+        int payloadSize = 1 + 2 + id.length + 8 + 1 + 2 + ticket.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(type.code);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.putLong(expiration);
+        buffer.put((byte) (invalid ? 1 : 0));
+        buffer.putShort((short) ticket.length);
+        buffer.put(ticket);
+
+        buffer.putInt(0, payloadSize);
+        buffer.putInt(4, checksum(buffer.array(), HEADER_SIZE, payloadSize));
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Reads the payload length from a record header.
+     *
+     * @return the payload length or -1 if the header does not describe a plausible record.
+     */
+    static int readPayloadLength(ByteBuffer header) {
+        int payloadLength = header.getInt(header.position());
+        if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            return -1;
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Decodes a complete record (header and payload) which starts at the current position of the buffer.
+     *
+     * @throws CorruptRecordException if the checksum does not match or the record cannot be parsed.
+     */
+    static SessionLogRecord decode(ByteBuffer record) {
+        if (record.remaining() < HEADER_SIZE) {
+            throw new CorruptRecordException("Found truncated session log record header");
+        }
+        int start = record.position();
+        int payloadLength = readPayloadLength(record);
+        if (payloadLength < 0 || record.remaining() < HEADER_SIZE + payloadLength) {
+            throw new CorruptRecordException("Found truncated session log record");
+        }
+
+        int expectedChecksum = record.getInt(start + 4);
+        int payloadStart = start + HEADER_SIZE;
+        if (checksum(record, payloadStart, payloadLength) != expectedChecksum) {
+            throw new CorruptRecordException("Found session log record with checksum mismatch");
+        }
+
+        try {
+            record.position(payloadStart);
+            Type type = Type.fromCode(record.get());
+            String jwtId = readString(record);
+            long expiration = record.getLong();
+            boolean invalid = record.get() != 0;
+            String serviceTicket = readString(record);
+
+            return new SessionLogRecord(type, jwtId, expiration, invalid, serviceTicket);
+        } catch (RuntimeException e) {
+            throw new CorruptRecordException("Could not parse session log record", e);
+        } finally {
+            record.position(payloadStart + payloadLength);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + length);
+        payload.position(offset);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    enum Type {
+        /** a new JWT and its service ticket after a successful log-in */
+        STORE(1),
+        /** a JWT with a newer expiration date */
+        REFRESH(2),
+        /** a JWT which was blacklisted during log-out */
+        INVALIDATE(3),
+        /** a removed JWT and its service ticket */
+        TOMBSTONE(4),
+        /** a service ticket whose JWT state was superseded by a later record, written during compaction */
+        TICKET(5);
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        static Type fromCode(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown session log record type " + code);
+        }
+    }
+
+    static class CorruptRecordException extends RuntimeException {
+        CorruptRecordException(String message) {
+            super(message);
+        }
+
+        CorruptRecordException(String message, Exception e) {
+            super(message, e);
+        }
+    }
+}
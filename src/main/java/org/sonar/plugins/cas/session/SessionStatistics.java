@@ -0,0 +1,297 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the number of active, invalidated and expired sessions of a session store together with the bytes
+ * the sessions take on disk. The session store reports each change, so reading the statistics never touches the store.
+ *
+ * <p>Sessions which did not expire yet are counted per time window of their JWT expiration. Whenever the statistics
+ * are changed or read, the windows which have passed are moved over to the expired sessions. Each window is moved only
+ * once, so all operations take constant time on average regardless of the number of sessions. Expired sessions are
+ * counted until the clean-up removes them.</p>
+ *
+ * <p>The statistics can be saved to and restored from a small checkpoint. A checkpoint which was not written during
+ * a regular shut down may miss later changes, so statistics restored from it are marked as not exact until the
+ * session store counted its sessions again.</p>
+ */
+public final class SessionStatistics {
+    static final long WINDOW_WIDTH_IN_SECS = TimeUnit.MINUTES.toSeconds(1);
+    private static final String CLEAN_KEY = "clean";
+    private static final String EXPIRED_KEY = "expired";
+    private static final String BYTES_ON_DISK_KEY = "bytesOnDisk";
+    private static final String WINDOW_KEY_PREFIX = "window.";
+    private static final int ACTIVE = 0;
+    private static final int INVALIDATED = 1;
+
+    /**
+     * maps the start of each time window to the number of active and invalidated sessions which expire in it, guarded
+     * by this
+     */
+    private final NavigableMap<Long, long[]> pendingWindows = new TreeMap<>();
+    private long activeSessions;
+    private long invalidatedSessions;
+    private long expiredSessions;
+    private long bytesOnDisk;
+    private boolean exact = true;
+
+    /**
+     * Counts a newly stored session.
+     *
+     * @param bytes the bytes the session added to the disk
+     */
+    synchronized void sessionStored(SimpleJwt jwt, long bytes) {
+        rollPassedWindows(Instant.now());
+        add(jwt, 1);
+        bytesOnDisk += bytes;
+    }
+
+    /**
+     * Moves a session from the state of the stored JWT to the state of its replacement, f. i. when the JWT was
+     * invalidated or refreshed.
+     *
+     * @param bytesDelta the change of the bytes the session takes on disk
+     */
+    synchronized void sessionReplaced(SimpleJwt stored, SimpleJwt replacement, long bytesDelta) {
+        rollPassedWindows(Instant.now());
+        add(stored, -1);
+        add(replacement, 1);
+        bytesOnDisk += bytesDelta;
+    }
+
+    /**
+     * Counts an expired session which was removed by the clean-up.
+     *
+     * @param bytes the bytes the session freed on disk
+     */
+    synchronized void expiredSessionRemoved(long bytes) {
+        rollPassedWindows(Instant.now());
+        // sessions which expired during the last window are not moved over yet
+        expiredSessions = Math.max(0, expiredSessions - 1);
+        bytesOnDisk = Math.max(0, bytesOnDisk - bytes);
+    }
+
+    /**
+     * Counts bytes which were added to the disk without storing a session, f. i. while the session store is counted.
+     */
+    synchronized void bytesAdded(long bytes) {
+        bytesOnDisk += bytes;
+    }
+
+    /**
+     * Counts bytes which were freed on disk without removing a session, f. i. by an orphaned service ticket file.
+     */
+    synchronized void bytesRemoved(long bytes) {
+        bytesOnDisk = Math.max(0, bytesOnDisk - bytes);
+    }
+
+    /**
+     * Replaces all counters with the counters of the given statistics, f. i. after the session store was counted again.
+     */
+    synchronized void replaceWith(SessionStatistics other) {
+        synchronized (other) {
+            pendingWindows.clear();
+            for (Map.Entry<Long, long[]> window : other.pendingWindows.entrySet()) {
+                pendingWindows.put(window.getKey(), window.getValue().clone());
+            }
+            activeSessions = other.activeSessions;
+            invalidatedSessions = other.invalidatedSessions;
+            expiredSessions = other.expiredSessions;
+            bytesOnDisk = other.bytesOnDisk;
+            exact = other.exact;
+        }
+    }
+
+    /**
+     * Marks the statistics as not exact, f. i. because there is no checkpoint to restore them from.
+     */
+    synchronized void markInexact() {
+        exact = false;
+    }
+
+    synchronized boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Returns the current statistics.
+     */
+    public synchronized Snapshot snapshot() {
+        rollPassedWindows(Instant.now());
+        // counters restored from an approximate checkpoint may drop below zero until the sessions are counted again
+        return new Snapshot(Math.max(0, activeSessions), Math.max(0, invalidatedSessions), expiredSessions, bytesOnDisk,
+                exact);
+    }
+
+    /**
+     * Returns a checkpoint of the statistics as properties file content.
+     *
+     * @param clean <code>true</code> if no further changes follow, that is during a regular shut down
+     */
+    synchronized byte[] toCheckpoint(boolean clean) {
+        rollPassedWindows(Instant.now());
+
+        Properties properties = new Properties();
+        properties.setProperty(CLEAN_KEY, Boolean.toString(clean && exact));
+        properties.setProperty(EXPIRED_KEY, Long.toString(expiredSessions));
+        properties.setProperty(BYTES_ON_DISK_KEY, Long.toString(bytesOnDisk));
+        for (Map.Entry<Long, long[]> window : pendingWindows.entrySet()) {
+            long[] counts = window.getValue();
+            properties.setProperty(WINDOW_KEY_PREFIX + window.getKey(), counts[ACTIVE] + "," + counts[INVALIDATED]);
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            properties.store(content, "CAS session store statistics");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Restores the statistics from a checkpoint which was written by {@link #toCheckpoint(boolean)}.
+     *
+     * @throws IllegalArgumentException if the checkpoint cannot be parsed
+     */
+    static SessionStatistics fromCheckpoint(InputStream checkpoint) throws IOException {
+        Properties properties = new Properties();
+        properties.load(checkpoint);
+
+        SessionStatistics statistics = new SessionStatistics();
+        try {
+            statistics.exact = Boolean.parseBoolean(properties.getProperty(CLEAN_KEY));
+            statistics.expiredSessions = Long.parseLong(properties.getProperty(EXPIRED_KEY, "0"));
+            statistics.bytesOnDisk = Long.parseLong(properties.getProperty(BYTES_ON_DISK_KEY, "0"));
+            for (String key : properties.stringPropertyNames()) {
+                if (!key.startsWith(WINDOW_KEY_PREFIX)) {
+                    continue;
+                }
+
+                String[] counts = properties.getProperty(key).split(",");
+                long windowStart = Long.parseLong(key.substring(WINDOW_KEY_PREFIX.length()));
+                long active = Long.parseLong(counts[ACTIVE]);
+                long invalidated = Long.parseLong(counts[INVALIDATED]);
+                statistics.pendingWindows.put(windowStart, new long[]{active, invalidated});
+                statistics.activeSessions += active;
+                statistics.invalidatedSessions += invalidated;
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Could not parse CAS session store statistics checkpoint", e);
+        }
+
+        return statistics;
+    }
+
+    private void add(SimpleJwt jwt, int sessions) {
+        long windowStart = getWindowStart(jwt.getExpiration());
+        if (isPassed(windowStart, Instant.now())) {
+            expiredSessions = Math.max(0, expiredSessions + sessions);
+            return;
+        }
+
+        long[] counts = pendingWindows.computeIfAbsent(windowStart, start -> new long[2]);
+        if (jwt.isInvalid()) {
+            counts[INVALIDATED] += sessions;
+            invalidatedSessions += sessions;
+        } else {
+            counts[ACTIVE] += sessions;
+            activeSessions += sessions;
+        }
+        if (counts[ACTIVE] <= 0 && counts[INVALIDATED] <= 0) {
+            pendingWindows.remove(windowStart);
+        }
+    }
+
+    private void rollPassedWindows(Instant now) {
+        Iterator<Map.Entry<Long, long[]>> windows = pendingWindows.entrySet().iterator();
+        while (windows.hasNext()) {
+            Map.Entry<Long, long[]> window = windows.next();
+            if (!isPassed(window.getKey(), now)) {
+                return;
+            }
+
+            long[] counts = window.getValue();
+            activeSessions -= counts[ACTIVE];
+            invalidatedSessions -= counts[INVALIDATED];
+            expiredSessions += counts[ACTIVE] + counts[INVALIDATED];
+            windows.remove();
+        }
+    }
+
+    private static boolean isPassed(long windowStart, Instant now) {
+        return windowStart + WINDOW_WIDTH_IN_SECS <= now.getEpochSecond();
+    }
+
+    private static long getWindowStart(Instant expiration) {
+        long epochSecond = expiration.getEpochSecond();
+        return epochSecond - Math.floorMod(epochSecond, WINDOW_WIDTH_IN_SECS);
+    }
+
+    /**
+     * The statistics of a session store at one point in time.
+     */
+    public static final class Snapshot {
+        private final long activeSessions;
+        private final long invalidatedSessions;
+        private final long expiredSessions;
+        private final long bytesOnDisk;
+        private final boolean exact;
+
+        private Snapshot(long activeSessions, long invalidatedSessions, long expiredSessions, long bytesOnDisk,
+                         boolean exact) {
+            this.activeSessions = activeSessions;
+            this.invalidatedSessions = invalidatedSessions;
+            this.expiredSessions = expiredSessions;
+            this.bytesOnDisk = bytesOnDisk;
+            this.exact = exact;
+        }
+
+        /**
+         * Returns the number of sessions which are neither invalidated nor expired.
+         */
+        public long getActiveSessions() {
+            return activeSessions;
+        }
+
+        /**
+         * Returns the number of sessions which were logged out but are not expired yet.
+         */
+        public long getInvalidatedSessions() {
+            return invalidatedSessions;
+        }
+
+        /**
+         * Returns the number of expired sessions which the clean-up did not remove yet.
+         */
+        public long getExpiredSessions() {
+            return expiredSessions;
+        }
+
+        /**
+         * Returns the size of all session files in bytes.
+         */
+        public long getBytesOnDisk() {
+            return bytesOnDisk;
+        }
+
+        /**
+         * Returns <code>false</code> if the statistics were restored from a checkpoint which may miss changes.
+         */
+        public boolean isExact() {
+            return exact;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import java.util.Collection;
+
+import static org.sonar.plugins.cas.session.SystemPasscode.PASSCODE_HEADER;
+
+/**
+ * This web service holds the actions which change the CAS session store. The POST action
+ * <code>api/cas_sessions/revoke_user_sessions</code> invalidates all sessions of a user. The read-only monitoring
+ * actions stay in {@link SessionStoreMetricsWs}, so a scraper never shares a controller with a state-changing action.
+ *
+ * <p>Like the monitoring actions, all actions only answer if the request carries SonarQube's system passcode in the
+ * <code>X-Sonar-Passcode</code> header. Without a configured passcode the endpoints are disabled.</p>
+ */
+@ServerSide
+public class SessionStoreAdminWs implements WebService {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionStoreAdminWs.class);
+    static final String CONTROLLER = "api/cas_sessions";
+    static final String REVOKE_ACTION = "revoke_user_sessions";
+    static final String PARAM_LOGIN = "login";
+    private static final int FORBIDDEN = 403;
+    private static final int NOT_FOUND = 404;
+
+    private final CasSessionStoreFactory sessionStoreFactory;
+    private final Configuration configuration;
+
+    /** called with injection by SonarQube during server initialization */
+    public SessionStoreAdminWs(CasSessionStoreFactory sessionStoreFactory, Configuration configuration) {
+        this.sessionStoreFactory = sessionStoreFactory;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void define(Context context) {
+        NewController controller = context.createController(CONTROLLER)
+                .setDescription("Sonar CAS plugin session administration");
+        NewAction revokeAction = controller.createAction(REVOKE_ACTION)
+                .setDescription("Invalidates all sessions of a user, f. i. after the account was deactivated. The user "
+                        + "has to log in again. Requires the system passcode in the " + PASSCODE_HEADER + " header.")
+                .setSince("2.1")
+                .setPost(true)
+                .setHandler(this::handleRevoke);
+        revokeAction.createParam(PARAM_LOGIN)
+                .setDescription("The CAS login of the user")
+                .setRequired(true);
+        controller.done();
+    }
+
+    private void handleRevoke(Request request, Response response) {
+        if (!SystemPasscode.isPresentIn(request, configuration)) {
+            response.stream().setStatus(FORBIDDEN);
+            return;
+        }
+
+        String login = request.mandatoryParam(PARAM_LOGIN);
+        Collection<String> jwtIds;
+        try {
+            jwtIds = sessionStoreFactory.getInstance().invalidateJwtsOfUser(login);
+        } catch (UnsupportedOperationException e) {
+            LOG.debug("Cannot revoke the sessions of user {}", login, e);
+            response.stream().setStatus(NOT_FOUND);
+            return;
+        }
+
+        LOG.info("Revoked {} sessions of user {}", jwtIds.size(), login);
+        try (JsonWriter json = response.newJsonWriter()) {
+            json.beginObject()
+                    .prop("invalidatedSessions", jwtIds.size())
+                    .endObject();
+        }
+    }
+}
@@ -1,26 +1,53 @@
 package org.sonar.plugins.cas.session;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.platform.Server;
 import org.sonar.api.platform.ServerStartHandler;
+import org.sonar.api.platform.ServerStopHandler;
 import org.sonar.api.server.ServerSide;
 import org.sonar.plugins.cas.util.SonarCasProperties;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * This class removes expired entries from the CAS session store in the background.
+ *
+ * <p>The configured interval is the delay between two clean up runs while the session store is in a steady state. After
+ * each run the next delay is adapted: a run which removed many entries or which stopped before it removed all expired
+ * entries, f. i. because its time budget was used up, shortens it down to an eighth of the interval, a run which
+ * removed nothing lengthens it up to four times the interval, any other run moves it back towards the interval. The
+ * delay is never shorter than twice the duration of the last run, so the clean up never occupies the session store
+ * most of the time. A random jitter of up to ten percent keeps servers which share a session store from cleaning it up
+ * at the same moment.</p>
+ */
 @ServerSide
-public final class SessionStoreCleaner implements ServerStartHandler {
+public final class SessionStoreCleaner implements ServerStartHandler, ServerStopHandler {
     private static final Logger LOG = LoggerFactory.getLogger(SessionStoreCleaner.class);
     private static final int SESSION_STORE_CLEANUP_INTERVAL_IN_SECS_DEFAULT = (int) TimeUnit.MINUTES.toSeconds(30);
     private static final int SESSION_STORE_CLEANUP_DISABLED = 0;
+    /**
+     * a run which removed at least this many entries indicates a backlog
+     */
+    static final int BACKLOG_THRESHOLD = 10_000;
+    private static final int MIN_DELAY_DIVISOR = 8;
+    private static final int MAX_DELAY_FACTOR = 4;
+    private static final double JITTER = 0.1;
+    private static final int MIN_DURATION_FACTOR = 2;
 
     private final CasSessionStoreFactory sessionStoreFactory;
     private final int cleanUpIntervalInSeconds;
-    private final Timer timer;
+    private ScheduledExecutorService executor;
+    /**
+     * the delay before the next run without jitter, only accessed by the clean up thread
+     */
+    private long nextDelayInMillis;
 
     /**
      * called with injection by SonarQube during server initialization
@@ -29,50 +56,99 @@ public final class SessionStoreCleaner implements ServerStartHandler {
         this.sessionStoreFactory = sessionStoreFactory;
         this.cleanUpIntervalInSeconds = SonarCasProperties.SESSION_STORE_CLEANUP_INTERVAL_IN_SECS
                 .getInteger(configuration, SESSION_STORE_CLEANUP_INTERVAL_IN_SECS_DEFAULT);
-        this.timer = new Timer();
     }
 
     @Override
     public void onServerStart(Server server) {
         LOG.debug("CAS session writeJwtFile cleaner was configured to an interval of {} seconds ", cleanUpIntervalInSeconds);
-        TimerTask task = createTask();
 
         if (isCleanUpDisabled()) {
             LOG.error("Found that CAS session writeJwtFile clean up was disabled. This should be done only in a development environment");
             return;
         }
 
-        runTask(task);
-    }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-store-cleaner-%d")
+                .build());
+        nextDelayInMillis = getIntervalInMillis();
 
-    private TimerTask createTask() {
-        return new CasSessionStoreCleanerTask();
+        // The CAS session writeJwtFile is persistent. This means there _may be_ clean-up work to tend to after a server
+        // start. Only the jitter delays the first run.
+        scheduleRun(0);
     }
 
-    private void runTask(TimerTask task) {
-        // The CAS session writeJwtFile is persistent. This means there _may be_ clean-up work to tend to after a server start
-        long firstOccurrenceImmediate = 0;
-        long intervalInMillis = TimeUnit.SECONDS.toMillis(cleanUpIntervalInSeconds);
-        timer.scheduleAtFixedRate(task, firstOccurrenceImmediate, intervalInMillis);
+    @Override
+    public void onServerStop(Server server) {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
     }
 
     private boolean isCleanUpDisabled() {
         return cleanUpIntervalInSeconds == SESSION_STORE_CLEANUP_DISABLED;
     }
 
-    void cancelTimer() {
-        timer.cancel();
+    private long getIntervalInMillis() {
+        return TimeUnit.SECONDS.toMillis(cleanUpIntervalInSeconds);
     }
 
-    class CasSessionStoreCleanerTask extends TimerTask {
-        @Override
-        public void run() {
-            LOG.debug("CAS session writeJwtFile clean up started.");
+    private void scheduleRun(long delayInMillis) {
+        long jitteredDelay = delayInMillis + (long) (ThreadLocalRandom.current().nextDouble() * JITTER * getIntervalInMillis());
+        try {
+            executor.schedule(this::run, jitteredDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("CAS session writeJwtFile clean up was not scheduled because the server stops");
+        }
+    }
 
+    private void run() {
+        LOG.debug("CAS session writeJwtFile clean up started.");
+        long start = System.currentTimeMillis();
+        int removedEntries = -1;
+        boolean backlogPending = false;
+        try {
             CasSessionStore store = sessionStoreFactory.getInstance();
-            int removedEntries = store.removeExpiredEntries();
+            removedEntries = store.removeExpiredEntries();
+            backlogPending = sessionStoreFactory.isCleanUpPending();
+        } catch (Exception e) {
+            LOG.error("CAS session writeJwtFile clean up failed", e);
+        }
+        long durationInMillis = System.currentTimeMillis() - start;
+
+        nextDelayInMillis = computeNextDelay(nextDelayInMillis, getIntervalInMillis(), removedEntries, backlogPending,
+                durationInMillis);
+        LOG.debug("CAS session writeJwtFile clean up finished in {} ms and removed {} entries. Next run in about {} seconds.",
+                durationInMillis, removedEntries, TimeUnit.MILLISECONDS.toSeconds(nextDelayInMillis));
+
+        scheduleRun(nextDelayInMillis);
+    }
 
-            LOG.debug("CAS session writeJwtFile clean up finished and removed {} entries.", removedEntries);
+    /**
+     * Computes the delay before the next clean up run from the result of the last run.
+     *
+     * @param lastDelayInMillis the delay before the last run without jitter
+     * @param intervalInMillis  the configured interval
+     * @param removedEntries    the number of entries the last run removed, or a negative number if it failed
+     * @param backlogPending    whether the last run stopped before it removed all expired entries
+     * @param durationInMillis  the duration of the last run
+     * @return the delay before the next run without jitter
+     */
+    static long computeNextDelay(long lastDelayInMillis, long intervalInMillis, int removedEntries,
+                                 boolean backlogPending, long durationInMillis) {
+        long nextDelay;
+        if (backlogPending || removedEntries >= BACKLOG_THRESHOLD) {
+            nextDelay = lastDelayInMillis / 2;
+        } else if (removedEntries == 0) {
+            nextDelay = lastDelayInMillis + lastDelayInMillis / 2;
+        } else {
+            // failed runs and runs with a moderate result return to the configured interval
+            nextDelay = (lastDelayInMillis + intervalInMillis) / 2;
         }
+
+        nextDelay = Math.max(nextDelay, intervalInMillis / MIN_DELAY_DIVISOR);
+        nextDelay = Math.min(nextDelay, intervalInMillis * MAX_DELAY_FACTOR);
+
+        return Math.max(nextDelay, durationInMillis * MIN_DURATION_FACTOR);
     }
 }
@@ -0,0 +1,306 @@
+package org.sonar.plugins.cas.session;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * This class collects the metrics of the CAS session store and renders them in the Prometheus text exposition format.
+ *
+ * <p>Each {@link Operation} has a call counter, an error counter and a latency histogram with fixed buckets. All
+ * counters are {@link LongAdder}s so recording a call on the request thread does not contend with other requests.
+ * Session store implementations register gauges for their current entry counts.</p>
+ *
+ * <p>When a shadow session store is configured, each operation additionally has a latency histogram per
+ * {@link Backend} and counters for the answers in which the secondary backend differed from the primary one or
+ * failed. These metrics are only rendered once {@link #enableShadowMetrics()} was called.</p>
+ */
+public final class SessionStoreMetrics {
+    private static final String PREFIX = "cas_session_store_";
+    /**
+     * upper bounds of the latency histogram buckets in seconds
+     */
+    private static final double[] LATENCY_BUCKETS = {0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10};
+
+    /**
+     * The instrumented operations of {@link CasSessionStore}.
+     */
+    public enum Operation {
+        STORE,
+        IS_JWT_STORED,
+        FETCH_STORED_JWT,
+        LOOKUP_JWT,
+        INVALIDATE_JWT,
+        INVALIDATE_JWTS_OF_USER,
+        REFRESH_JWT,
+        REMOVE_EXPIRED_ENTRIES;
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * The backends of a {@link ShadowSessionStore}.
+     */
+    enum Backend {
+        PRIMARY,
+        SECONDARY;
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * The kinds of answers in which the secondary backend of a {@link ShadowSessionStore} differs from the primary one.
+     */
+    enum Mismatch {
+        /** the secondary backend does not know a session which the primary backend knows */
+        MISSING,
+        /** both backends know the session but answer differently */
+        DIFFERENT;
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final Map<Backend, Map<Operation, Histogram>> shadowLatencies = new EnumMap<>(Backend.class);
+    private final Map<Mismatch, Map<Operation, LongAdder>> shadowMismatches = new EnumMap<>(Mismatch.class);
+    private final Map<Operation, LongAdder> shadowErrors = new EnumMap<>(Operation.class);
+    private volatile boolean shadowEnabled;
+    /**
+     * maps metric names to their help text and value, guarded by itself
+     */
+    private final Map<String, Gauge> gauges = Collections.synchronizedMap(new TreeMap<>());
+
+    SessionStoreMetrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+            errors.put(operation, new LongAdder());
+            shadowErrors.put(operation, new LongAdder());
+        }
+        for (Backend backend : Backend.values()) {
+            Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                histograms.put(operation, new Histogram());
+            }
+            shadowLatencies.put(backend, histograms);
+        }
+        for (Mismatch mismatch : Mismatch.values()) {
+            Map<Operation, LongAdder> counters = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                counters.put(operation, new LongAdder());
+            }
+            shadowMismatches.put(mismatch, counters);
+        }
+    }
+
+    void recordCall(Operation operation, long durationInNanos) {
+        latencies.get(operation).observe(durationInNanos);
+    }
+
+    void recordError(Operation operation) {
+        errors.get(operation).increment();
+    }
+
+    void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * Makes {@link #toPrometheusText()} render the metrics of the shadow session store.
+     */
+    void enableShadowMetrics() {
+        shadowEnabled = true;
+    }
+
+    void recordShadowCall(Operation operation, Backend backend, long durationInNanos) {
+        shadowLatencies.get(backend).get(operation).observe(durationInNanos);
+    }
+
+    void recordShadowMismatch(Operation operation, Mismatch mismatch) {
+        shadowMismatches.get(mismatch).get(operation).increment();
+    }
+
+    void recordShadowError(Operation operation) {
+        shadowErrors.get(operation).increment();
+    }
+
+    long getShadowCalls(Operation operation, Backend backend) {
+        return shadowLatencies.get(backend).get(operation).count.sum();
+    }
+
+    /**
+     * Returns the average latency of the operation in the given backend of the shadow session store, or 0 if the
+     * backend was not called yet.
+     */
+    double getShadowMeanLatencyInMillis(Operation operation, Backend backend) {
+        return shadowLatencies.get(backend).get(operation).meanInMillis();
+    }
+
+    long getShadowMismatches(Operation operation, Mismatch mismatch) {
+        return shadowMismatches.get(mismatch).get(operation).sum();
+    }
+
+    long getShadowErrors(Operation operation) {
+        return shadowErrors.get(operation).sum();
+    }
+
+    /**
+     * Registers a gauge whose value is read each time the metrics are rendered.
+     *
+     * @param name the metric name without the <code>cas_session_store_</code> prefix
+     */
+    void registerGauge(String name, String help, LongSupplier value) {
+        gauges.put(PREFIX + name, new Gauge(help, value));
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        appendHeader(text, "operation_duration_seconds", "Latency of CAS session store operations", "histogram");
+        for (Map.Entry<Operation, Histogram> entry : latencies.entrySet()) {
+            entry.getValue().appendTo(text, "operation_duration_seconds",
+                    "operation=\"" + entry.getKey().label() + "\"");
+        }
+
+        appendHeader(text, "operation_errors_total", "CAS session store operations which failed", "counter");
+        for (Map.Entry<Operation, LongAdder> entry : errors.entrySet()) {
+            text.append(PREFIX).append("operation_errors_total{operation=\"").append(entry.getKey().label())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        appendHeader(text, "cache_hits_total", "JWT lookups answered by the CAS session store cache", "counter");
+        text.append(PREFIX).append("cache_hits_total ").append(cacheHits.sum()).append('\n');
+        appendHeader(text, "cache_misses_total", "JWT lookups which missed the CAS session store cache", "counter");
+        text.append(PREFIX).append("cache_misses_total ").append(cacheMisses.sum()).append('\n');
+
+        if (shadowEnabled) {
+            appendShadowMetrics(text);
+        }
+
+        synchronized (gauges) {
+            for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+                String name = entry.getKey();
+                text.append("# HELP ").append(name).append(' ').append(entry.getValue().help).append('\n');
+                text.append("# TYPE ").append(name).append(" gauge\n");
+                text.append(name).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+            }
+        }
+
+        return text.toString();
+    }
+
+    private void appendShadowMetrics(StringBuilder text) {
+        appendHeader(text, "shadow_operation_duration_seconds",
+                "Latency of CAS session store operations in the primary and the secondary backend", "histogram");
+        for (Map.Entry<Backend, Map<Operation, Histogram>> backend : shadowLatencies.entrySet()) {
+            for (Map.Entry<Operation, Histogram> entry : backend.getValue().entrySet()) {
+                entry.getValue().appendTo(text, "shadow_operation_duration_seconds", "operation=\""
+                        + entry.getKey().label() + "\",backend=\"" + backend.getKey().label() + "\"");
+            }
+        }
+
+        appendHeader(text, "shadow_mismatches_total",
+                "CAS session store operations which the secondary backend answered differently", "counter");
+        for (Map.Entry<Mismatch, Map<Operation, LongAdder>> mismatch : shadowMismatches.entrySet()) {
+            for (Map.Entry<Operation, LongAdder> entry : mismatch.getValue().entrySet()) {
+                text.append(PREFIX).append("shadow_mismatches_total{operation=\"").append(entry.getKey().label())
+                        .append("\",kind=\"").append(mismatch.getKey().label()).append("\"} ")
+                        .append(entry.getValue().sum()).append('\n');
+            }
+        }
+
+        appendHeader(text, "shadow_errors_total",
+                "CAS session store operations which failed in the secondary backend", "counter");
+        for (Map.Entry<Operation, LongAdder> entry : shadowErrors.entrySet()) {
+            text.append(PREFIX).append("shadow_errors_total{operation=\"").append(entry.getKey().label())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void appendHeader(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumInNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long durationInNanos) {
+            double seconds = durationInNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumInNanos.add(durationInNanos);
+        }
+
+        private double meanInMillis() {
+            long total = count.sum();
+            return total == 0 ? 0 : sumInNanos.sum() / (double) TimeUnit.MILLISECONDS.toNanos(1) / total;
+        }
+
+        /**
+         * Appends the cumulative buckets, the sum and the count like Prometheus expects them.
+         *
+         * @param metric the metric name without the <code>cas_session_store_</code> prefix
+         * @param labels the labels which identify this histogram, f. i. <code>operation="store"</code>
+         */
+        private void appendTo(StringBuilder text, String metric, String labels) {
+            String name = PREFIX + metric;
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                text.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                    .append(Math.max(total, cumulative)).append('\n');
+            text.append(name).append("_sum{").append(labels).append("} ")
+                    .append(sumInNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ")
+                    .append(Math.max(total, cumulative)).append('\n');
+        }
+    }
+
+    private static final class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
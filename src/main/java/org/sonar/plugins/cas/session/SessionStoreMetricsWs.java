@@ -0,0 +1,97 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.sonar.plugins.cas.session.SystemPasscode.PASSCODE_HEADER;
+
+/**
+ * This web service publishes the {@link SessionStoreMetrics} in the Prometheus text exposition format under
+ * <code>api/cas/session_store_metrics</code> and the {@link SessionStatistics} as JSON under
+ * <code>api/cas/session_store_statistics</code>. Both actions only read; actions which change the session store live in
+ * {@link SessionStoreAdminWs}.
+ *
+ * <p>Like SonarQube's own monitoring endpoint all actions only answer if the request carries SonarQube's system
+ * passcode in the <code>X-Sonar-Passcode</code> header. Without a configured passcode the endpoints are disabled.</p>
+ */
+@ServerSide
+public class SessionStoreMetricsWs implements WebService {
+    static final String CONTROLLER = "api/cas";
+    static final String ACTION = "session_store_metrics";
+    static final String STATISTICS_ACTION = "session_store_statistics";
+    private static final String PROMETHEUS_MEDIA_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int FORBIDDEN = 403;
+    private static final int NOT_FOUND = 404;
+
+    private final CasSessionStoreFactory sessionStoreFactory;
+    private final Configuration configuration;
+
+    /** called with injection by SonarQube during server initialization */
+    public SessionStoreMetricsWs(CasSessionStoreFactory sessionStoreFactory, Configuration configuration) {
+        this.sessionStoreFactory = sessionStoreFactory;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void define(Context context) {
+        NewController controller = context.createController(CONTROLLER)
+                .setDescription("Sonar CAS plugin");
+        controller.createAction(ACTION)
+                .setDescription("Returns the metrics of the CAS session store in the Prometheus text format. Requires "
+                        + "the system passcode in the " + PASSCODE_HEADER + " header.")
+                .setSince("2.1")
+                .setHandler(this::handle);
+        controller.createAction(STATISTICS_ACTION)
+                .setDescription("Returns the number of active, invalidated and expired sessions of the CAS session "
+                        + "store and the size of its files. Requires the system passcode in the " + PASSCODE_HEADER
+                        + " header.")
+                .setSince("2.1")
+                .setHandler(this::handleStatistics);
+        controller.done();
+    }
+
+    private void handle(Request request, Response response) throws IOException {
+        if (!SystemPasscode.isPresentIn(request, configuration)) {
+            response.stream().setStatus(FORBIDDEN);
+            return;
+        }
+
+        byte[] metrics = sessionStoreFactory.getMetrics().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+        response.stream().setMediaType(PROMETHEUS_MEDIA_TYPE);
+        try (OutputStream output = response.stream().output()) {
+            output.write(metrics);
+        }
+    }
+
+    private void handleStatistics(Request request, Response response) {
+        if (!SystemPasscode.isPresentIn(request, configuration)) {
+            response.stream().setStatus(FORBIDDEN);
+            return;
+        }
+
+        SessionStatistics statistics = sessionStoreFactory.getStatistics();
+        if (statistics == null) {
+            response.stream().setStatus(NOT_FOUND);
+            return;
+        }
+
+        SessionStatistics.Snapshot snapshot = statistics.snapshot();
+        try (JsonWriter json = response.newJsonWriter()) {
+            json.beginObject()
+                    .prop("activeSessions", snapshot.getActiveSessions())
+                    .prop("invalidatedSessions", snapshot.getInvalidatedSessions())
+                    .prop("expiredSessions", snapshot.getExpiredSessions())
+                    .prop("bytesOnDisk", snapshot.getBytesOnDisk())
+                    .prop("exact", snapshot.isExact())
+                    .endObject();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.session.SessionStoreMetrics.Backend;
+import org.sonar.plugins.cas.session.SessionStoreMetrics.Mismatch;
+import org.sonar.plugins.cas.session.SessionStoreMetrics.Operation;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class sends every operation to a primary and a secondary {@link CasSessionStore} in order to try a new session
+ * store backend with the real traffic before relying on it.
+ *
+ * <p>The primary backend is called first and its answer is returned to the caller. The secondary backend is called
+ * afterwards on the same thread, so it sees the same concurrency as the primary one. Its answer is only compared with
+ * the primary answer. Each difference is counted as a {@link Mismatch} and logged, its exceptions are counted and
+ * logged but never thrown. The latencies of both backends are recorded separately in the
+ * {@link SessionStoreMetrics} and summarized in the log after each clean up.</p>
+ *
+ * <p>The secondary backend starts empty. Sessions which were stored before shadowing began are only known to the
+ * primary backend and count as {@link Mismatch#MISSING}, which is logged with debug level only. The counts of removed
+ * entries are not compared because the backends count tickets and JWTs differently.</p>
+ */
+final class ShadowSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(ShadowSessionStore.class);
+    private static final long LOG_INTERVAL_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final Object NO_ANSWER = new Object();
+
+    private final CasSessionStore primary;
+    private final CasSessionStore secondary;
+    private final String secondaryType;
+    private final SessionStoreMetrics metrics;
+    /**
+     * the time in nanos after which the next difference or failure of an operation may be logged with warn level
+     */
+    private final Map<Operation, AtomicLong> nextWarnings = new EnumMap<>(Operation.class);
+    private volatile boolean secondaryEnabled = true;
+
+    ShadowSessionStore(CasSessionStore primary, CasSessionStore secondary, String secondaryType,
+                       SessionStoreMetrics metrics) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.secondaryType = secondaryType;
+        this.metrics = metrics;
+        for (Operation operation : Operation.values()) {
+            nextWarnings.put(operation, new AtomicLong(System.nanoTime()));
+        }
+        metrics.enableShadowMetrics();
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        primary.prepareForWork();
+        try {
+            secondary.prepareForWork();
+            LOG.info("Shadowing the CAS session store with the {} session store", secondaryType);
+        } catch (IOException | RuntimeException e) {
+            secondaryEnabled = false;
+            LOG.error("Could not prepare the shadow CAS " + secondaryType + " session store. Shadowing is disabled.",
+                    e);
+        }
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        long start = System.nanoTime();
+        Collection<String> evictedJwtIds;
+        try {
+            evictedJwtIds = primary.store(ticket, jwt, login);
+        } finally {
+            metrics.recordShadowCall(Operation.STORE, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.STORE, jwt.getJwtId(), evictedJwtIds, null, () -> secondary.store(ticket, jwt, login));
+        return evictedJwtIds;
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        boolean stored;
+        try {
+            stored = primary.isJwtStored(jwt);
+        } finally {
+            metrics.recordShadowCall(Operation.IS_JWT_STORED, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.IS_JWT_STORED, jwt.getJwtId(), stored, false, () -> secondary.isJwtStored(jwt));
+        return stored;
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        SimpleJwt storedJwt;
+        try {
+            storedJwt = primary.fetchStoredJwt(jwt);
+        } finally {
+            metrics.recordShadowCall(Operation.FETCH_STORED_JWT, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.FETCH_STORED_JWT, jwt.getJwtId(), storedJwt, SimpleJwt.getNullObject(),
+                () -> secondary.fetchStoredJwt(jwt));
+        return storedJwt;
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        long start = System.nanoTime();
+        StoredJwtState state;
+        try {
+            state = primary.lookupJwt(jwt);
+        } finally {
+            metrics.recordShadowCall(Operation.LOOKUP_JWT, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.LOOKUP_JWT, jwt.getJwtId(), state, StoredJwtState.NOT_STORED, () -> secondary.lookupJwt(jwt));
+        return state;
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        primary.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        long start = System.nanoTime();
+        String jwtId;
+        try {
+            jwtId = primary.invalidateJwt(serviceTicketId);
+        } finally {
+            metrics.recordShadowCall(Operation.INVALIDATE_JWT, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.INVALIDATE_JWT, serviceTicketId, jwtId, null, () -> secondary.invalidateJwt(serviceTicketId));
+        return jwtId;
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        long start = System.nanoTime();
+        Collection<String> jwtIds;
+        try {
+            jwtIds = primary.invalidateJwtsOfUser(login);
+        } finally {
+            metrics.recordShadowCall(Operation.INVALIDATE_JWTS_OF_USER, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        shadow(Operation.INVALIDATE_JWTS_OF_USER, login, jwtIds, Collections.emptyList(),
+                () -> secondary.invalidateJwtsOfUser(login));
+        return jwtIds;
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        long start = System.nanoTime();
+        int removed;
+        try {
+            removed = primary.removeExpiredEntries();
+        } finally {
+            metrics.recordShadowCall(Operation.REMOVE_EXPIRED_ENTRIES, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        callSecondary(Operation.REMOVE_EXPIRED_ENTRIES, "", secondary::removeExpiredEntries);
+        logSummary();
+        return removed;
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) throws IOException {
+        long start = System.nanoTime();
+        try {
+            primary.refreshJwt(jwtWithLongerExpirationDate);
+        } finally {
+            metrics.recordShadowCall(Operation.REFRESH_JWT, Backend.PRIMARY, System.nanoTime() - start);
+        }
+
+        callSecondary(Operation.REFRESH_JWT, jwtWithLongerExpirationDate.getJwtId(), () -> {
+            secondary.refreshJwt(jwtWithLongerExpirationDate);
+            return null;
+        });
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        try {
+            primary.shutdown();
+        } finally {
+            try {
+                secondary.shutdown();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Could not shut down the shadow CAS " + secondaryType + " session store", e);
+            }
+            logSummary();
+        }
+    }
+
+    @Override
+    public SessionStatistics getStatistics() {
+        return primary.getStatistics();
+    }
+
+    @Override
+    public boolean isCleanUpPending() {
+        return primary.isCleanUpPending();
+    }
+
+    /**
+     * Calls the secondary backend and compares its answer with the answer of the primary backend.
+     *
+     * @param subject   the JWT ID, ticket or login the operation is about, for the log
+     * @param notStored the answer of a backend which does not know the session, or <code>null</code> if the operation
+     *                  cannot tell
+     */
+    private void shadow(Operation operation, String subject, Object primaryAnswer, Object notStored,
+                        SecondaryCall call) {
+        Object secondaryAnswer = callSecondary(operation, subject, call);
+        if (secondaryAnswer == NO_ANSWER) {
+            return;
+        }
+
+        Object expected = normalize(primaryAnswer);
+        Object actual = normalize(secondaryAnswer);
+        if (Objects.equals(expected, actual)) {
+            return;
+        }
+
+        if (notStored != null && Objects.equals(actual, normalize(notStored))) {
+            metrics.recordShadowMismatch(operation, Mismatch.MISSING);
+            LOG.debug("Shadow CAS {} session store does not know {} of {}", secondaryType, subject, operation.label());
+            return;
+        }
+
+        metrics.recordShadowMismatch(operation, Mismatch.DIFFERENT);
+        if (isWarningDue(operation)) {
+            LOG.warn("Shadow CAS {} session store answered {} of {} with {} instead of {}", secondaryType,
+                    operation.label(), subject, actual, expected);
+        } else {
+            LOG.debug("Shadow CAS {} session store answered {} of {} with {} instead of {}", secondaryType,
+                    operation.label(), subject, actual, expected);
+        }
+    }
+
+    /**
+     * Calls the secondary backend and records its latency.
+     *
+     * @return the answer of the secondary backend, or {@link #NO_ANSWER} if it is disabled or failed
+     */
+    private Object callSecondary(Operation operation, String subject, SecondaryCall call) {
+        if (!secondaryEnabled) {
+            return NO_ANSWER;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException e) {
+            metrics.recordShadowError(operation);
+            if (isWarningDue(operation)) {
+                LOG.warn("Shadow CAS " + secondaryType + " session store failed " + operation.label() + " of "
+                        + subject, e);
+            } else {
+                LOG.debug("Shadow CAS {} session store failed {} of {}", secondaryType, operation.label(), subject, e);
+            }
+            return NO_ANSWER;
+        } finally {
+            metrics.recordShadowCall(operation, Backend.SECONDARY, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> at most once per minute and operation, so a broken backend does not flood the log.
+     */
+    private boolean isWarningDue(Operation operation) {
+        AtomicLong nextWarning = nextWarnings.get(operation);
+        long now = System.nanoTime();
+        long due = nextWarning.get();
+        return now - due >= 0 && nextWarning.compareAndSet(due, now + LOG_INTERVAL_IN_NANOS);
+    }
+
+    /**
+     * Makes answers comparable whose order differs between backends.
+     */
+    private static Object normalize(Object answer) {
+        if (answer instanceof Collection) {
+            return new HashSet<>((Collection<?>) answer);
+        }
+        return answer;
+    }
+
+    private void logSummary() {
+        for (Operation operation : Operation.values()) {
+            long calls = metrics.getShadowCalls(operation, Backend.SECONDARY);
+            if (calls == 0) {
+                continue;
+            }
+
+            String primaryLatency = String.format(Locale.ENGLISH, "%.3f",
+                    metrics.getShadowMeanLatencyInMillis(operation, Backend.PRIMARY));
+            String secondaryLatency = String.format(Locale.ENGLISH, "%.3f",
+                    metrics.getShadowMeanLatencyInMillis(operation, Backend.SECONDARY));
+            LOG.info("Shadow CAS {} session store {}: {} calls, {} ms primary and {} ms secondary latency on average, "
+                            + "{} different and {} missing answers, {} errors", secondaryType, operation.label(), calls,
+                    primaryLatency, secondaryLatency, metrics.getShadowMismatches(operation, Mismatch.DIFFERENT),
+                    metrics.getShadowMismatches(operation, Mismatch.MISSING), metrics.getShadowErrors(operation));
+        }
+    }
+
+    @FunctionalInterface
+    private interface SecondaryCall {
+        Object call() throws IOException;
+    }
+}
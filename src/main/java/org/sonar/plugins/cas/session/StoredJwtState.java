@@ -0,0 +1,28 @@
+package org.sonar.plugins.cas.session;
+
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+/**
+ * The state of a JWT in the {@link CasSessionStore} as returned by {@link CasSessionStore#lookupJwt(SimpleJwt)}.
+ */
+public enum StoredJwtState {
+    /** the session store does not know the JWT */
+    NOT_STORED,
+    /** the JWT is stored and the user did not log out yet */
+    VALID,
+    /** the JWT is stored and was blacklisted during log-out */
+    INVALIDATED;
+
+    /**
+     * Returns the state for a JWT as it was read from a session store.
+     *
+     * @param storedJwt the stored JWT, or the {@link SimpleJwt#getNullObject() null object} if nothing was stored.
+     */
+    static StoredJwtState of(SimpleJwt storedJwt) {
+        if (storedJwt == null || storedJwt.isNullObject()) {
+            return NOT_STORED;
+        }
+
+        return storedJwt.isInvalid() ? INVALIDATED : VALID;
+    }
+}
@@ -0,0 +1,39 @@
+package org.sonar.plugins.cas.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ws.Request;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * This class checks the system passcode which guards the session store web services, like SonarQube's own monitoring
+ * endpoint does. Without a configured passcode every request is rejected.
+ */
+final class SystemPasscode {
+    private static final Logger LOG = LoggerFactory.getLogger(SystemPasscode.class);
+    static final String PASSCODE_HEADER = "X-Sonar-Passcode";
+    private static final String SYSTEM_PASSCODE = "sonar.web.systemPasscode";
+
+    private SystemPasscode() {
+    }
+
+    /**
+     * Returns <code>true</code> if the request carries the configured system passcode in the
+     * {@value #PASSCODE_HEADER} header.
+     */
+    static boolean isPresentIn(Request request, Configuration configuration) {
+        Optional<String> systemPasscode = configuration.get(SYSTEM_PASSCODE);
+        if (!systemPasscode.isPresent()) {
+            LOG.debug("Rejecting CAS session store request because {} is not configured", SYSTEM_PASSCODE);
+            return false;
+        }
+
+        Optional<String> passcode = request.header(PASSCODE_HEADER);
+        return passcode.isPresent() && MessageDigest.isEqual(
+                passcode.get().getBytes(StandardCharsets.UTF_8), systemPasscode.get().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,108 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maintains a side index of the {@link FileSessionStore} which groups sessions by their user.
+ *
+ * <p>Each user is a directory below <code>users</code> which is named after the SHA-256 hash of the login, so any
+ * login maps to a valid file name of fixed length. A session is represented by an empty marker file which is named
+ * after the JWT ID. Listing a user's directory therefore takes time in proportion to the number of the user's
+ * sessions, regardless of the size of the session store.</p>
+ *
+ * <p>The user hash is also part of the session's marker in the {@link ExpiryBucketIndex}, so the clean-up removes the
+ * marker in this index together with the expired session. A user's directory is removed with the last marker.</p>
+ */
+class UserSessionIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(UserSessionIndex.class);
+    private static final String INDEX_DIR = "users";
+
+    private final Path indexDir;
+
+    UserSessionIndex(String sessionStorePath) {
+        this.indexDir = Paths.get(sessionStorePath, INDEX_DIR);
+    }
+
+    void prepareForWork() throws IOException {
+        Files.createDirectories(indexDir);
+    }
+
+    /**
+     * Returns the name of the user's directory, or <code>null</code> if the login is unknown.
+     */
+    static String toUserHash(String login) {
+        if (login == null || login.isEmpty()) {
+            return null;
+        }
+        return Hashing.sha256().hashString(login, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Adds the session to the user's directory. Adding an already indexed session does nothing.
+     */
+    void add(String userHash, String jwtId) throws IOException {
+        Path userDir = indexDir.resolve(userHash);
+        Path marker = userDir.resolve(jwtId);
+        try {
+            Files.createDirectories(userDir);
+            Files.createFile(marker);
+        } catch (FileAlreadyExistsException e) {
+            LOG.debug("JWT {} is already indexed for user {}", jwtId, userHash);
+        } catch (NoSuchFileException e) {
+            // the clean-up removed the user's last marker together with the directory in the meantime
+            Files.createDirectories(userDir);
+            Files.createFile(marker);
+        }
+    }
+
+    /**
+     * Removes the session from the user's directory and the directory once it is empty.
+     */
+    void remove(String userHash, String jwtId) throws IOException {
+        Path userDir = indexDir.resolve(userHash);
+        Files.deleteIfExists(userDir.resolve(jwtId));
+
+        try {
+            Files.deleteIfExists(userDir);
+        } catch (DirectoryNotEmptyException e) {
+            // the user has further sessions
+        }
+    }
+
+    /**
+     * Returns the IDs of all JWTs which were indexed for the user. The list may contain JWTs whose session was removed
+     * during the listing.
+     */
+    List<String> findJwtIds(String userHash) throws IOException {
+        List<String> jwtIds = new ArrayList<>();
+        Path userDir = indexDir.resolve(userHash);
+        if (!Files.isDirectory(userDir)) {
+            return jwtIds;
+        }
+
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(userDir)) {
+            for (Path marker : markers) {
+                jwtIds.add(marker.getFileName().toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return jwtIds;
+    }
+}
@@ -0,0 +1,258 @@
+package org.sonar.plugins.cas.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * This class takes JWT refreshes off the request thread and persists them in the background into another
+ * {@link CasSessionStore}.
+ *
+ * <p>SonarQube reissues the JWT cookie of active users regularly, and each refresh used to rewrite the stored JWT
+ * during the user's request. {@link #refreshJwt(SimpleJwt)} now only queues the refreshed JWT. Repeated refreshes of the
+ * same JWT replace each other in the queue, so only the latest expiration is written. A background thread flushes the
+ * queue in fixed intervals. If the queue is full the requesting thread flushes it itself before it queues its refresh.
+ * </p>
+ *
+ * <p>{@link #removeExpiredEntries()} flushes the queue first because it must not remove JWTs whose refresh is still
+ * queued, and {@link #shutdown()} persists all queued refreshes before the underlying store is shut down. Flushes are
+ * serialized so a refresh is never written after a newer change of the same JWT.</p>
+ *
+ * <p>Log-outs do not wait for the queue. {@link #invalidateJwt(String)} and {@link #invalidateJwtsOfUser(String)}
+ * invalidate the stored JWTs and then mark their queued refreshes invalid, so writing such a refresh later extends the
+ * blacklisting to the latest expiration and never makes the JWT valid again. A refresh which a concurrent flush already
+ * took from the queue is written as it is, the underlying store keeps the JWT invalid then (see
+ * {@link CasSessionStore#refreshJwt(SimpleJwt)}). Queued refreshes never change the invalid flag which
+ * {@link #fetchStoredJwt(SimpleJwt)} answers, only the expiration.</p>
+ *
+ * <p>Logins take the flush lock only to drop a queued refresh of the same JWT ID and to mark the refreshes of evicted
+ * JWTs invalid, so a slow login, f. i. one which evicts sessions, never holds up the flushes.</p>
+ */
+final class WriteBehindSessionStore implements CasSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindSessionStore.class);
+
+    private final CasSessionStore delegate;
+    private final int maximumQueueSize;
+    private final long flushIntervalInMillis;
+    /**
+     * maps JWT IDs to their latest queued refresh, guarded by itself
+     */
+    private final Map<String, SimpleJwt> queuedRefreshes = new LinkedHashMap<>();
+    /**
+     * serializes draining the queue with writing it so queued refreshes reach the underlying store in order
+     */
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flushExecutor;
+
+    WriteBehindSessionStore(CasSessionStore delegate, int maximumQueueSize, long flushIntervalInMillis,
+                            SessionStoreMetrics metrics) {
+        if (maximumQueueSize <= 0) {
+            throw new IllegalArgumentException("maximumQueueSize must be strictly positive");
+        }
+        if (flushIntervalInMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalInMillis must be strictly positive");
+        }
+        this.delegate = delegate;
+        this.maximumQueueSize = maximumQueueSize;
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        metrics.registerGauge("write_behind_queued_refreshes",
+                "JWT refreshes waiting to be written to the CAS session store", this::getQueueSize);
+    }
+
+    @Override
+    public void prepareForWork() throws IOException {
+        delegate.prepareForWork();
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cas-session-store-write-behind-%d")
+                .build());
+        flushExecutor.scheduleWithFixedDelay(this::flushSafely, flushIntervalInMillis, flushIntervalInMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void store(String ticket, SimpleJwt jwt) {
+        store(ticket, jwt, null);
+    }
+
+    @Override
+    public Collection<String> store(String ticket, SimpleJwt jwt, String login) {
+        synchronized (flushLock) {
+            // a new session must not be overwritten by a refresh which was queued for a former session of the same ID
+            dequeue(jwt.getJwtId());
+        }
+
+        Collection<String> evictedJwtIds = delegate.store(ticket, jwt, login);
+        synchronized (flushLock) {
+            invalidateQueued(evictedJwtIds);
+        }
+
+        return evictedJwtIds;
+    }
+
+    @Override
+    public boolean isJwtStored(SimpleJwt jwt) {
+        return delegate.isJwtStored(jwt);
+    }
+
+    @Override
+    public SimpleJwt fetchStoredJwt(SimpleJwt jwt) {
+        SimpleJwt stored = delegate.fetchStoredJwt(jwt);
+        if (stored.isNullObject()) {
+            return stored;
+        }
+
+        SimpleJwt queued = getQueued(jwt.getJwtId());
+        return queued != null ? stored.cloneWithExpirationOf(queued) : stored;
+    }
+
+    @Override
+    public StoredJwtState lookupJwt(SimpleJwt jwt) {
+        // refreshes only change the expiration, never whether a JWT is stored or invalid
+        return delegate.lookupJwt(jwt);
+    }
+
+    @Override
+    public void forEachStoredJwt(Consumer<SimpleJwt> consumer) throws IOException {
+        flush();
+        delegate.forEachStoredJwt(consumer);
+    }
+
+    @Override
+    public String invalidateJwt(String serviceTicketId) {
+        String jwtId = delegate.invalidateJwt(serviceTicketId);
+        invalidateQueued(Collections.singleton(jwtId));
+
+        return jwtId;
+    }
+
+    @Override
+    public Collection<String> invalidateJwtsOfUser(String login) {
+        Collection<String> jwtIds = delegate.invalidateJwtsOfUser(login);
+        invalidateQueued(jwtIds);
+
+        return jwtIds;
+    }
+
+    @Override
+    public int removeExpiredEntries() {
+        flush();
+        return delegate.removeExpiredEntries();
+    }
+
+    @Override
+    public void refreshJwt(SimpleJwt jwtWithLongerExpirationDate) {
+        while (!enqueue(jwtWithLongerExpirationDate)) {
+            LOG.debug("CAS session store write-behind queue is full, flushing on the request thread");
+            flush();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            try {
+                flushExecutor.awaitTermination(flushIntervalInMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+        delegate.shutdown();
+    }
+
+    /**
+     * Writes all queued refreshes to the underlying store. Refreshes which fail are logged and dropped, the stored JWT
+     * then keeps its previous expiration just like after a failed synchronous refresh.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            List<SimpleJwt> batch = drain();
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            int failed = 0;
+            for (SimpleJwt refreshed : batch) {
+                try {
+                    delegate.refreshJwt(refreshed);
+                } catch (Exception e) {
+                    failed++;
+                    LOG.error("Could not write refreshed JWT " + refreshed.getJwtId() + " to the CAS session store", e);
+                }
+            }
+            LOG.debug("Flushed {} refreshed JWTs to the CAS session store ({} failed)", batch.size(), failed);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush refreshed JWTs to the CAS session store", e);
+        }
+    }
+
+    private boolean enqueue(SimpleJwt jwt) {
+        synchronized (queuedRefreshes) {
+            String jwtId = jwt.getJwtId();
+            if (queuedRefreshes.size() >= maximumQueueSize && !queuedRefreshes.containsKey(jwtId)) {
+                return false;
+            }
+
+            queuedRefreshes.put(jwtId, jwt);
+            return true;
+        }
+    }
+
+    private long getQueueSize() {
+        synchronized (queuedRefreshes) {
+            return queuedRefreshes.size();
+        }
+    }
+
+    private void dequeue(String jwtId) {
+        synchronized (queuedRefreshes) {
+            queuedRefreshes.remove(jwtId);
+        }
+    }
+
+    private void invalidateQueued(Collection<String> jwtIds) {
+        synchronized (queuedRefreshes) {
+            for (String jwtId : jwtIds) {
+                queuedRefreshes.computeIfPresent(jwtId, (id, queued) -> queued.cloneAsInvalidated());
+            }
+        }
+    }
+
+    private SimpleJwt getQueued(String jwtId) {
+        synchronized (queuedRefreshes) {
+            return queuedRefreshes.get(jwtId);
+        }
+    }
+
+    private List<SimpleJwt> drain() {
+        synchronized (queuedRefreshes) {
+            List<SimpleJwt> batch = new ArrayList<>(queuedRefreshes.values());
+            queuedRefreshes.clear();
+
+            return batch;
+        }
+    }
+}
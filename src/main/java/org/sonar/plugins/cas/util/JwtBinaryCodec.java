@@ -0,0 +1,141 @@
+package org.sonar.plugins.cas.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * This class converts a {@link SimpleJwt} into a compact binary record and back.
+ *
+ * <p>A record is laid out like this (all numbers are big-endian):</p>
+ *
+ * <pre>
+ * byte[4] magic number "CJWT"
+ * byte    format version
+ * byte    flags (bit 0: JWT is invalid)
+ * long    expiration as epoch seconds
+ * short   JWT ID length, followed by the UTF-8 encoded JWT ID
+ * short   service ticket length, followed by the UTF-8 encoded service ticket (since version 2, may be empty)
+ * short   login length, followed by the UTF-8 encoded login of the user (since version 3, may be empty)
+ * int     CRC32 checksum of all preceding bytes
+ * </pre>
+ *
+ * <p>The magic number distinguishes records from the XML documents which were written by earlier plugin versions.
+ * The service ticket is a back-reference which allows to remove a JWT together with its service ticket without
+ * looking at other service tickets. Version 1 records do not contain it. The login tells which user the JWT belongs
+ * to. Records before version 3 do not contain it.</p>
+ */
+final class JwtBinaryCodec {
+    private static final byte[] MAGIC = {'C', 'J', 'W', 'T'};
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+    private static final byte VERSION_3 = 3;
+    private static final byte FLAG_INVALID = 1;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int MIN_RECORD_SIZE = MAGIC.length + 1 + 1 + 8 + 2 + CHECKSUM_SIZE;
+    private static final String NO_SERVICE_TICKET = "";
+    private static final String NO_LOGIN = "";
+
+    private JwtBinaryCodec() {
+    }
+
+    /**
+     * Returns <code>true</code> if the given bytes start with the magic number of this format.
+     */
+    static boolean isBinaryRecord(byte[] bytes) {
+        if (bytes.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the JWT together with a back-reference to its service ticket and the login of its user.
+     *
+     * @param serviceTicket the service ticket which belongs to the JWT. May be <code>null</code> if unknown.
+     * @param login         the login of the user who owns the JWT. May be <code>null</code> if unknown.
+     */
+    static byte[] encode(SimpleJwt jwt, String serviceTicket, String login) {
+        byte[] jwtId = jwt.getJwtId().getBytes(StandardCharsets.UTF_8);
+        byte[] ticket = (serviceTicket == null ? NO_SERVICE_TICKET : serviceTicket).getBytes(StandardCharsets.UTF_8);
+        byte[] user = (login == null ? NO_LOGIN : login).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(MIN_RECORD_SIZE + jwtId.length + 2 + ticket.length + 2 + user.length);
+        buffer.put(MAGIC);
+        buffer.put(VERSION_3);
+        buffer.put(jwt.isInvalid() ? FLAG_INVALID : 0);
+        buffer.putLong(jwt.getExpiration().getEpochSecond());
+        buffer.putShort((short) jwtId.length);
+        buffer.put(jwtId);
+        buffer.putShort((short) ticket.length);
+        buffer.put(ticket);
+        buffer.putShort((short) user.length);
+        buffer.put(user);
+        buffer.putInt(checksum(buffer.array(), buffer.position()));
+
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a record which was created with {@link #encode(SimpleJwt, String, String)} together with its service
+     * ticket back-reference and login. Both are <code>null</code> if the record does not contain them.
+     *
+     * @throws IllegalArgumentException if the bytes are not a complete record of a known version or when the checksum
+     *                                  does not match.
+     */
+    static JwtFile decode(byte[] bytes) {
+        if (!isBinaryRecord(bytes) || bytes.length < MIN_RECORD_SIZE) {
+            throw new IllegalArgumentException("Bytes do not contain a binary JWT record");
+        }
+
+        int checksumOffset = bytes.length - CHECKSUM_SIZE;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(checksumOffset) != checksum(bytes, checksumOffset)) {
+            throw new IllegalArgumentException("Binary JWT record has a checksum mismatch");
+        }
+
+        buffer.position(MAGIC.length);
+        byte version = buffer.get();
+        if (version != VERSION_1 && version != VERSION_2 && version != VERSION_3) {
+            throw new IllegalArgumentException("Binary JWT record has the unsupported version " + version);
+        }
+
+        byte flags = buffer.get();
+        long expiration = buffer.getLong();
+        String jwtId = readString(buffer, checksumOffset);
+        String serviceTicket = version == VERSION_1 ? NO_SERVICE_TICKET : readString(buffer, checksumOffset);
+        String login = version < VERSION_3 ? NO_LOGIN : readString(buffer, checksumOffset);
+        if (buffer.position() != checksumOffset) {
+            throw new IllegalArgumentException("Binary JWT record has an unexpected length");
+        }
+
+        return new JwtFile(new SimpleJwt(jwtId, expiration, (flags & FLAG_INVALID) != 0), emptyToNull(serviceTicket),
+                emptyToNull(login), bytes.length);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String readString(ByteBuffer buffer, int limit) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (buffer.position() + length > limit) {
+            throw new IllegalArgumentException("Binary JWT record has an unexpected length");
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+
+        return value;
+    }
+
+    private static int checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
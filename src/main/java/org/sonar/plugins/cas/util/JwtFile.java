@@ -0,0 +1,64 @@
+package org.sonar.plugins.cas.util;
+
+/**
+ * This class holds everything a JWT file of the file session store contains: the JWT, the service ticket
+ * back-reference and the login of the user, together with the size of the file. Reading a JWT file once into this
+ * class spares the session store to read and decode the same file again for each part.
+ * <p>
+ * Instances are immutable and thread-safe.
+ * </p>
+ */
+public final class JwtFile {
+    private static final JwtFile missing = new JwtFile(SimpleJwt.getNullObject(), null, null, 0);
+
+    private final SimpleJwt jwt;
+    private final String serviceTicket;
+    private final String login;
+    private final long size;
+
+    JwtFile(SimpleJwt jwt, String serviceTicket, String login, long size) {
+        this.jwt = jwt;
+        this.serviceTicket = serviceTicket;
+        this.login = login;
+        this.size = size;
+    }
+
+    /**
+     * Returns the content of a JWT file which does not exist. Its JWT is the {@link SimpleJwt#getNullObject() null
+     * object}.
+     */
+    public static JwtFile getMissing() {
+        return missing;
+    }
+
+    public SimpleJwt getJwt() {
+        return jwt;
+    }
+
+    /**
+     * @return the service ticket which belongs to the JWT, or <code>null</code> if the file was written by an earlier
+     * plugin version which did not record the service ticket.
+     */
+    public String getServiceTicket() {
+        return serviceTicket;
+    }
+
+    /**
+     * @return the login of the user who owns the JWT, or <code>null</code> if the file was written by an earlier plugin
+     * version which did not record the login.
+     */
+    public String getLogin() {
+        return login;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isMissing() {
+        return jwt.isNullObject();
+    }
+}
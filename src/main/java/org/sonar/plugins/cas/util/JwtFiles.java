@@ -1,22 +1,27 @@
 package org.sonar.plugins.cas.util;
 
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 
+/**
+ * This class reads and writes {@link SimpleJwt} files of the file session store.
+ *
+ * <p>JWT files are written in the compact binary format of {@link JwtBinaryCodec}. JWT files in the XML format of
+ * earlier plugin versions can still be read, so existing session stores migrate as soon as their JWTs are written
+ * again.</p>
+ *
+ * <p>Each JWT file also carries the service ticket which was issued together with the JWT. This back-reference lets
+ * the clean-up remove an expired session without searching all service ticket files. The login of the user tells to
+ * whom the session belongs. {@link #read(Path)} decodes all of it with a single file access.</p>
+ */
 public final class JwtFiles {
 
     private JwtFiles() {
@@ -25,20 +30,74 @@ public final class JwtFiles {
     /**
      * Reads a file from <code>filePath</code> and returns a SimpleJwt for it.
      *
-     * @param filePath the path to a file which contains an XML representation of the object to be created. Must not
-     *                 be <code>null</code>.
+     * @param filePath the path to a file which contains either a binary or an XML representation of the object to be
+     *                 created. Must not be <code>null</code>.
      * @return a SimpleJwt for the data in the given file path.
      * @throws JwtFileConversionException Throws an exception if the file cannot be parsed as the desired type or when
      *                                    there happens errors during I/O.
      */
     public static SimpleJwt unmarshal(Path filePath) {
+        return read(filePath, false).getJwt();
+    }
+
+    /**
+     * Reads a file from <code>filePath</code> like {@link #unmarshal(Path)} but tolerates a missing file. This way
+     * callers find out whether a JWT is stored and read it with a single file access.
+     *
+     * @param filePath the path to a file which contains either a binary or an XML representation of the object to be
+     *                 created. Must not be <code>null</code>.
+     * @return a SimpleJwt for the data in the given file path, or the {@link SimpleJwt#getNullObject() null object} if
+     * the file does not exist.
+     * @throws JwtFileConversionException Throws an exception if the file cannot be parsed as the desired type or when
+     *                                    there happens errors during I/O.
+     */
+    public static SimpleJwt unmarshalIfExists(Path filePath) {
+        return read(filePath, true).getJwt();
+    }
+
+    /**
+     * Reads the JWT file in <code>filePath</code> together with its service ticket back-reference, the login of its
+     * user and its size.
+     *
+     * @param filePath the path to a JWT file. Must not be <code>null</code>.
+     * @return the content of the file. Files of earlier plugin versions lack the service ticket and the login.
+     * @throws JwtFileConversionException Throws an exception if the file cannot be parsed or when there happens errors
+     *                                    during I/O.
+     */
+    public static JwtFile read(Path filePath) {
+        return read(filePath, false);
+    }
+
+    /**
+     * Reads the JWT file in <code>filePath</code> like {@link #read(Path)} but tolerates a missing file.
+     *
+     * @param filePath the path to a JWT file. Must not be <code>null</code>.
+     * @return the content of the file, or {@link JwtFile#getMissing()} if the file does not exist.
+     * @throws JwtFileConversionException Throws an exception if the file cannot be parsed or when there happens errors
+     *                                    during I/O.
+     */
+    public static JwtFile readIfExists(Path filePath) {
+        return read(filePath, true);
+    }
+
+    private static JwtFile read(Path filePath, boolean missingFileAllowed) {
         if (filePath == null) {
             throw new IllegalArgumentException("FilePath must not be null.");
         }
 
-        try (InputStream reader = Files.newInputStream(filePath)) {
-            SimpleJwt unmarshalled = unmarshal(reader);
-            if (unmarshalled.getJwtId() == null) {
+        try {
+            byte[] content;
+            try {
+                content = Files.readAllBytes(filePath);
+            } catch (NoSuchFileException e) {
+                if (missingFileAllowed) {
+                    return JwtFile.getMissing();
+                }
+                throw e;
+            }
+
+            JwtFile unmarshalled = unmarshal(content);
+            if (unmarshalled.getJwt().getJwtId() == null) {
                 String msg = "Cannot unmarshal path " + filePath + " to an instance of " +
                         SimpleJwt.class.getSimpleName() + ". The file does not seem to contain valid JWT data.";
                 throw new JwtFileConversionException(msg);
@@ -50,6 +109,17 @@ public final class JwtFiles {
         }
     }
 
+    private static JwtFile unmarshal(byte[] content) throws IOException {
+        if (JwtBinaryCodec.isBinaryRecord(content)) {
+            return JwtBinaryCodec.decode(content);
+        }
+
+        // XML files of earlier plugin versions carry neither a service ticket nor a login
+        try (InputStream input = new ByteArrayInputStream(content)) {
+            return new JwtFile(unmarshal(input), null, null, content.length);
+        }
+    }
+
     protected static SimpleJwt unmarshal(InputStream input) {
         try {
             Element root = XMLParsing.getRootElementFromXML(input);
@@ -64,53 +134,20 @@ public final class JwtFiles {
     }
 
     /**
-     * Writes a file from <code>jaxbObject</code> into the path <code>filePath</code>.
+     * Returns the binary representation of <code>jwt</code> as it is written into JWT files.
      *
-     * @param filePath the path to a file which shall receive an XML representation of the object to be created. Must
-     *                 not be <code>null</code>.
-     * @param jwt      the object whose data is supposed to be serialized into an XML file. Must not be
-     *                 <code>null</code>.
-     * @throws JwtFileConversionException Throws an exception if the object cannot be parsed into the desired type or
-     *                                    when there happens errors during I/O.
+     * @param jwt           the object whose data is supposed to be serialized. Must not be <code>null</code>.
+     * @param serviceTicket the service ticket which belongs to the JWT. It is written as back-reference so the service
+     *                      ticket can be removed together with the JWT. May be <code>null</code> if unknown.
+     * @param login         the login of the user who owns the JWT. May be <code>null</code> if unknown.
+     * @return the file content for the JWT
      */
-    public static void marshalIntoNewFile(Path filePath, SimpleJwt jwt) {
-        if (filePath == null) {
-            throw new IllegalArgumentException("FilePath must not be null.");
-        }
+    public static byte[] marshal(SimpleJwt jwt, String serviceTicket, String login) {
         if (jwt == null) {
             throw new IllegalArgumentException("JWT must not be null.");
         }
 
-        try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-            Transformer transformer = transformerFactory.newTransformer();
-
-            DocumentBuilder docBuilder = XMLParsing.createSecureBuilder();
-
-            Document doc = docBuilder.newDocument();
-            Element rootElement = doc.createElement("SimpleJwt");
-            doc.appendChild(rootElement);
-
-            Element id = doc.createElement("jwtId");
-            id.appendChild(doc.createTextNode(jwt.getJwtId()));
-            rootElement.appendChild(id);
-
-            Element expiration = doc.createElement("expiration");
-            expiration.appendChild(doc.createTextNode(Long.toString(jwt.getExpiration().getEpochSecond())));
-            rootElement.appendChild(expiration);
-
-            Element invalid = doc.createElement("invalid");
-            invalid.appendChild(doc.createTextNode(Boolean.toString(jwt.isInvalid())));
-            rootElement.appendChild(invalid);
-
-            DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(new File(filePath.toString()));
-            transformer.transform(source, result);
-        } catch (Exception e) {
-            String msg = "Cannot marshal object " + jwt + " into file " + filePath;
-            throw new JwtFileConversionException(msg, e);
-        }
+        return JwtBinaryCodec.encode(jwt, serviceTicket, login);
     }
 
     private static class JwtFileConversionException extends RuntimeException {
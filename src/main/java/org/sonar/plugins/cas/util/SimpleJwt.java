@@ -58,7 +58,7 @@ public final class SimpleJwt {
         return jwtId;
     }
 
-    Instant getExpiration() {
+    public Instant getExpiration() {
         return Instant.ofEpochSecond(expiration);
     }
 
@@ -79,6 +79,18 @@ public final class SimpleJwt {
         return new SimpleJwt(this.jwtId, this.expiration, true);
     }
 
+    /**
+     * Takes this stored JWT and creates a copy with the expiration of the refreshed JWT. The copy is invalid if either
+     * JWT is, so a refresh never makes a JWT valid again once the user logged out. All session stores apply refreshes
+     * with this method.
+     *
+     * @param refreshed the JWT which carries the longer expiration
+     * @return a copy of this JWT with the refreshed expiration.
+     */
+    public SimpleJwt cloneWithExpirationOf(SimpleJwt refreshed) {
+        return new SimpleJwt(this.jwtId, refreshed.expiration, this.invalid || refreshed.invalid);
+    }
+
     /**
      * Creates a valid JWT from a given ID and epoch second timestamps
      *
@@ -101,7 +101,155 @@ public enum SonarCasProperties {
      * interval in seconds between each clean up run. Do not set the interval too short (this could lead to unnecessary
      * CPU load) or too long (this could lead to unnecessary filesystem load).
      */
-    SESSION_STORE_CLEANUP_INTERVAL_IN_SECS("sonar.cas.sessionStore.cleanUpIntervalInSeconds", SonarPropertyType.INTEGER);
+    SESSION_STORE_CLEANUP_INTERVAL_IN_SECS("sonar.cas.sessionStore.cleanUpIntervalInSeconds", SonarPropertyType.INTEGER),
+
+    /**
+     * The maximum number of JWTs which are kept in memory in front of the CAS session store. The blacklist check
+     * happens on every user request and is answered from this cache once the JWT was read from the store. Least recently
+     * used JWTs are evicted first. 0 disables the cache. Must be disabled if several SonarQube servers share one
+     * session store, e.g. a <code>file</code> session store on NFS. Default is 10000, except for the <code>jdbc</code>
+     * session store where it is 0.
+     */
+    SESSION_STORE_CACHE_SIZE("sonar.cas.sessionStore.cacheSize", SonarPropertyType.INTEGER),
+
+    /**
+     * Selects the implementation of the CAS session store. <code>file</code> stores one file per JWT and service ticket,
+     * <code>log</code> appends all changes to a few segment files and keeps an index in memory, <code>mapped</code>
+     * keeps fixed-size records in memory-mapped hash tables, <code>jdbc</code> keeps JWTs and service tickets in a
+     * database. Default is <code>file</code>.
+     */
+    SESSION_STORE_TYPE("sonar.cas.sessionStore.type", SonarPropertyType.STRING),
+
+    /**
+     * The number of files the file session store clean up processes at once. The session store directory is streamed,
+     * so this number limits the memory the clean up needs regardless of the number of stored sessions.
+     */
+    SESSION_STORE_CLEANUP_BATCH_SIZE("sonar.cas.sessionStore.cleanUpBatchSize", SonarPropertyType.INTEGER),
+
+    /**
+     * The number of threads which parse and delete files during the file session store clean up. 1 processes all
+     * batches one after another on the clean up thread.
+     */
+    SESSION_STORE_CLEANUP_PARALLELISM("sonar.cas.sessionStore.cleanUpParallelism", SonarPropertyType.INTEGER),
+
+    /**
+     * Keeps the IDs of all invalidated JWTs in memory so the blacklist check of valid JWTs does not read the CAS
+     * session store. Must be disabled if several SonarQube servers share one session store, e.g. a <code>file</code>
+     * session store on NFS. Default is <code>true</code>, except for the <code>jdbc</code> session store.
+     */
+    SESSION_STORE_REVOCATION_SET("sonar.cas.sessionStore.revocationSet", SonarPropertyType.BOOLEAN),
+
+    /**
+     * The JDBC URL of the database which is used by the <code>jdbc</code> CAS session store.
+     */
+    SESSION_STORE_JDBC_URL("sonar.cas.sessionStore.jdbc.url", SonarPropertyType.STRING),
+
+    /**
+     * The database user of the <code>jdbc</code> CAS session store.
+     */
+    SESSION_STORE_JDBC_USER("sonar.cas.sessionStore.jdbc.username", SonarPropertyType.STRING),
+
+    /**
+     * The database password of the <code>jdbc</code> CAS session store.
+     */
+    SESSION_STORE_JDBC_PASSWORD("sonar.cas.sessionStore.jdbc.password", SonarPropertyType.STRING),
+
+    /**
+     * The maximum number of database connections of the <code>jdbc</code> CAS session store. Default is 4.
+     */
+    SESSION_STORE_JDBC_POOL_SIZE("sonar.cas.sessionStore.jdbc.poolSize", SonarPropertyType.INTEGER),
+
+    /**
+     * The maximum number of refreshed JWTs which are queued before they are written to the CAS session store. Repeated
+     * refreshes of the same JWT take a single place in the queue. 0 writes each refresh during the user's request.
+     */
+    SESSION_STORE_WRITE_BEHIND_QUEUE_SIZE("sonar.cas.sessionStore.writeBehind.queueSize", SonarPropertyType.INTEGER),
+
+    /**
+     * The interval in milliseconds in which queued JWT refreshes are written to the CAS session store.
+     */
+    SESSION_STORE_WRITE_BEHIND_FLUSH_INTERVAL_IN_MILLIS("sonar.cas.sessionStore.writeBehind.flushIntervalInMilliseconds",
+            SonarPropertyType.INTEGER),
+
+    /**
+     * The number of seconds a written JWT refresh extends the stored expiration beyond the cookie's expiration. Further
+     * refreshes are not written until they come closer to the stored expiration than the safety margin. 0 writes every
+     * refresh.
+     */
+    SESSION_STORE_REFRESH_MIN_EXTENSION_IN_SECS("sonar.cas.sessionStore.refresh.minExtensionInSeconds",
+            SonarPropertyType.INTEGER),
+
+    /**
+     * The number of seconds before the stored expiration from which on a JWT refresh is written again. Must be smaller
+     * than the minimum extension.
+     */
+    SESSION_STORE_REFRESH_SAFETY_MARGIN_IN_SECS("sonar.cas.sessionStore.refresh.safetyMarginInSeconds",
+            SonarPropertyType.INTEGER),
+
+    /**
+     * Defines when the <code>file</code> and <code>log</code> CAS session stores force written files to disk. <code>none</code> leaves it to
+     * the operating system, <code>fsync</code> forces each file before the write returns, <code>group</code> forces
+     * all written files together in fixed intervals. Default is <code>none</code>.
+     */
+    SESSION_STORE_DURABILITY("sonar.cas.sessionStore.durability", SonarPropertyType.STRING),
+
+    /**
+     * The interval in milliseconds in which the <code>group</code> durability forces written files to disk.
+     */
+    SESSION_STORE_GROUP_COMMIT_INTERVAL_IN_MILLIS("sonar.cas.sessionStore.groupCommitIntervalInMilliseconds",
+            SonarPropertyType.INTEGER),
+
+    /**
+     * Loads the CAS session store revocation set on a background thread during server start. Until it is loaded, the
+     * session store answers every blacklist check. Default is <code>true</code>.
+     */
+    SESSION_STORE_ASYNC_WARM_UP("sonar.cas.sessionStore.asyncWarmUp", SonarPropertyType.BOOLEAN),
+
+    /**
+     * The maximum duration in seconds of a single clean up run of the <code>file</code> CAS session store. The next run
+     * continues with the remaining expired sessions. 0 does not limit the duration.
+     */
+    SESSION_STORE_CLEANUP_TIME_BUDGET_IN_SECS("sonar.cas.sessionStore.cleanUpTimeBudgetInSeconds",
+            SonarPropertyType.INTEGER),
+
+    /**
+     * The maximum number of files the clean up of the <code>file</code> CAS session store deletes per second. 0 does not
+     * limit the delete rate.
+     */
+    SESSION_STORE_CLEANUP_DELETE_RATE("sonar.cas.sessionStore.cleanUpDeletesPerSecond", SonarPropertyType.INTEGER),
+
+    /**
+     * The maximum number of active sessions of the <code>file</code> CAS session store. Once it is exceeded the sessions
+     * which expire first are invalidated. 0 does not limit the number of sessions. Other session store types ignore
+     * this limit.
+     */
+    SESSION_STORE_MAX_SESSIONS("sonar.cas.sessionStore.maxSessions", SonarPropertyType.INTEGER),
+
+    /**
+     * The maximum number of active sessions of a single user in the <code>file</code> CAS session store. Once a login
+     * exceeds it the user's sessions which expire first are invalidated. 0 does not limit the number of sessions.
+     * Other session store types ignore this limit.
+     */
+    SESSION_STORE_MAX_SESSIONS_PER_USER("sonar.cas.sessionStore.maxSessionsPerUser", SonarPropertyType.INTEGER),
+
+    /**
+     * The directory of an old <code>file</code> CAS session store whose sessions are moved into the configured session
+     * store in the background. Until the migration is complete, sessions which were not moved yet are read from the old
+     * session store. Not set by default.
+     */
+    SESSION_STORE_MIGRATION_SOURCE_PATH("sonar.cas.sessionStore.migration.sourcePath", SonarPropertyType.STRING),
+
+    /**
+     * The number of sessions which the migration copies at once. Changes of sessions wait while a batch is copied.
+     */
+    SESSION_STORE_MIGRATION_BATCH_SIZE("sonar.cas.sessionStore.migration.batchSize", SonarPropertyType.INTEGER),
+
+    /**
+     * The type of a second CAS session store which receives every operation of the configured session store in order to
+     * compare its answers and latencies. Users are only served the answers of the configured session store. Must differ
+     * from <code>sonar.cas.sessionStore.type</code>. Not set by default.
+     */
+    SESSION_STORE_SHADOW_TYPE("sonar.cas.sessionStore.shadow.type", SonarPropertyType.STRING);
 
     String propertyKey;
 
@@ -0,0 +1,135 @@
+package org.sonar.plugins.cas.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.plugins.cas.util.SimpleJwt;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class JdbcSessionStoreTest {
+    private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+    private static final String JWT_ID = "AYzO9h2ryPLvHBfPnMY2";
+    private static final String SERVICE_TICKET = "ST-1-FgrQV7aaF2yqsVJ0kJvb-cas.example.com";
+
+    private JdbcSessionStore sut;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:cas" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        sut = new JdbcSessionStore(new JdbcConnectionPool(url, "sa", "", 2), 2);
+        sut.prepareForWork();
+    }
+
+    @After
+    public void tearDown() {
+        sut.shutdown();
+    }
+
+    @Test
+    public void storeShouldMakeJwtFetchable() {
+        SimpleJwt jwt = jwtExpiringIn(3600);
+
+        sut.store(SERVICE_TICKET, jwt);
+
+        assertThat(sut.isJwtStored(jwt)).isTrue();
+        assertThat(sut.fetchStoredJwt(jwt)).isEqualTo(jwt);
+        assertThat(sut.lookupJwt(jwt)).isEqualTo(StoredJwtState.VALID);
+    }
+
+    @Test
+    public void fetchStoredJwtShouldReturnNullObjectForUnknownJwt() {
+        assertThat(sut.fetchStoredJwt(jwtExpiringIn(3600)).isNullObject()).isTrue();
+        assertThat(sut.lookupJwt(jwtExpiringIn(3600))).isEqualTo(StoredJwtState.NOT_STORED);
+    }
+
+    @Test
+    public void invalidateJwtShouldInvalidateJwtOfServiceTicket() {
+        SimpleJwt jwt = jwtExpiringIn(3600);
+        sut.store(SERVICE_TICKET, jwt);
+
+        String invalidatedJwtId = sut.invalidateJwt(SERVICE_TICKET);
+
+        assertThat(invalidatedJwtId).isEqualTo(JWT_ID);
+        assertThat(sut.isJwtInvalidated(jwt)).isTrue();
+    }
+
+    @Test
+    public void invalidateJwtShouldIgnoreUnknownServiceTicket() {
+        assertThat(sut.invalidateJwt(SERVICE_TICKET)).isEqualTo("no ticket found");
+    }
+
+    @Test
+    public void refreshJwtShouldExtendExpiration() throws Exception {
+        sut.store(SERVICE_TICKET, jwtExpiringIn(60));
+        SimpleJwt refreshed = jwtExpiringIn(3600);
+
+        sut.refreshJwt(refreshed);
+
+        assertThat(sut.fetchStoredJwt(refreshed).getExpiration()).isEqualTo(refreshed.getExpiration());
+    }
+
+    @Test
+    public void refreshJwtShouldKeepJwtInvalidatedMeanwhile() throws Exception {
+        sut.store(SERVICE_TICKET, jwtExpiringIn(60));
+        // another server invalidates the JWT while this one still holds the valid copy
+        sut.invalidateJwt(SERVICE_TICKET);
+        SimpleJwt refreshed = jwtExpiringIn(3600);
+
+        sut.refreshJwt(refreshed);
+
+        SimpleJwt stored = sut.fetchStoredJwt(refreshed);
+        assertThat(stored.isInvalid()).isTrue();
+        assertThat(stored.getExpiration()).isEqualTo(refreshed.getExpiration());
+    }
+
+    @Test
+    public void storeShouldKeepJwtInvalidated() {
+        sut.store(SERVICE_TICKET, jwtExpiringIn(60));
+        sut.invalidateJwt(SERVICE_TICKET);
+
+        sut.store(SERVICE_TICKET, jwtExpiringIn(3600));
+
+        assertThat(sut.isJwtInvalidated(jwtExpiringIn(3600))).isTrue();
+    }
+
+    @Test
+    public void refreshJwtShouldIgnoreUnknownJwt() throws Exception {
+        SimpleJwt jwt = jwtExpiringIn(3600);
+
+        sut.refreshJwt(jwt);
+
+        assertThat(sut.isJwtStored(jwt)).isFalse();
+    }
+
+    @Test
+    public void removeExpiredEntriesShouldRemoveExpiredJwtsAndTheirTickets() throws Exception {
+        // more expired JWTs than fit into one clean up batch
+        for (int i = 0; i < 5; i++) {
+            sut.store("ST-expired-" + i, SimpleJwt.fromIdAndExpiration("expired" + i, now() - 60));
+        }
+        SimpleJwt valid = jwtExpiringIn(3600);
+        sut.store(SERVICE_TICKET, valid);
+
+        int removed = sut.removeExpiredEntries();
+
+        assertThat(removed).isEqualTo(10);
+        assertThat(sut.invalidateJwt("ST-expired-0")).isEqualTo("no ticket found");
+        List<SimpleJwt> remaining = new ArrayList<>();
+        sut.forEachStoredJwt(remaining::add);
+        assertThat(remaining).containsOnly(valid);
+    }
+
+    private static SimpleJwt jwtExpiringIn(long seconds) {
+        return SimpleJwt.fromIdAndExpiration(JWT_ID, now() + seconds);
+    }
+
+    private static long now() {
+        return Instant.now().getEpochSecond();
+    }
+}
@@ -0,0 +1,189 @@
+package org.sonar.plugins.cas.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class JwtExpirationMapTest {
+    private static final int SEGMENT_BITS = 4;
+    private static final int MIN_CAPACITY = 16;
+
+    private final JwtExpirationMap sut = new JwtExpirationMap();
+
+    @Test
+    public void getShouldReturnExpirationOfPutJwt() {
+        sut.put("AYzO9h2ryPLvHBfPnMY2", 1000L);
+
+        assertThat(sut.get("AYzO9h2ryPLvHBfPnMY2")).isEqualTo(1000L);
+        assertThat(sut.containsKey("AYzO9h2ryPLvHBfPnMY2")).isTrue();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldReturnNoExpirationForUnknownJwt() {
+        sut.put("AYzO9h2ryPLvHBfPnMY2", 1000L);
+
+        assertThat(sut.get("AYzO9h2ryPLvHBfPnMY3")).isEqualTo(JwtExpirationMap.NO_EXPIRATION);
+        assertThat(sut.containsKey("AYzO9h2ryPLvHBfPnMY3")).isFalse();
+    }
+
+    @Test
+    public void putShouldOverwriteExpirationOfKnownJwt() {
+        sut.put("AYzO9h2ryPLvHBfPnMY2", 1000L);
+        sut.put("AYzO9h2ryPLvHBfPnMY2", 2000L);
+
+        assertThat(sut.get("AYzO9h2ryPLvHBfPnMY2")).isEqualTo(2000L);
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void replaceShouldOnlyChangeKnownJwts() {
+        sut.put("AYzO9h2ryPLvHBfPnMY2", 1000L);
+
+        sut.replace("AYzO9h2ryPLvHBfPnMY2", 2000L);
+        sut.replace("AYzO9h2ryPLvHBfPnMY3", 2000L);
+
+        assertThat(sut.get("AYzO9h2ryPLvHBfPnMY2")).isEqualTo(2000L);
+        assertThat(sut.containsKey("AYzO9h2ryPLvHBfPnMY3")).isFalse();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void unencodableIdsShouldBeMappedAsWell() {
+        sut.put("not-a-sonar-jwt-id", 1000L);
+        sut.replace("not-a-sonar-jwt-id", 2000L);
+
+        assertThat(sut.get("not-a-sonar-jwt-id")).isEqualTo(2000L);
+        assertThat(sut.size()).isEqualTo(1);
+
+        sut.remove("not-a-sonar-jwt-id");
+
+        assertThat(sut.containsKey("not-a-sonar-jwt-id")).isFalse();
+        assertThat(sut.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void removeShouldKeepProbeChainWhichWrapsAroundTheSegmentEnd() {
+        // all IDs want the last slot of the same segment, so the chain continues at the first slots
+        List<String> chain = findIdsWithHomeSlot(0, MIN_CAPACITY - 1, 4);
+        for (int i = 0; i < chain.size(); i++) {
+            sut.put(chain.get(i), i);
+        }
+
+        sut.remove(chain.get(0));
+
+        assertThat(sut.containsKey(chain.get(0))).isFalse();
+        for (int i = 1; i < chain.size(); i++) {
+            assertThat(sut.get(chain.get(i))).isEqualTo((long) i);
+        }
+
+        sut.remove(chain.get(2));
+
+        assertThat(sut.get(chain.get(1))).isEqualTo(1L);
+        assertThat(sut.containsKey(chain.get(2))).isFalse();
+        assertThat(sut.get(chain.get(3))).isEqualTo(3L);
+        assertThat(sut.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void removeShouldKeepEntriesWhichWrappedPastTheirHomeSlot() {
+        // the entries of the first slot must not be moved in front of their home slot
+        List<String> wrapping = findIdsWithHomeSlot(0, MIN_CAPACITY - 1, 2);
+        List<String> atStart = findIdsWithHomeSlot(0, 0, 2);
+        sut.put(wrapping.get(0), 1L);
+        sut.put(wrapping.get(1), 2L);
+        sut.put(atStart.get(0), 3L);
+        sut.put(atStart.get(1), 4L);
+
+        sut.remove(wrapping.get(0));
+        sut.remove(atStart.get(0));
+
+        assertThat(sut.get(wrapping.get(1))).isEqualTo(2L);
+        assertThat(sut.get(atStart.get(1))).isEqualTo(4L);
+        assertThat(sut.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void mapShouldAgreeWithHashMapUnderRandomPutsAndRemoves() {
+        Random random = new Random(42);
+        Map<String, Long> expected = new HashMap<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            ids.add(String.format("A%019d", i));
+        }
+
+        for (int operation = 0; operation < 50_000; operation++) {
+            String jwtId = ids.get(random.nextInt(ids.size()));
+            if (random.nextInt(3) == 0) {
+                sut.remove(jwtId);
+                expected.remove(jwtId);
+            } else {
+                long expiration = random.nextInt(1_000_000);
+                sut.put(jwtId, expiration);
+                expected.put(jwtId, expiration);
+            }
+        }
+
+        assertThat(sut.size()).isEqualTo(expected.size());
+        for (String jwtId : ids) {
+            Long expiration = expected.get(jwtId);
+            assertThat(sut.get(jwtId)).isEqualTo(expiration == null ? JwtExpirationMap.NO_EXPIRATION : expiration);
+        }
+    }
+
+    @Test
+    public void removeExpiredBeforeShouldRemoveExpiredJwtsAndShrink() {
+        for (int i = 0; i < 10_000; i++) {
+            sut.put(String.format("A%019d", i), i);
+        }
+        sut.put("not-a-sonar-jwt-id", 5L);
+        int grownCapacity = sut.capacity();
+
+        sut.removeExpiredBefore(9_990);
+
+        assertThat(sut.size()).isEqualTo(10);
+        assertThat(sut.capacity()).isLessThan(grownCapacity);
+        assertThat(sut.containsKey(String.format("A%019d", 9_989))).isFalse();
+        assertThat(sut.containsKey("not-a-sonar-jwt-id")).isFalse();
+        // a JWT which expires exactly at the given second is kept
+        assertThat(sut.get(String.format("A%019d", 9_990))).isEqualTo(9_990L);
+        assertThat(sut.get(String.format("A%019d", 9_999))).isEqualTo(9_999L);
+    }
+
+    @Test
+    public void removeExpiredBeforeShouldShrinkToMinimalCapacityWhenEmpty() {
+        for (int i = 0; i < 1000; i++) {
+            sut.put(String.format("A%019d", i), i);
+        }
+
+        sut.removeExpiredBefore(1000);
+
+        assertThat(sut.size()).isEqualTo(0);
+        assertThat(sut.capacity()).isEqualTo(MIN_CAPACITY << SEGMENT_BITS);
+
+        sut.put(String.format("A%019d", 1), 2000L);
+        assertThat(sut.get(String.format("A%019d", 1))).isEqualTo(2000L);
+    }
+
+    /**
+     * Returns IDs which fall into the given segment and whose home slot in a segment of minimal capacity is the given
+     * slot.
+     */
+    private static List<String> findIdsWithHomeSlot(int segment, int slot, int count) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; found.size() < count; i++) {
+            String jwtId = String.format("B%019d", i);
+            long hash = JwtExpirationMap.hash(JwtIdCodec.encodeHigh(jwtId), JwtIdCodec.encodeLow(jwtId));
+            if ((int) (hash >>> (Long.SIZE - SEGMENT_BITS)) == segment && ((int) hash & (MIN_CAPACITY - 1)) == slot) {
+                found.add(jwtId);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,59 @@
+package org.sonar.plugins.cas.session;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class JwtIdCodecTest {
+
+    @Test
+    public void decodeShouldRestoreFullLengthId() {
+        assertRoundTrip("AYzO9h2ryPLvHBfPnMY2");
+    }
+
+    @Test
+    public void decodeShouldRestoreShortIds() {
+        assertRoundTrip("0");
+        assertRoundTrip("z");
+        assertRoundTrip("AYzO9h2ryP");
+        assertRoundTrip("AYzO9h2ryPL");
+    }
+
+    @Test
+    public void decodeShouldRestoreIdsWithEveryCharacter() {
+        assertRoundTrip("0123456789ABCDEFGHIJ");
+        assertRoundTrip("KLMNOPQRSTUVWXYZabcd");
+        assertRoundTrip("efghijklmnopqrstuvwx");
+        assertRoundTrip("yz");
+    }
+
+    @Test
+    public void encodeHighShouldNeverBeZero() {
+        assertThat(JwtIdCodec.encodeHigh("0")).isNotEqualTo(0L);
+        assertThat(JwtIdCodec.encodeHigh("00000000000000000000")).isNotEqualTo(0L);
+    }
+
+    @Test
+    public void encodeShouldTellPrefixesApart() {
+        assertThat(JwtIdCodec.encodeHigh("A")).isNotEqualTo(JwtIdCodec.encodeHigh("A0"));
+        assertThat(JwtIdCodec.encodeLow("AYzO9h2ryP")).isNotEqualTo(JwtIdCodec.encodeLow("AYzO9h2ryP0"));
+    }
+
+    @Test
+    public void isEncodableShouldRejectIdsOutsideTheAlphabetOrLength() {
+        assertThat(JwtIdCodec.isEncodable(null)).isFalse();
+        assertThat(JwtIdCodec.isEncodable("")).isFalse();
+        assertThat(JwtIdCodec.isEncodable("AYzO9h2ryPLvHBfPnMY2x")).isFalse();
+        assertThat(JwtIdCodec.isEncodable("AYzO9h2ryP-LvHBfPnMY")).isFalse();
+        assertThat(JwtIdCodec.isEncodable("AYzO9h2ryPLvHBfPnMY\u00e4")).isFalse();
+        assertThat(JwtIdCodec.isEncodable("AYzO9h2ryPLvHBfPnMY2")).isTrue();
+    }
+
+    private static void assertRoundTrip(String jwtId) {
+        assertThat(JwtIdCodec.isEncodable(jwtId)).isTrue();
+
+        String decoded = JwtIdCodec.decode(JwtIdCodec.encodeHigh(jwtId), JwtIdCodec.encodeLow(jwtId));
+
+        assertThat(decoded).isEqualTo(jwtId);
+    }
+}
@@ -0,0 +1,153 @@
+package org.sonar.plugins.cas.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class JwtBinaryCodecTest {
+    private static final String JWT_ID = "AYzO9h2ryPLvHBfPnMY2";
+    private static final String SERVICE_TICKET = "ST-1-FgrQV7aaF2yqsVJ0kJvb-cas.example.com";
+    private static final String LOGIN = "jdoe";
+    private static final long EXPIRATION = 1_700_000_000L;
+
+    @Test
+    public void decodeShouldRestoreVersion3Record() {
+        SimpleJwt jwt = new SimpleJwt(JWT_ID, EXPIRATION, true);
+
+        byte[] record = JwtBinaryCodec.encode(jwt, SERVICE_TICKET, LOGIN);
+        JwtFile decoded = JwtBinaryCodec.decode(record);
+
+        assertThat(decoded.getJwt()).isEqualTo(jwt);
+        assertThat(decoded.getServiceTicket()).isEqualTo(SERVICE_TICKET);
+        assertThat(decoded.getLogin()).isEqualTo(LOGIN);
+        assertThat(decoded.getSize()).isEqualTo(record.length);
+    }
+
+    @Test
+    public void decodeShouldRestoreVersion3RecordWithoutTicketAndLogin() {
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION);
+
+        JwtFile decoded = JwtBinaryCodec.decode(JwtBinaryCodec.encode(jwt, null, null));
+
+        assertThat(decoded.getJwt()).isEqualTo(jwt);
+        assertThat(decoded.getServiceTicket()).isNull();
+        assertThat(decoded.getLogin()).isNull();
+    }
+
+    @Test
+    public void decodeShouldRestoreVersion3RecordWithNonAsciiLogin() {
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION);
+
+        JwtFile decoded = JwtBinaryCodec.decode(JwtBinaryCodec.encode(jwt, SERVICE_TICKET, "j\u00fcrgen"));
+
+        assertThat(decoded.getLogin()).isEqualTo("j\u00fcrgen");
+    }
+
+    @Test
+    public void decodeShouldReadVersion1RecordWithoutTicketAndLogin() {
+        byte[] record = record(1, true, JWT_ID);
+
+        JwtFile decoded = JwtBinaryCodec.decode(record);
+
+        assertThat(decoded.getJwt()).isEqualTo(new SimpleJwt(JWT_ID, EXPIRATION, true));
+        assertThat(decoded.getServiceTicket()).isNull();
+        assertThat(decoded.getLogin()).isNull();
+    }
+
+    @Test
+    public void decodeShouldReadVersion2RecordWithoutLogin() {
+        byte[] record = record(2, false, JWT_ID, SERVICE_TICKET);
+
+        JwtFile decoded = JwtBinaryCodec.decode(record);
+
+        assertThat(decoded.getJwt()).isEqualTo(new SimpleJwt(JWT_ID, EXPIRATION, false));
+        assertThat(decoded.getServiceTicket()).isEqualTo(SERVICE_TICKET);
+        assertThat(decoded.getLogin()).isNull();
+    }
+
+    @Test
+    public void encodeShouldMatchHandBuiltVersion3Record() {
+        byte[] expected = record(3, false, JWT_ID, SERVICE_TICKET, LOGIN);
+
+        byte[] record = JwtBinaryCodec.encode(SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION), SERVICE_TICKET, LOGIN);
+
+        assertThat(record).isEqualTo(expected);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeShouldRejectCorruptPayload() {
+        byte[] record = JwtBinaryCodec.encode(SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION), SERVICE_TICKET, LOGIN);
+        // flip a bit of the expiration
+        record[10] ^= 1;
+
+        JwtBinaryCodec.decode(record);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeShouldRejectCorruptChecksum() {
+        byte[] record = JwtBinaryCodec.encode(SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION), SERVICE_TICKET, LOGIN);
+        record[record.length - 1] ^= 1;
+
+        JwtBinaryCodec.decode(record);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeShouldRejectTruncatedRecord() {
+        byte[] record = JwtBinaryCodec.encode(SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION), SERVICE_TICKET, LOGIN);
+        byte[] truncated = new byte[12];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+
+        JwtBinaryCodec.decode(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeShouldRejectUnknownVersion() {
+        JwtBinaryCodec.decode(record(4, false, JWT_ID, SERVICE_TICKET, LOGIN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeShouldRejectRecordWithSurplusBytes() {
+        // a version 2 record which also carries a login has a valid checksum but an unexpected length
+        JwtBinaryCodec.decode(record(2, false, JWT_ID, SERVICE_TICKET, LOGIN));
+    }
+
+    @Test
+    public void isBinaryRecordShouldTellRecordsFromXml() {
+        byte[] record = JwtBinaryCodec.encode(SimpleJwt.fromIdAndExpiration(JWT_ID, EXPIRATION), null, null);
+        byte[] xml = "<jwt><jwtId>x</jwtId></jwt>".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(JwtBinaryCodec.isBinaryRecord(record)).isTrue();
+        assertThat(JwtBinaryCodec.isBinaryRecord(xml)).isFalse();
+        assertThat(JwtBinaryCodec.isBinaryRecord(new byte[]{'C', 'J'})).isFalse();
+    }
+
+    /**
+     * Builds a record of the given version independently of the codec, including its checksum.
+     */
+    private static byte[] record(int version, boolean invalid, String... strings) {
+        int size = 4 + 1 + 1 + 8 + 4;
+        for (String value : strings) {
+            size += 2 + value.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(new byte[]{'C', 'J', 'W', 'T'});
+        buffer.put((byte) version);
+        buffer.put((byte) (invalid ? 1 : 0));
+        buffer.putLong(EXPIRATION);
+        for (String value : strings) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        return buffer.array();
+    }
+}
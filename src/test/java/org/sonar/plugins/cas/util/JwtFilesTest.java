@@ -0,0 +1,75 @@
+package org.sonar.plugins.cas.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class JwtFilesTest {
+    private static final String JWT_ID = "AYzO9h2ryPLvHBfPnMY2";
+    private static final String SERVICE_TICKET = "ST-1-FgrQV7aaF2yqsVJ0kJvb-cas.example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readShouldDecodeBinaryFile() throws Exception {
+        SimpleJwt jwt = SimpleJwt.fromIdAndExpiration(JWT_ID, 1_700_000_000L);
+        Path file = write(JwtFiles.marshal(jwt, SERVICE_TICKET, "jdoe"));
+
+        JwtFile read = JwtFiles.read(file);
+
+        assertThat(read.getJwt()).isEqualTo(jwt);
+        assertThat(read.getServiceTicket()).isEqualTo(SERVICE_TICKET);
+        assertThat(read.getLogin()).isEqualTo("jdoe");
+        assertThat(read.getSize()).isEqualTo(Files.size(file));
+    }
+
+    @Test
+    public void readShouldFallBackToXmlOfEarlierPluginVersions() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<jwt><jwtId>" + JWT_ID + "</jwtId><expiration>1700000000</expiration><invalid>true</invalid></jwt>";
+        Path file = write(xml.getBytes(StandardCharsets.UTF_8));
+
+        JwtFile read = JwtFiles.read(file);
+
+        assertThat(read.getJwt()).isEqualTo(new SimpleJwt(JWT_ID, 1_700_000_000L, true));
+        assertThat(read.getServiceTicket()).isNull();
+        assertThat(read.getLogin()).isNull();
+        assertThat(read.getSize()).isEqualTo(xml.length());
+    }
+
+    @Test
+    public void readShouldRejectBinaryFileWithCorruptChecksum() throws Exception {
+        byte[] content = JwtFiles.marshal(SimpleJwt.fromIdAndExpiration(JWT_ID, 1_700_000_000L), SERVICE_TICKET, null);
+        content[content.length - 1] ^= 1;
+        Path file = write(content);
+
+        try {
+            JwtFiles.read(file);
+            fail("a corrupt JWT file must not be read");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void readIfExistsShouldReturnMissingFile() {
+        Path file = new File(folder.getRoot(), JWT_ID).toPath();
+
+        assertThat(JwtFiles.readIfExists(file)).isSameAs(JwtFile.getMissing());
+    }
+
+    private Path write(byte[] content) throws Exception {
+        Path file = new File(folder.getRoot(), JWT_ID).toPath();
+        Files.write(file, content);
+        return file;
+    }
+}